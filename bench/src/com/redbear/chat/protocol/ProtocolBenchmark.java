@@ -0,0 +1,214 @@
+package com.redbear.chat.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the protocol core. Run with -prof gc to get the
+ * allocation rate per operation, which is the number that matters most
+ * on the phone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+	/* A full state update, as written to TX. */
+	byte[] mStream;
+	int mVolume;
+	boolean mPlaying;
+	String mArtist;
+	String mTrack;
+
+	StateDiff mDiff;
+	MessageDecoder mDecoder;
+	/* A 300x300 cover. */
+	int[] mCover;
+
+	final StateDiff.Sink mSink = new StateDiff.Sink() {
+		public void send(int type, byte[] message) {
+			mSent += message.length;
+		}
+	};
+	long mSent;
+
+	@Setup
+	public void setup() {
+		mArtist = "Godspeed You! Black Emperor";
+		mTrack = "Storm";
+		mDiff = new StateDiff();
+		mCover = new int[300 * 300];
+		for (int i = 0; i < mCover.length; i++) {
+			int x = i % 300;
+			int y = i / 300;
+			mCover[i] = (x < 150 ? 0x204060 : 0xE0C080) + ((x * y) & 0x0F);
+		}
+
+		byte[][] messages = {
+			Messages.volume(64),
+			Messages.playing(true),
+			Messages.artist(Messages.truncate(mArtist)),
+			Messages.track(mTrack),
+		};
+		int length = 0;
+		for (byte[] m : messages) {
+			length += m.length;
+		}
+		mStream = new byte[length];
+		int offset = 0;
+		for (byte[] m : messages) {
+			System.arraycopy(m, 0, mStream, offset, m.length);
+			offset += m.length;
+		}
+
+		mDecoder = new MessageDecoder(new MessageDecoder.Listener() {
+			public void onVolume(int volume) {
+				mVolume = volume;
+			}
+
+			public void onPlaying(boolean playing) {
+				mPlaying = playing;
+			}
+
+			public void onNetwork(boolean online) {
+			}
+
+			public void onText(int type, byte[] text, int length) {
+				mSent += length;
+			}
+
+			public void onBitmap(int type, byte[] columns, int length) {
+				mSent += length;
+			}
+
+			public void onPosition(int seq, long position, long length) {
+			}
+
+			public void onCorrection(int seq, int correction) {
+			}
+
+			public void onQueuePage(int index, int total, int count,
+									byte[] items, int length) {
+				mSent += length;
+			}
+
+			public void onQueueChanged(int index, int total) {
+			}
+
+			public void onArt(int hash) {
+			}
+
+			public void onArtData(int hash, int offset, int total, byte[] data,
+								  int length) {
+				mSent += length;
+			}
+		});
+	}
+
+	@Benchmark
+	public byte[] encodeVolume() {
+		mVolume = (mVolume + 1) & 0x7F;
+		return Messages.volume(mVolume);
+	}
+
+	@Benchmark
+	public byte[] encodeTrack() {
+		return Messages.track(mTrack);
+	}
+
+	@Benchmark
+	public byte[] encodeTrackBitmap() {
+		return Messages.track(mTrack, true);
+	}
+
+	/**
+	 * Cover art from the notification to what goes on the air.
+	 */
+	@Benchmark
+	public byte[] encodeArt() {
+		return ArtEncoder.compress(ArtEncoder.thumbnail(mCover, 300, 300));
+	}
+
+	/**
+	 * The common case: a notification arrives for the song that's
+	 * already playing, and nothing needs to go out.
+	 */
+	@Benchmark
+	public int diffUnchanged() {
+		return mDiff.update(64, true, true, mArtist, mTrack, mSink);
+	}
+
+	/**
+	 * Volume changes on every call, as when a button is held.
+	 */
+	@Benchmark
+	public int diffVolume() {
+		mVolume = (mVolume + 1) & 0x7F;
+		return mDiff.update(mVolume, true, true, mArtist, mTrack, mSink);
+	}
+
+	@Benchmark
+	public void chunk(Blackhole bh) {
+		for (int offset = 0; offset < mStream.length; offset += 20) {
+			bh.consume(Chunker.chunk(mStream, offset, 20));
+		}
+	}
+
+	@Benchmark
+	public long decode() {
+		mDecoder.feed(mStream);
+		return mSent;
+	}
+
+	/**
+	 * Parse latency on fragmented input: RX notifications split at
+	 * every possible point, down to a byte at a time.
+	 */
+	@State(Scope.Thread)
+	public static class Fragmented {
+		@Param({ "1", "3", "20" })
+		public int fragment;
+
+		byte[] mInput;
+		CommandParser mParser;
+		long mCommands;
+
+		@Setup
+		public void setup() {
+			mParser = new CommandParser(new CommandParser.Listener() {
+				public void onCommand(int command, byte[] args, int length) {
+					mCommands++;
+				}
+			});
+			// A command with arguments, so that fragments split
+			// commands as well as falling between them.
+			mParser.define('e', 3);
+
+			mInput = "VeAd1vxeAu2NPo".getBytes();
+		}
+	}
+
+	@Benchmark
+	public long parse(Fragmented state) {
+		byte[] input = state.mInput;
+		for (int offset = 0; offset < input.length; offset += state.fragment) {
+			state.mParser.feed(input, offset,
+							   Math.min(state.fragment, input.length - offset));
+		}
+		return state.mCommands;
+	}
+}
@@ -0,0 +1,89 @@
+package com.redbear.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of button presses to replay against a VirtualPeripheral.
+ *
+ * Scripts are whitespace separated command characters, each
+ * optionally followed by how long to hold it in ms and a repeat count,
+ * e.g. "V*10 v*10 x N:800 P". The presses are played back at a fixed
+ * rate, looping until told to stop. Hold times only matter when the
+ * remote sends raw press and release events.
+ */
+class ButtonScript {
+	final char[] mButtons;
+	/* In microseconds, or -1 for the peripheral's usual tap. */
+	final long[] mHolds;
+
+	ButtonScript(char[] buttons, long[] holds) {
+		mButtons = buttons;
+		mHolds = holds;
+	}
+
+	static ButtonScript parse(String script) {
+		List<Character> buttons = new ArrayList<Character>();
+		List<Long> holds = new ArrayList<Long>();
+		for (String token : script.trim().split("\\s+")) {
+			if (token.length() == 0) {
+				continue;
+			}
+			int repeat = 1;
+			int star = token.indexOf('*');
+			if (star > 0) {
+				repeat = Integer.parseInt(token.substring(star + 1));
+				token = token.substring(0, star);
+			}
+			long hold = -1;
+			int colon = token.indexOf(':');
+			if (colon > 0) {
+				hold = Long.parseLong(token.substring(colon + 1)) * 1000;
+				token = token.substring(0, colon);
+			}
+			if (token.length() != 1) {
+				throw new IllegalArgumentException("Bad script token: " + token);
+			}
+			for (int i = 0; i < repeat; i++) {
+				buttons.add(token.charAt(0));
+				holds.add(hold);
+			}
+		}
+
+		char[] result = new char[buttons.size()];
+		long[] resultHolds = new long[buttons.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = buttons.get(i);
+			resultHolds[i] = holds.get(i);
+		}
+		return new ButtonScript(result, resultHolds);
+	}
+
+	/**
+	 * Press the buttons in order at the given rate, from now until
+	 * the given time, starting over at the end of the script.
+	 */
+	void play(final Simulator sim, final VirtualPeripheral peripheral,
+			  double perSecond, final long until) {
+		if (mButtons.length == 0 || perSecond <= 0) {
+			return;
+		}
+		final long period = (long) (1000000 / perSecond);
+		sim.schedule(period, new Runnable() {
+			int mNext = 0;
+
+			public void run() {
+				if (sim.now() > until) {
+					return;
+				}
+				if (mHolds[mNext] < 0) {
+					peripheral.press(mButtons[mNext]);
+				} else {
+					peripheral.press(mButtons[mNext], mHolds[mNext]);
+				}
+				mNext = (mNext + 1) % mButtons.length;
+				sim.schedule(period, this);
+			}
+		});
+	}
+}
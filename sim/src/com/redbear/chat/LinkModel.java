@@ -0,0 +1,56 @@
+package com.redbear.chat;
+
+/**
+ * Radio characteristics for a SimulatedLink. The defaults are roughly
+ * what we see between a phone and a Blend Micro a metre or two apart.
+ * All times are in microseconds.
+ */
+class LinkModel {
+	/* Time from connect() to the link-layer connection. */
+	long connectDelay = 300000;
+
+	/* Time for service discovery and enabling notifications. */
+	long handshakeDelay = 400000;
+
+	/* BLE connection interval. Every packet waits for the next
+	 * connection event. */
+	long connectionInterval = 30000;
+
+	/* Extra random processing time, uniformly 0..jitter. */
+	long jitter = 2000;
+
+	/* Largest value a single write can carry (ATT MTU - 3). */
+	int mtu = 20;
+
+	/* Chance that any one transmission attempt of a full-size
+	 * packet is lost and has to be retried at the next connection
+	 * event. Shorter packets spend less time on air and are lost
+	 * proportionally less often. */
+	double lossRate = 0.0;
+
+	/* Link-layer and L2CAP/ATT header bytes that go out with every
+	 * packet, whatever its payload. */
+	int packetOverhead = 14;
+
+	/* Chance that a write is acknowledged with an error status
+	 * rather than success. */
+	double writeErrorRate = 0.0;
+
+	/* Consecutive lost attempts before the supervision timeout drops
+	 * the link. */
+	int supervisionLimit = 20;
+
+	/* Mean time between spontaneous disconnects, or 0 for never. */
+	long meanTimeBetweenDrops = 0;
+
+	/* How long the link stays down after a drop before it comes
+	 * back by itself. */
+	long reconnectDelay = 1000000;
+
+	/* Signal strength reported by readRssi(). */
+	int rssi = -60;
+
+	/* Whether the remote has the remote profile, with a
+	 * characteristic per kind of message, or only the shield UART. */
+	boolean channels = true;
+}
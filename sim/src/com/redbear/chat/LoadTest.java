@@ -0,0 +1,342 @@
+package com.redbear.chat;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs RemoteConnection and ConnectionPool against simulated remotes
+ * and prints a report. For example, 50 button presses a second on each
+ * of two remotes while the track changes every 200ms, over a lossy
+ * link:
+ *
+ *   java com.redbear.chat.LoadTest --remotes 2 --rate 50 \
+ *       --meta-interval 200 --loss 0.05 --duration 60
+ *
+ * With --max-echo-p99 the run fails (exit status 1) if the 99th
+ * percentile time from a volume press to the remote seeing the new
+ * volume exceeds the given number of milliseconds, so it can gate a
+ * build. It always fails if metadata is on and a remote got no artist
+ * or track at all. With --capture the run is recorded in the same format as the
+ * app's ACTION_CAPTURE, for ReplayCapture or as a regression corpus.
+ * --profile uart simulates a remote with only the BLE Shield UART
+ * instead of the remote profile, and --bitmaps true sends artist and
+ * track pre-rendered. --raw-events true has the remotes send press
+ * and release events for the phone to recognise gestures in, rather
+ * than commands; hold times in the script ("N:800") then take effect.
+ * --seek-interval seeks at random every so many ms, and reports how
+ * far the remotes' positions were off. --browse has each remote
+ * scroll a page down the play queue every so many ms. --art true
+ * sends cover art with each track, three tracks to an album and six
+ * albums round and round.
+ */
+public class LoadTest {
+	int mRemotes = 1;
+	double mRate = 50;
+	String mScript = "V*5 v*5 x N P";
+	long mMetaInterval = 500;
+	long mDuration = 60;
+	long mSeed = 1;
+	double mMaxEchoP99 = 0;
+	String mCaptureFile = null;
+	boolean mBitmaps = false;
+	boolean mRawEvents = false;
+	long mSeekInterval = 0;
+	long mBrowseInterval = 0;
+	boolean mArt = false;
+	final Stats mPositionError = new Stats();
+	final TrafficCapture mCapture = new TrafficCapture();
+	final LinkModel mModel = new LinkModel();
+
+	Simulator mSim;
+	SimHost mHost;
+	SimulatedLink[] mLinks;
+	VirtualPeripheral[] mPeripherals;
+
+	public static void main(String[] args) throws IOException {
+		LoadTest test = new LoadTest();
+		test.parse(args);
+		test.run();
+		System.exit(test.report() ? 0 : 1);
+	}
+
+	void parse(String[] args) {
+		for (int i = 0; i < args.length; i += 2) {
+			String name = args[i];
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + name);
+			}
+			String value = args[i + 1];
+			if (name.equals("--remotes")) {
+				mRemotes = Integer.parseInt(value);
+			} else if (name.equals("--rate")) {
+				mRate = Double.parseDouble(value);
+			} else if (name.equals("--script")) {
+				mScript = value;
+			} else if (name.equals("--meta-interval")) {
+				mMetaInterval = Long.parseLong(value);
+			} else if (name.equals("--duration")) {
+				mDuration = Long.parseLong(value);
+			} else if (name.equals("--seed")) {
+				mSeed = Long.parseLong(value);
+			} else if (name.equals("--loss")) {
+				mModel.lossRate = Double.parseDouble(value);
+			} else if (name.equals("--write-errors")) {
+				mModel.writeErrorRate = Double.parseDouble(value);
+			} else if (name.equals("--rssi")) {
+				mModel.rssi = Integer.parseInt(value);
+			} else if (name.equals("--interval")) {
+				mModel.connectionInterval = Long.parseLong(value) * 1000;
+			} else if (name.equals("--mtu")) {
+				mModel.mtu = Integer.parseInt(value);
+			} else if (name.equals("--mtbf")) {
+				mModel.meanTimeBetweenDrops = Long.parseLong(value) * 1000000;
+			} else if (name.equals("--seek-interval")) {
+				mSeekInterval = Long.parseLong(value);
+			} else if (name.equals("--art")) {
+				mArt = Boolean.parseBoolean(value);
+			} else if (name.equals("--browse")) {
+				mBrowseInterval = Long.parseLong(value);
+			} else if (name.equals("--raw-events")) {
+				mRawEvents = Boolean.parseBoolean(value);
+			} else if (name.equals("--bitmaps")) {
+				mBitmaps = Boolean.parseBoolean(value);
+			} else if (name.equals("--profile")) {
+				if (value.equals("remote")) {
+					mModel.channels = true;
+				} else if (value.equals("uart")) {
+					mModel.channels = false;
+				} else {
+					throw new IllegalArgumentException("Unknown profile " + value);
+				}
+			} else if (name.equals("--capture")) {
+				mCaptureFile = value;
+			} else if (name.equals("--max-echo-p99")) {
+				mMaxEchoP99 = Double.parseDouble(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + name);
+			}
+		}
+	}
+
+	void run() throws IOException {
+		if (mCaptureFile != null) {
+			mCapture.start(new File(mCaptureFile));
+		}
+
+		mSim = new Simulator(mSeed);
+		mHost = new SimHost(mSim);
+		mHost.mBitmaps = mBitmaps;
+		mLinks = new SimulatedLink[mRemotes];
+		mPeripherals = new VirtualPeripheral[mRemotes];
+
+		final long end = mDuration * 1000000;
+		ButtonScript script = ButtonScript.parse(mScript);
+
+		for (int i = 0; i < mRemotes; i++) {
+			String address = String.format("00:00:00:00:00:%02X", i);
+			mPeripherals[i] = new VirtualPeripheral(mSim, address);
+			mPeripherals[i].mRawEvents = mRawEvents;
+			mLinks[i] = new SimulatedLink(mSim, mModel, mPeripherals[i]);
+			RemoteConnection connection = new RemoteConnection(
+				mHost, address, new CapturingLink(mLinks[i], mCapture, address));
+			connection.mCapture = mCapture;
+			connection.mGestures = mHost.gestureRecognizer(connection);
+			mHost.mPool.put(connection);
+			connection.connect();
+			script.play(mSim, mPeripherals[i], mRate, end);
+		}
+
+		if (mMetaInterval > 0) {
+			final long period = mMetaInterval * 1000;
+			mSim.schedule(period, new Runnable() {
+				int mTrack = 0;
+
+				public void run() {
+					if (mSim.now() > end) {
+						return;
+					}
+					mTrack++;
+					mHost.sendTrack("Artist number " + mTrack,
+									"Track number " + mTrack,
+									(120 + mSim.random().nextInt(240)) * 1000);
+					if (mArt) {
+						mHost.sendArt(mTrack / 3 % 6);
+					}
+					mSim.schedule(period, this);
+				}
+			});
+		}
+
+		if (mSeekInterval > 0) {
+			final long period = mSeekInterval * 1000;
+			mSim.schedule(period, new Runnable() {
+				public void run() {
+					if (mSim.now() > end) {
+						return;
+					}
+					mHost.seek(mSim.random().nextInt(120000));
+					mSim.schedule(period, this);
+				}
+			});
+		}
+
+		if (mBrowseInterval > 0) {
+			final long period = mBrowseInterval * 1000;
+			// Off the metadata ticks, or every page request would
+			// land just after a queue change and replace it.
+			mSim.schedule(period + period / 2, new Runnable() {
+				public void run() {
+					if (mSim.now() > end) {
+						return;
+					}
+					for (VirtualPeripheral p : mPeripherals) {
+						p.browse();
+					}
+					mSim.schedule(period, this);
+				}
+			});
+		}
+
+		// How far off each remote's position is, four times a second,
+		// offset so as not to land on the same instant as every seek.
+		mSim.schedule(137000, new Runnable() {
+			public void run() {
+				if (mSim.now() > end) {
+					return;
+				}
+				for (VirtualPeripheral p : mPeripherals) {
+					if (p.mPositionSeq >= 0 && p.mLink.mUp) {
+						long error = p.position() - mHost.trackPosition();
+						mPositionError.add(Math.abs(error) * 1000);
+					}
+				}
+				mSim.schedule(250000, this);
+			}
+		});
+
+		mSim.runUntil(end);
+		mCapture.stop();
+	}
+
+	/**
+	 * Print the report, and return false if a threshold was missed.
+	 */
+	boolean report() {
+		System.out.println(String.format(
+			"%d remote(s), %.0f presses/s, metadata every %d ms, %d s, loss %.3f, %s profile",
+			mRemotes, mRate, mMetaInterval, mDuration, mModel.lossRate,
+			mModel.channels ? "remote" : "uart"));
+		System.out.println("host: input bytes " + mHost.mInputBytes +
+						   ", media commands " + mHost.mMediaCommands +
+						   ", holds " + mHost.mHolds +
+						   ", ready " + mHost.mReady +
+						   ", disconnects " + mHost.mDisconnects);
+		System.out.println("scheduler: wakeups " + mHost.mScheduler.mWakeups +
+						   ", task runs " + mHost.mScheduler.mRuns);
+
+		Stats echo = new Stats();
+		for (int i = 0; i < mRemotes; i++) {
+			SimulatedLink link = mLinks[i];
+			VirtualPeripheral p = mPeripherals[i];
+			RemoteConnection connection = mHost.mPool.get(p.mAddress);
+			System.out.println(p.mAddress + ":");
+			System.out.println(String.format(
+				"  link %s, rssi %.1f, write errors %d, abandoned messages %d",
+				LinkQuality.NAMES[connection.mQuality.level()],
+				connection.mQuality.rssi(), link.mWriteErrors,
+				connection.mAbandoned));
+			System.out.println(String.format(
+				"  writes %d, %d bytes, %.0f B/s, drops %d, lost notifications %d",
+				link.mWrites, link.mBytesWritten,
+				link.mBytesWritten / (double) mDuration,
+				link.mDrops, link.mLostNotifications));
+			System.out.println("  write latency " + link.mWriteLatency.summary());
+			System.out.println("  presses " + p.mPresses +
+							   " (dropped " + p.mDroppedPresses + ")" +
+							   ", volume updates " + p.mVolumeUpdates +
+							   ", text updates " + p.mTextUpdates +
+							   ", bad bytes " + p.badBytes());
+			System.out.println("  volume echo " + p.mVolumeEchoLatency.summary());
+			if (mArt) {
+				System.out.println("  art changes " + p.mArtChanges +
+								   ", cached " + p.mArtHits +
+								   ", received " + p.mArtReceived +
+								   " (resumed " + p.mArtResumes +
+								   ", bad " + p.mArtBad + ")" +
+								   ", latency " + p.mArtLatency.summary());
+			}
+			if (p.mPages > 0) {
+				System.out.println("  queue pages " + p.mPages +
+								   " (" + p.mQueueItems + " items)" +
+								   ", changes " + p.mQueueChanges +
+								   ", latency " + p.mPageLatency.summary());
+			}
+			for (int j = 0; j < p.mVolumeEchoLatency.count(); j++) {
+				echo.add(p.mVolumeEchoLatency.mSamples[j]);
+			}
+		}
+
+		long positionBytes = 0;
+		for (int i = 0; i < mHost.mPositionSizes.count(); i++) {
+			positionBytes += mHost.mPositionSizes.mSamples[i];
+		}
+		System.out.println(String.format(
+			"position: %d p, %d q, %.0f B/min (busiest minute %d, budget %d)",
+			mHost.mPositions.mPositions, mHost.mPositions.mCorrections,
+			positionBytes * 60.0 / mDuration, busiestMinute(),
+			PositionStreamer.BUDGET));
+		System.out.println("  position error " + mPositionError.summary());
+		if (mArt) {
+			ArtStreamer art = mHost.mArt;
+			System.out.println(String.format(
+				"art: %d requests, %d segments, %d bytes (%.0f B/min)",
+				art.mRequests, art.mSegments, art.mBytes,
+				art.mBytes * 60.0 / mDuration));
+		}
+		if (mBrowseInterval > 0) {
+			QueuePager q = mHost.mQueue;
+			System.out.println(String.format(
+				"queue: %d items, %d changes, pages %d hits, %d misses, %d items read, %d fetches, %d pages held (max %d)",
+				q.size(), mHost.mQueueChanges, q.mHits, q.mMisses,
+				q.mItemsRead, mHost.mPlayQueue.mFetches, q.mPages.size(),
+				QueuePager.MAX_PAGES));
+		}
+
+		boolean passed = true;
+		double p99 = echo.percentile(0.99) / 1000.0;
+		System.out.println("volume echo, all remotes: " + echo.summary());
+		if (mMaxEchoP99 > 0 && p99 > mMaxEchoP99) {
+			System.out.println(String.format(
+				"FAIL: volume echo p99 %.1f ms > %.1f ms", p99, mMaxEchoP99));
+			passed = false;
+		}
+		if (mMetaInterval > 0 && mMetaInterval * 1000 < mDuration * 1000000) {
+			for (VirtualPeripheral p : mPeripherals) {
+				if (p.mTextUpdates == 0) {
+					System.out.println("FAIL: " + p.mAddress + " got no text updates");
+					passed = false;
+				}
+			}
+		}
+		return passed;
+	}
+
+	/**
+	 * Most position bytes sent in any 60 s window.
+	 */
+	long busiestMinute() {
+		Stats times = mHost.mPositionTimes;
+		Stats sizes = mHost.mPositionSizes;
+		long most = 0;
+		long bytes = 0;
+		int first = 0;
+		for (int i = 0; i < times.count(); i++) {
+			bytes += sizes.mSamples[i];
+			while (times.mSamples[i] - times.mSamples[first] >= 60000000) {
+				bytes -= sizes.mSamples[first++];
+			}
+			most = Math.max(most, bytes);
+		}
+		return most;
+	}
+}
@@ -0,0 +1,53 @@
+package com.redbear.chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Prints a trace dump from the phone, one event per line, with times
+ * in microseconds since the first event:
+ *
+ *   java com.redbear.chat.PrintTrace trace.bin
+ */
+public class PrintTrace {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: PrintTrace <trace file>");
+			System.exit(2);
+		}
+
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(args[0])));
+		try {
+			byte[] magic = new byte[Trace.MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, Trace.MAGIC)) {
+				throw new IOException("Not a trace file");
+			}
+			int version = in.readUnsignedByte();
+			if (version != Trace.VERSION) {
+				throw new IOException("Unknown trace version: " + version);
+			}
+
+			int count = in.readInt();
+			long first = 0;
+			for (int i = 0; i < count; i++) {
+				int event = in.readByte();
+				long time = in.readLong();
+				int a = in.readInt();
+				int b = in.readInt();
+				if (i == 0) {
+					first = time;
+				}
+				System.out.printf("%10d  %-12s %d %d%n",
+								  (time - first) / 1000, Trace.name(event),
+								  a, b);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.redbear.chat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Replays a capture file through RemoteConnection and SimHost and
+ * prints how closely the writes match the original run:
+ *
+ *   java com.redbear.chat.ReplayCapture capture.bin
+ *
+ * Input from the remotes goes to a SimHost, while the connections
+ * resend exactly what the capture says was queued, so captures from
+ * the app and from LoadTest --capture should both replay exactly.
+ * Exits with status 1 if any write differs.
+ */
+public class ReplayCapture {
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: ReplayCapture <capture file>");
+			System.exit(2);
+		}
+
+		SimHost host = new SimHost(new Simulator(0));
+		CaptureReader reader = new CaptureReader(new FileInputStream(args[0]));
+		CaptureReplayer.Result result;
+		try {
+			result = new CaptureReplayer(host).replay(reader);
+		} finally {
+			reader.close();
+		}
+
+		System.out.println(result);
+		System.out.println("host: input bytes " + host.mInputBytes +
+						   ", media commands " + host.mMediaCommands);
+		System.exit(result.mismatches == 0 ? 0 : 1);
+	}
+}
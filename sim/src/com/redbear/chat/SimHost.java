@@ -0,0 +1,253 @@
+package com.redbear.chat;
+
+import java.util.Random;
+
+import com.redbear.chat.protocol.ArtEncoder;
+import com.redbear.chat.protocol.Messages;
+import com.redbear.chat.protocol.StateDiff;
+
+/**
+ * A minimal stand-in for RBLService: owns the connection pool, reacts
+ * to button presses the way the service does, and echoes state back
+ * to every remote.
+ */
+class SimHost implements RemoteConnection.Host {
+	/* Same step as RBLService.VOLUME_DELTA. */
+	static final int VOLUME_DELTA = 1;
+	/* Same as RBLService.PLAYLIST_SKIP. */
+	static final int PLAYLIST_SKIP = 5;
+
+	final Simulator mSim;
+	final ConnectionPool mPool = new ConnectionPool();
+	final VirtualScheduler mScheduler;
+
+	byte mVolume = 64;
+	boolean mPlaying = true;
+	boolean mOnline = true;
+	/* Send artist and track pre-rendered, as RBLService can. */
+	boolean mBitmaps = false;
+
+	/* The player: at mTrackTime (scheduler ms) it was at
+	 * mTrackPosition, and it's been running since if mPlaying. */
+	long mTrackPosition = 0;
+	long mTrackTime = 0;
+	final PositionStreamer mPositions;
+	/* When each position message went out, and its size, so the
+	 * report can check the budget. */
+	final Stats mPositionTimes = new Stats();
+	final Stats mPositionSizes = new Stats();
+
+	/* A 500 track playlist, moving on a track each sendTrack(). */
+	final PlayQueue mPlayQueue = new PlayQueue(500);
+	final QueuePager mQueue = new QueuePager(mPlayQueue);
+	long mQueueChanges = 0;
+
+	final ArtStreamer mArt = new ArtStreamer(mPool);
+
+	/* Counters for the load test report. */
+	long mInputBytes = 0;
+	long mMediaCommands = 0;
+	long mHolds = 0;
+	long mReady = 0;
+	long mDisconnects = 0;
+
+	SimHost(Simulator sim) {
+		mSim = sim;
+		mScheduler = new VirtualScheduler(sim);
+		mPositions = new PositionStreamer(mScheduler, new StateDiff.Sink() {
+			public void send(int type, byte[] message) {
+				mPositionTimes.add(mSim.now());
+				mPositionSizes.add(message.length);
+				mPool.broadcast(type, message);
+			}
+		});
+	}
+
+	public void onRemoteConnecting(RemoteConnection connection) {
+	}
+
+	public void onRemoteReady(RemoteConnection connection) {
+		mReady++;
+		connection.startSampling(mScheduler);
+		connection.send(Messages.PLAYING, Messages.playing(mPlaying));
+		mPositions.resync();
+		mArt.resync();
+	}
+
+	public void onRemoteDisconnected(RemoteConnection connection) {
+		mDisconnects++;
+		mArt.forget(connection);
+	}
+
+	public void onRemoteRssi(RemoteConnection connection, int rssi) {
+	}
+
+	public void onRemoteInput(RemoteConnection connection, byte[] value) {
+		mInputBytes += value.length;
+	}
+
+	public void onRemoteCommand(RemoteConnection connection, int command,
+								byte[] args, int length) {
+		switch (command) {
+		case 'o':
+			mOnline = !mOnline;
+			mPool.broadcast(Messages.NETWORK, Messages.network(mOnline));
+			break;
+		case 'x':
+			mTrackPosition = trackPosition();
+			mTrackTime = mScheduler.now();
+			mPlaying = !mPlaying;
+			mPool.broadcast(Messages.PLAYING, Messages.playing(mPlaying));
+			mPositions.setPosition(mTrackPosition, mPlaying);
+			mMediaCommands++;
+			break;
+		case 'P':
+		case 'N':
+			mMediaCommands++;
+			break;
+		case 'v':
+			mVolume = (byte) Math.max(0, mVolume - VOLUME_DELTA);
+			mPool.broadcast(Messages.VOLUME, Messages.volume(mVolume));
+			break;
+		case 'V':
+			mVolume = (byte) Math.min(127, mVolume + VOLUME_DELTA);
+			mPool.broadcast(Messages.VOLUME, Messages.volume(mVolume));
+			break;
+		case 'g':
+			int index = ((args[0] & 0xFF) << 8) | (args[1] & 0xFF);
+			connection.send(Messages.QUEUE, mQueue.page(index, args[2] & 0xFF));
+			break;
+		case 'r':
+			int hash = ((args[0] & 0xFF) << 24) | ((args[1] & 0xFF) << 16) |
+				((args[2] & 0xFF) << 8) | (args[3] & 0xFF);
+			mArt.request(connection, hash, ((args[4] & 0xFF) << 8) | (args[5] & 0xFF));
+			break;
+		}
+	}
+
+	public void onRemoteSent(RemoteConnection connection, int type) {
+		mArt.onSent(connection, type);
+	}
+
+	/**
+	 * Gestures set up the way RBLService does them. Holds are only
+	 * counted; a double tap on next or previous skips the rest of
+	 * PLAYLIST_SKIP, and everything else acts as the plain command.
+	 */
+	GestureRecognizer gestureRecognizer(final RemoteConnection connection) {
+		GestureRecognizer gestures = new GestureRecognizer(
+			mScheduler, new GestureRecognizer.Listener() {
+				public void onGesture(int button, int gesture, long start) {
+					if (gesture == GestureRecognizer.HOLD) {
+						mHolds++;
+					} else if (gesture == GestureRecognizer.DOUBLE_TAP &&
+							   (button == 'N' || button == 'P')) {
+						for (int i = 1; i < PLAYLIST_SKIP; i++) {
+							onRemoteCommand(connection, button, null, 0);
+						}
+					} else {
+						onRemoteCommand(connection, button, null, 0);
+					}
+				}
+			});
+		gestures.setMode('v', GestureRecognizer.MODE_REPEAT);
+		gestures.setMode('V', GestureRecognizer.MODE_REPEAT);
+		gestures.setMode('N', GestureRecognizer.MODE_HOLD);
+		gestures.setMode('P', GestureRecognizer.MODE_HOLD);
+		gestures.setDoubleTap('N', true);
+		gestures.setDoubleTap('P', true);
+		return gestures;
+	}
+
+	void sendTrack(String artist, String track, long length) {
+		mPool.broadcast(Messages.ARTIST, Messages.artist(artist, mBitmaps));
+		mPool.broadcast(Messages.TRACK, Messages.track(track, mBitmaps));
+		mTrackPosition = 0;
+		mTrackTime = mScheduler.now();
+		mPositions.setTrack(length);
+		mPositions.setPosition(0, mPlaying);
+		mPlayQueue.mHead++;
+		// As RBLService.queueChanged().
+		int first = mQueue.invalidate();
+		if (first >= 0) {
+			mQueueChanges++;
+			mPool.broadcast(Messages.QUEUE,
+							Messages.queueChanged(first, mQueue.size()));
+		}
+	}
+
+	void seek(long position) {
+		mTrackPosition = position;
+		mTrackTime = mScheduler.now();
+		mPositions.setPosition(position, mPlaying);
+	}
+
+	/**
+	 * Show the cover of the given album, made up on the spot the way
+	 * ArtLoader would encode a real one.
+	 */
+	void sendArt(int album) {
+		int size = 240;
+		int[] cover = new int[size * size];
+		Random random = new Random(album);
+		int background = random.nextInt(0x1000000);
+		for (int i = 0; i < cover.length; i++) {
+			cover[i] = background;
+		}
+		for (int shape = 0; shape < 4; shape++) {
+			int color = random.nextInt(0x1000000);
+			int x0 = random.nextInt(size);
+			int y0 = random.nextInt(size);
+			int r = 20 + random.nextInt(60);
+			for (int y = Math.max(0, y0 - r); y < Math.min(size, y0 + r); y++) {
+				for (int x = Math.max(0, x0 - r); x < Math.min(size, x0 + r); x++) {
+					if ((x - x0) * (x - x0) + (y - y0) * (y - y0) < r * r) {
+						cover[y * size + x] = color;
+					}
+				}
+			}
+		}
+		byte[] bits = ArtEncoder.thumbnail(cover, size, size);
+		int hash = ArtEncoder.hash(bits);
+		mArt.setArt(hash, mArt.has(hash) ? null : ArtEncoder.compress(bits));
+	}
+
+	long trackPosition() {
+		return mTrackPosition + (mPlaying ? mScheduler.now() - mTrackTime : 0);
+	}
+
+	/**
+	 * What's left of a playlist: tracks mHead on, each with its number
+	 * as the id.
+	 */
+	static class PlayQueue implements QueuePager.Source {
+		final int mLength;
+		int mHead = 0;
+
+		/* How many times QueuePager has fetched the queue. */
+		long mFetches = 0;
+
+		PlayQueue(int length) {
+			mLength = length;
+		}
+
+		public void fetch() {
+			mFetches++;
+		}
+
+		public int size() {
+			return Math.max(0, mLength - mHead);
+		}
+
+		public int read(int index, int count, long[] ids, String[] titles) {
+			int n = Math.max(0, Math.min(count, size() - index));
+			for (int i = 0; i < n; i++) {
+				ids[i] = mHead + index + i;
+				if (titles != null) {
+					titles[i] = "Queued track " + ids[i];
+				}
+			}
+			return n;
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.redbear.chat;
+
+import java.util.UUID;
+
+/**
+ * A GattLink that talks to a VirtualPeripheral through a Simulator
+ * instead of the radio.
+ *
+ * Every packet waits for the next connection event. Lost attempts are
+ * retried one connection interval later, as the link layer would, and
+ * too many in a row drop the link the way a supervision timeout does.
+ * Like connectGatt(..., autoConnect = true), a dropped link comes back
+ * by itself after LinkModel.reconnectDelay unless it was disconnected
+ * on purpose.
+ */
+class SimulatedLink implements GattLink {
+	final Simulator mSim;
+	final LinkModel mModel;
+	final VirtualPeripheral mPeripheral;
+	Callback mCallback;
+
+	boolean mUp = false;
+	boolean mConnecting = false;
+	boolean mClosed = false;
+	boolean mWriting = false;
+
+	/* Bumped on every disconnect, so that events scheduled for an
+	 * older connection are ignored when they fire. */
+	int mEpoch = 0;
+
+	/* Counters for the load test report. */
+	long mWrites = 0;
+	long mWriteErrors = 0;
+	long mBytesWritten = 0;
+	long mDrops = 0;
+	long mLostNotifications = 0;
+	final Stats mWriteLatency = new Stats();
+
+	SimulatedLink(Simulator sim, LinkModel model, VirtualPeripheral peripheral) {
+		mSim = sim;
+		mModel = model;
+		mPeripheral = peripheral;
+		peripheral.attach(this);
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	public boolean connect() {
+		if (mClosed) {
+			return false;
+		}
+		if (mUp || mConnecting) {
+			return true;
+		}
+
+		mConnecting = true;
+		final int epoch = mEpoch;
+		mSim.schedule(mModel.connectDelay, new Runnable() {
+			public void run() {
+				if (epoch != mEpoch) {
+					return;
+				}
+				mCallback.onConnected();
+				mSim.schedule(mModel.handshakeDelay, new Runnable() {
+					public void run() {
+						if (epoch != mEpoch) {
+							return;
+						}
+						mConnecting = false;
+						mUp = true;
+						mCallback.onServices(layout());
+						mPeripheral.onConnected();
+						mCallback.onReady();
+						scheduleRandomDrop();
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	public void disconnect() {
+		drop(false);
+	}
+
+	public void close() {
+		mClosed = true;
+		drop(false);
+	}
+
+	public int maxWriteSize() {
+		return mModel.mtu;
+	}
+
+	public boolean hasChannels() {
+		return mModel.channels;
+	}
+
+	UUID[] layout() {
+		String[] uuids = mModel.channels ? new String[] {
+			RBLGattAttributes.REMOTE_VOLUME,
+			RBLGattAttributes.REMOTE_STATE,
+			RBLGattAttributes.REMOTE_METADATA,
+			RBLGattAttributes.REMOTE_INPUT
+		} : new String[] {
+			RBLGattAttributes.BLE_SHIELD_TX,
+			RBLGattAttributes.BLE_SHIELD_RX
+		};
+		UUID[] layout = new UUID[uuids.length];
+		for (int i = 0; i < uuids.length; i++) {
+			layout[i] = UUID.fromString(uuids[i]);
+		}
+		return layout;
+	}
+
+	public boolean write(int type, final byte[] chunk) {
+		if (!mUp || mWriting) {
+			return false;
+		}
+
+		long delay = transmitDelay(chunk.length);
+		if (delay < 0) {
+			dropLater();
+			return true;
+		}
+
+		mWriting = true;
+		final int epoch = mEpoch;
+		final long start = mSim.now();
+		final String characteristic = mModel.channels ?
+			RBLGattAttributes.characteristicFor(type) :
+			RBLGattAttributes.BLE_SHIELD_TX;
+		mSim.schedule(delay, new Runnable() {
+			public void run() {
+				if (epoch != mEpoch) {
+					return;
+				}
+				mPeripheral.receive(characteristic, chunk);
+				// The write response goes out on the following
+				// connection event.
+				mSim.schedule(mModel.connectionInterval, new Runnable() {
+					public void run() {
+						if (epoch != mEpoch) {
+							return;
+						}
+						mWriting = false;
+						if (mSim.random().nextDouble() < mModel.writeErrorRate) {
+							mWriteErrors++;
+							mCallback.onWriteComplete(false);
+							return;
+						}
+						mWrites++;
+						mBytesWritten += chunk.length;
+						mWriteLatency.add(mSim.now() - start);
+						mCallback.onWriteComplete(true);
+					}
+				});
+			}
+		});
+		return true;
+	}
+
+	public void readRssi() {
+		if (!mUp) {
+			return;
+		}
+		final int epoch = mEpoch;
+		mSim.schedule(mModel.connectionInterval, new Runnable() {
+			public void run() {
+				if (epoch == mEpoch) {
+					mCallback.onRssi(mModel.rssi + mSim.random().nextInt(5) - 2);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called by the peripheral to send a notification on RX, or its
+	 * input characteristic.
+	 */
+	void notify(final byte[] value) {
+		if (!mUp) {
+			mLostNotifications++;
+			return;
+		}
+
+		long delay = transmitDelay(value.length);
+		if (delay < 0) {
+			mLostNotifications++;
+			dropLater();
+			return;
+		}
+
+		final int epoch = mEpoch;
+		mSim.schedule(delay, new Runnable() {
+			public void run() {
+				if (epoch == mEpoch) {
+					mCallback.onNotification(value);
+				} else {
+					mLostNotifications++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Time until a packet with the given payload sent now gets
+	 * through, or -1 if the supervision timeout would drop the link
+	 * first.
+	 */
+	long transmitDelay(int length) {
+		long interval = mModel.connectionInterval;
+		long delay = interval - (mSim.now() % interval);
+		double airtime = (double) (length + mModel.packetOverhead) /
+			(mModel.mtu + mModel.packetOverhead);
+		double loss = 1 - Math.pow(1 - mModel.lossRate, airtime);
+		int lost = 0;
+		while (mSim.random().nextDouble() < loss) {
+			if (++lost > mModel.supervisionLimit) {
+				return -1;
+			}
+			delay += interval;
+		}
+		if (mModel.jitter > 0) {
+			delay += (long) (mSim.random().nextDouble() * mModel.jitter);
+		}
+		return delay;
+	}
+
+	void scheduleRandomDrop() {
+		if (mModel.meanTimeBetweenDrops <= 0) {
+			return;
+		}
+		final int epoch = mEpoch;
+		long delay = (long) (-Math.log(1.0 - mSim.random().nextDouble())
+							 * mModel.meanTimeBetweenDrops);
+		mSim.schedule(delay, new Runnable() {
+			public void run() {
+				if (epoch == mEpoch) {
+					drop(true);
+				}
+			}
+		});
+	}
+
+	void dropLater() {
+		final int epoch = mEpoch;
+		mSim.schedule(mModel.connectionInterval * mModel.supervisionLimit,
+					  new Runnable() {
+			public void run() {
+				if (epoch == mEpoch) {
+					drop(true);
+				}
+			}
+		});
+	}
+
+	void drop(boolean reconnect) {
+		boolean wasUp = mUp || mConnecting;
+		mEpoch++;
+		mUp = false;
+		mConnecting = false;
+		mWriting = false;
+		if (!wasUp) {
+			return;
+		}
+
+		mDrops++;
+		mPeripheral.onDisconnected();
+		mCallback.onDisconnected();
+
+		if (reconnect && !mClosed) {
+			mSim.schedule(mModel.reconnectDelay, new Runnable() {
+				public void run() {
+					connect();
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.redbear.chat;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A single-threaded discrete event loop with a virtual clock.
+ *
+ * Everything in the simulation (the links, the peripherals, the
+ * button scripts) schedules Runnables here, and run() executes them in
+ * time order. Time only moves when an event fires, so a minute of
+ * simulated traffic takes as long as the work it does. All times are
+ * in microseconds.
+ */
+class Simulator {
+	static class Event implements Comparable<Event> {
+		final long time;
+		final long seq;
+		final Runnable task;
+
+		Event(long time, long seq, Runnable task) {
+			this.time = time;
+			this.seq = seq;
+			this.task = task;
+		}
+
+		public int compareTo(Event other) {
+			if (time != other.time) {
+				return time < other.time ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+	}
+
+	final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+	final Random mRandom;
+	long mNow = 0;
+	long mSeq = 0;
+
+	Simulator(long seed) {
+		mRandom = new Random(seed);
+	}
+
+	long now() {
+		return mNow;
+	}
+
+	Random random() {
+		return mRandom;
+	}
+
+	void schedule(long delay, Runnable task) {
+		mEvents.add(new Event(mNow + Math.max(0, delay), mSeq++, task));
+	}
+
+	/**
+	 * Run events until the queue is empty or the clock passes the
+	 * given time.
+	 */
+	void runUntil(long time) {
+		while (!mEvents.isEmpty() && mEvents.peek().time <= time) {
+			Event event = mEvents.poll();
+			mNow = event.time;
+			event.task.run();
+		}
+		mNow = Math.max(mNow, time);
+	}
+}
@@ -0,0 +1,53 @@
+package com.redbear.chat;
+
+import java.util.Arrays;
+
+/**
+ * Collects samples for the load test report. Unlike the histograms
+ * the app uses, this keeps every sample, which is fine for a run on a
+ * build box and gives exact percentiles.
+ */
+class Stats {
+	long[] mSamples = new long[1024];
+	int mCount = 0;
+
+	void add(long sample) {
+		if (mCount == mSamples.length) {
+			mSamples = Arrays.copyOf(mSamples, mCount * 2);
+		}
+		mSamples[mCount++] = sample;
+	}
+
+	int count() {
+		return mCount;
+	}
+
+	/**
+	 * The sample at the given fraction (0..1) of the sorted samples.
+	 */
+	long percentile(double p) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(mSamples, mCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(p * mCount) - 1;
+		return sorted[Math.max(0, Math.min(mCount - 1, index))];
+	}
+
+	long max() {
+		return percentile(1.0);
+	}
+
+	/**
+	 * Percentiles in milliseconds, e.g. "p50 12.1 p99 40.3 max 61.0".
+	 */
+	String summary() {
+		return String.format("n %d p50 %.1f p90 %.1f p99 %.1f max %.1f ms",
+							 mCount,
+							 percentile(0.50) / 1000.0,
+							 percentile(0.90) / 1000.0,
+							 percentile(0.99) / 1000.0,
+							 max() / 1000.0);
+	}
+}
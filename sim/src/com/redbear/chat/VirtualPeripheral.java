@@ -0,0 +1,342 @@
+package com.redbear.chat;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.redbear.chat.protocol.ArtEncoder;
+import com.redbear.chat.protocol.MessageDecoder;
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * Stands in for the remote's firmware: decodes the streams the phone
+ * writes to TX or the remote profile characteristics, keeps track of
+ * what the remote would be showing, and sends button presses back.
+ */
+class VirtualPeripheral implements MessageDecoder.Listener {
+	final Simulator mSim;
+	final String mAddress;
+	SimulatedLink mLink;
+	/* One per characteristic, since each is its own stream. */
+	final HashMap<String, MessageDecoder> mDecoders =
+		new HashMap<String, MessageDecoder>();
+
+	/* What the remote is displaying. */
+	int mVolume = -1;
+	boolean mPlaying = false;
+	boolean mOnline = true;
+	String mArtist = "";
+	String mTrack = "";
+
+	/* The playback position the remote would show: from a p with
+	 * sequence mPositionSeq (-1 before the first), run forward while
+	 * playing, plus a correction. In ms. */
+	int mPositionSeq = -1;
+	long mAnchor;
+	long mAnchorTime;
+	int mCorrection;
+
+	/* The page of the play queue on screen: from mQueueIndex, of a
+	 * queue mQueueTotal long, asked for at mPageRequested (or -1). */
+	int mQueueIndex = 0;
+	int mQueueTotal = -1;
+	long mPageRequested = -1;
+	final Stats mPageLatency = new Stats();
+	long mPages = 0;
+	long mQueueItems = 0;
+	long mQueueChanges = 0;
+
+	/* Cover art: the last few thumbnails by hash, the one on screen,
+	 * and the one coming in, kept across disconnects as far as
+	 * mArtHave. */
+	static final int MAX_ART = 8;
+	final LinkedHashMap<Integer, byte[]> mArt =
+		new LinkedHashMap<Integer, byte[]>(MAX_ART * 2, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > MAX_ART;
+			}
+		};
+	int mArtShown = 0;
+	int mArtHash = 0;
+	byte[] mArtData;
+	int mArtHave = 0;
+	long mArtRequested = -1;
+	final Stats mArtLatency = new Stats();
+	long mArtChanges = 0;
+	long mArtHits = 0;
+	long mArtReceived = 0;
+	long mArtResumes = 0;
+	long mArtBad = 0;
+
+	/* Counters for the load test report. */
+	long mPresses = 0;
+	long mStaleCorrections = 0;
+	long mDroppedPresses = 0;
+	long mBytesReceived = 0;
+	long mVolumeUpdates = 0;
+	long mTextUpdates = 0;
+
+	/* Send press and release events rather than commands, and how
+	 * long a plain press is held for, in microseconds. */
+	boolean mRawEvents = false;
+	long mTapDuration = 80000;
+
+	/* Time of the oldest volume press the phone hasn't answered yet,
+	 * or -1. */
+	long mPendingVolumeSince = -1;
+	final Stats mVolumeEchoLatency = new Stats();
+
+	VirtualPeripheral(Simulator sim, String address) {
+		mSim = sim;
+		mAddress = address;
+	}
+
+	void attach(SimulatedLink link) {
+		mLink = link;
+	}
+
+	void onConnected() {
+	}
+
+	void onDisconnected() {
+		// The firmware throws away whatever it was halfway through.
+		for (MessageDecoder decoder : mDecoders.values()) {
+			decoder.reset();
+		}
+		mPendingVolumeSince = -1;
+		mPageRequested = -1;
+	}
+
+	/**
+	 * Press a button on the remote.
+	 */
+	void press(char button) {
+		press(button, mTapDuration);
+	}
+
+	/**
+	 * Press a button and hold it for the given time in microseconds. Only raw
+	 * events can say how long; commands are sent straight away.
+	 */
+	void press(final char button, long duration) {
+		mPresses++;
+		if (mLink == null || !mLink.mUp) {
+			mDroppedPresses++;
+			return;
+		}
+		if ((button == 'v' || button == 'V') && mPendingVolumeSince < 0) {
+			mPendingVolumeSince = mSim.now();
+		}
+		if (!mRawEvents) {
+			mLink.notify(new byte[] { (byte) button });
+			return;
+		}
+		mLink.notify(event('d', button));
+		mSim.schedule(duration, new Runnable() {
+			public void run() {
+				if (mLink.mUp) {
+					mLink.notify(event('u', button));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Scroll the queue a page down, back to the top at the end.
+	 */
+	void browse() {
+		if (mQueueTotal >= 0) {
+			mQueueIndex += Messages.MAX_QUEUE_PAGE;
+			if (mQueueIndex >= mQueueTotal) {
+				mQueueIndex = 0;
+			}
+		}
+		// Only the page now on screen is timed.
+		mPageRequested = -1;
+		requestPage();
+	}
+
+	void requestPage() {
+		if (mLink == null || !mLink.mUp) {
+			return;
+		}
+		if (mPageRequested < 0) {
+			mPageRequested = mSim.now();
+		}
+		mLink.notify(new byte[] {
+			'g', (byte) (mQueueIndex >> 8), (byte) mQueueIndex,
+			Messages.MAX_QUEUE_PAGE
+		});
+	}
+
+	/* Ask for the rest of the art we're missing. */
+	void requestArt(int hash) {
+		if (hash != mArtHash) {
+			mArtHash = hash;
+			mArtData = null;
+			mArtHave = 0;
+			mArtRequested = mSim.now();
+		} else if (mArtHave > 0) {
+			mArtResumes++;
+		}
+		if (mLink == null || !mLink.mUp) {
+			return;
+		}
+		mLink.notify(new byte[] {
+			'r', (byte) (hash >> 24), (byte) (hash >> 16), (byte) (hash >> 8),
+			(byte) hash, (byte) (mArtHave >> 8), (byte) mArtHave
+		});
+	}
+
+	/* A press or release, stamped with our clock in ms. */
+	byte[] event(char type, char button) {
+		long now = mSim.now() / 1000;
+		return new byte[] {
+			(byte) type, (byte) button, (byte) (now >> 8), (byte) now
+		};
+	}
+
+	/**
+	 * A chunk written by the phone to the given characteristic.
+	 */
+	void receive(String characteristic, byte[] chunk) {
+		mBytesReceived += chunk.length;
+		MessageDecoder decoder = mDecoders.get(characteristic);
+		if (decoder == null) {
+			decoder = new MessageDecoder(this);
+			mDecoders.put(characteristic, decoder);
+		}
+		decoder.feed(chunk);
+	}
+
+	long position() {
+		long now = mSim.now() / 1000;
+		return mAnchor + (mPlaying ? now - mAnchorTime : 0) + mCorrection;
+	}
+
+	long badBytes() {
+		long bad = 0;
+		for (MessageDecoder decoder : mDecoders.values()) {
+			bad += decoder.badBytes();
+		}
+		return bad;
+	}
+
+	public void onVolume(int volume) {
+		mVolume = volume;
+		mVolumeUpdates++;
+		if (mPendingVolumeSince >= 0) {
+			mVolumeEchoLatency.add(mSim.now() - mPendingVolumeSince);
+			mPendingVolumeSince = -1;
+		}
+	}
+
+	public void onPlaying(boolean playing) {
+		// Run the position up to now with the old state first.
+		mAnchor = position() - mCorrection;
+		mAnchorTime = mSim.now() / 1000;
+		mPlaying = playing;
+	}
+
+	public void onPosition(int seq, long position, long length) {
+		mPositionSeq = seq;
+		mAnchor = position;
+		mAnchorTime = mSim.now() / 1000;
+		mCorrection = 0;
+	}
+
+	public void onCorrection(int seq, int correction) {
+		if (seq == mPositionSeq) {
+			mCorrection = correction;
+		} else {
+			mStaleCorrections++;
+		}
+	}
+
+	public void onQueuePage(int index, int total, int count, byte[] items,
+							int length) {
+		mQueueTotal = total;
+		mPages++;
+		mQueueItems += count;
+		if (index == mQueueIndex && mPageRequested >= 0) {
+			mPageLatency.add(mSim.now() - mPageRequested);
+			mPageRequested = -1;
+		}
+	}
+
+	public void onQueueChanged(int index, int total) {
+		mQueueChanges++;
+		mQueueTotal = total;
+		if (mQueueIndex >= total) {
+			mQueueIndex = Math.max(0, total - Messages.MAX_QUEUE_PAGE);
+		}
+		// Fetch the page on screen again if it's affected.
+		if (mPages > 0 && index < mQueueIndex + Messages.MAX_QUEUE_PAGE) {
+			requestPage();
+		}
+	}
+
+	public void onArt(int hash) {
+		if (hash != mArtShown) {
+			mArtChanges++;
+		}
+		mArtShown = hash;
+		if (hash == 0) {
+			return;
+		}
+		if (mArt.containsKey(hash)) {
+			mArt.get(hash);
+			mArtHits++;
+			return;
+		}
+		requestArt(hash);
+	}
+
+	public void onArtData(int hash, int offset, int total, byte[] data,
+						  int length) {
+		if (hash != mArtHash || offset != mArtHave) {
+			// Superseded, or from before a reconnect; we've asked
+			// for what we want.
+			return;
+		}
+		if (mArtData == null) {
+			mArtData = new byte[total];
+		}
+		length = Math.min(length, total - offset);
+		System.arraycopy(data, 0, mArtData, offset, length);
+		mArtHave += length;
+		if (mArtHave < total) {
+			return;
+		}
+		byte[] bits = ArtEncoder.decompress(mArtData, total);
+		if (bits != null && ArtEncoder.hash(bits) == hash) {
+			mArt.put(hash, bits);
+			mArtReceived++;
+			mArtLatency.add(mSim.now() - mArtRequested);
+		} else {
+			mArtBad++;
+		}
+		mArtHash = 0;
+		mArtData = null;
+		mArtHave = 0;
+	}
+
+	public void onNetwork(boolean online) {
+		mOnline = online;
+	}
+
+	public void onBitmap(int type, byte[] columns, int length) {
+		// Nothing to check the pixels against; just count it.
+		mTextUpdates++;
+	}
+
+	public void onText(int type, byte[] text, int length) {
+		String s = new String(text, 0, length);
+		if (type == Messages.ARTIST) {
+			mArtist = s;
+		} else {
+			mTrack = s;
+		}
+		mTextUpdates++;
+	}
+}
@@ -0,0 +1,38 @@
+package com.redbear.chat;
+
+/**
+ * A Scheduler on the simulator's virtual clock, so that the app's
+ * periodic work runs in simulated time alongside the links and
+ * remotes. The simulator counts microseconds; the scheduler sees
+ * milliseconds.
+ */
+class VirtualScheduler extends Scheduler {
+	final Simulator mSim;
+
+	VirtualScheduler(Simulator sim) {
+		mSim = sim;
+	}
+
+	long now() {
+		return mSim.now() / 1000;
+	}
+
+	void wakeAt(final long time) {
+		if (time == NEVER) {
+			return;
+		}
+		// The simulator can't take events back, so a wakeup that has
+		// since been moved just does nothing when it fires.
+		mSim.schedule(time * 1000 - mSim.now(), new Runnable() {
+			public void run() {
+				boolean current;
+				synchronized (VirtualScheduler.this) {
+					current = mWakeup == time;
+				}
+				if (current) {
+					runDue();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,207 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Times are on the remote's clock unless advance() says otherwise,
+ * which moves the phone's clock on and fires any timers.
+ */
+public class GestureRecognizerTest {
+	static final int A = 'a';
+	static final int B = 'b';
+
+	final Simulator mSim = new Simulator(1);
+	final List<String> mGestures = new ArrayList<String>();
+
+	final GestureRecognizer mRecognizer = new GestureRecognizer(
+		new VirtualScheduler(mSim), new GestureRecognizer.Listener() {
+			public void onGesture(int button, int gesture, long start) {
+				mGestures.add((char) button + " " + GestureRecognizer.NAMES[gesture]);
+			}
+		});
+
+	void advance(long ms) {
+		mSim.runUntil(mSim.now() + ms * 1000);
+	}
+
+	void click(int button, int time, int duration) {
+		mRecognizer.onPress(button, time, 0);
+		mRecognizer.onRelease(button, time + duration, 0);
+	}
+
+	@Test
+	public void tapFiresOnPress() {
+		mRecognizer.onPress(A, 0, 0);
+		assertEquals("[a tap]", mGestures.toString());
+		mRecognizer.onRelease(A, 1000, 0);
+		advance(1000);
+		assertEquals("[a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void doubleTapWithinWindow() {
+		mRecognizer.setDoubleTap(A, true);
+		click(A, 0, 50);
+		click(A, 300, 50);
+		click(A, 400, 50);
+		click(A, 701, 50);
+		assertEquals("[a tap, a double-tap, a tap, a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void doubleTapNeedsTheSameButton() {
+		mRecognizer.setDoubleTap(A, true);
+		mRecognizer.setDoubleTap(B, true);
+		click(A, 0, 50);
+		click(B, 100, 50);
+		click(A, 200, 50);
+		assertEquals("[a tap, b tap, a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void doubleTapAcrossClockWrap() {
+		mRecognizer.setDoubleTap(A, true);
+		click(A, 0xFFC0, 20);
+		click(A, 0x40, 20);
+		assertEquals("[a tap, a double-tap]", mGestures.toString());
+	}
+
+	@Test
+	public void holdModeTapFiresOnPress() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_HOLD);
+		mRecognizer.onPress(A, 0, 0);
+		assertEquals("[a tap]", mGestures.toString());
+		advance(100);
+		mRecognizer.onRelease(A, 100, 0);
+		advance(1000);
+		assertEquals("[a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void holdFiresWhileHeld() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_HOLD);
+		mRecognizer.onPress(A, 0, 0);
+		advance(499);
+		assertEquals("[a tap]", mGestures.toString());
+		advance(1);
+		assertEquals("[a tap, a hold]", mGestures.toString());
+		advance(500);
+		assertEquals("[a tap, a hold, a hold, a hold]", mGestures.toString());
+		mRecognizer.onRelease(A, 1000, 0);
+		advance(1000);
+		assertEquals("[a tap, a hold, a hold, a hold]", mGestures.toString());
+	}
+
+	@Test
+	public void lateReleaseIsStillAHold() {
+		// The press was delayed, so the release arrives before our
+		// timer, but the remote's clock says it was long.
+		mRecognizer.setMode(A, GestureRecognizer.MODE_HOLD);
+		mRecognizer.onPress(A, 0, 0);
+		advance(200);
+		mRecognizer.onRelease(A, 600, 0);
+		advance(1000);
+		assertEquals("[a tap, a hold]", mGestures.toString());
+	}
+
+	@Test
+	public void newPressSupersedesTheHeldOne() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_HOLD);
+		mRecognizer.setMode(B, GestureRecognizer.MODE_HOLD);
+		mRecognizer.onPress(A, 0, 0);
+		advance(100);
+		mRecognizer.onPress(B, 100, 0);
+		// A's release, lost and then late, is ignored.
+		mRecognizer.onRelease(A, 150, 0);
+		mRecognizer.onRelease(B, 200, 0);
+		advance(1000);
+		assertEquals("[a tap, b tap]", mGestures.toString());
+	}
+
+	@Test
+	public void doubleTapWithoutARelease() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_HOLD);
+		mRecognizer.setDoubleTap(A, true);
+		click(A, 0, 50);
+		// Its release is lost.
+		mRecognizer.onPress(A, 100, 0);
+		mRecognizer.onPress(A, 500, 0);
+		mRecognizer.onRelease(A, 550, 0);
+		assertEquals("[a tap, a double-tap, a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void hostMapping() {
+		SimHost host = new SimHost(mSim);
+		GestureRecognizer gestures = host.gestureRecognizer(null);
+		// Next skips on the press, without waiting to see if it's
+		// held.
+		gestures.onPress('N', 0, 0);
+		assertEquals(1, host.mMediaCommands);
+		advance(1000);
+		gestures.onRelease('N', 1000, 0);
+		assertEquals(1, host.mMediaCommands);
+		assertEquals(3, host.mHolds);
+
+		// A double tap skips PLAYLIST_SKIP in all.
+		gestures.onPress('N', 5000, 0);
+		gestures.onRelease('N', 5050, 0);
+		gestures.onPress('N', 5200, 0);
+		gestures.onRelease('N', 5250, 0);
+		assertEquals(2 + SimHost.PLAYLIST_SKIP - 1, host.mMediaCommands);
+	}
+
+	@Test
+	public void repeatSpeedsUp() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_REPEAT);
+		mRecognizer.onPress(A, 0, 0);
+		assertEquals("[a tap]", mGestures.toString());
+		advance(399);
+		assertEquals(1, mGestures.size());
+		advance(1);
+		assertEquals(2, mGestures.size());
+		advance(149);
+		assertEquals(2, mGestures.size());
+		advance(1);
+		assertEquals(3, mGestures.size());
+		// The interval shrinks by a quarter each time: 112, 84, ...
+		advance(112);
+		assertEquals(4, mGestures.size());
+		advance(84);
+		assertEquals("[a tap, a repeat, a repeat, a repeat, a repeat]",
+					 mGestures.toString());
+		mRecognizer.onRelease(A, 1000, 0);
+		advance(1000);
+		assertEquals(5, mGestures.size());
+	}
+
+	@Test
+	public void lostReleaseStopsRepeatEventually() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_REPEAT);
+		mRecognizer.onPress(A, 0, 0);
+		advance(mRecognizer.mMaxHold + 1000);
+		int fired = mGestures.size();
+		advance(10000);
+		assertEquals(fired, mGestures.size());
+	}
+
+	@Test
+	public void resetForgetsHeldButton() {
+		mRecognizer.setMode(A, GestureRecognizer.MODE_REPEAT);
+		mRecognizer.onPress(A, 0, 0);
+		mRecognizer.reset();
+		advance(1000);
+		assertEquals("[a tap]", mGestures.toString());
+	}
+
+	@Test
+	public void elapsedWraps() {
+		assertEquals(0x20, GestureRecognizer.elapsed(0xFFF0, 0x10));
+		assertEquals(100, GestureRecognizer.elapsed(100, 200));
+	}
+}
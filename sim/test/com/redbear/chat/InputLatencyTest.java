@@ -0,0 +1,66 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.redbear.chat.protocol.Messages;
+
+public class InputLatencyTest {
+	final Simulator mSim = new Simulator(1);
+	final SimHost mHost = new SimHost(mSim);
+	final InputLatency mLatency = new InputLatency();
+
+	RemoteConnection connection(String address) {
+		VirtualPeripheral peripheral = new VirtualPeripheral(mSim, address);
+		return new RemoteConnection(mHost, address,
+			new SimulatedLink(mSim, new LinkModel(), peripheral));
+	}
+
+	@Test
+	public void echoIsTimedOnceFromTheRemoteThatAsked() {
+		RemoteConnection a = connection("00:00:00:00:00:0A");
+		RemoteConnection b = connection("00:00:00:00:00:0B");
+		long start = System.nanoTime();
+		mLatency.expectEcho(a, 'V', start);
+		mLatency.onSent(b, Messages.VOLUME);
+		mLatency.onSent(a, Messages.TRACK);
+		assertEquals(0, mLatency.get('V', InputLatency.ECHO).count());
+		mLatency.onSent(a, Messages.VOLUME);
+		mLatency.onSent(a, Messages.VOLUME);
+		assertEquals(1, mLatency.get('V', InputLatency.ECHO).count());
+	}
+
+	@Test
+	public void staleEchoIsDropped() {
+		RemoteConnection a = connection("00:00:00:00:00:0A");
+		mLatency.expectEcho(a, 'N', System.nanoTime() - InputLatency.ECHO_TIMEOUT);
+		mLatency.onSent(a, Messages.TRACK);
+		assertEquals(0, mLatency.get('N', InputLatency.ECHO).count());
+	}
+
+	@Test
+	public void stagesArePerCommand() {
+		long start = System.nanoTime();
+		mLatency.record('x', InputLatency.DISPATCH, start);
+		mLatency.record('x', InputLatency.ACTION, start);
+		mLatency.record('o', InputLatency.DISPATCH, start);
+		// Not a command we time.
+		mLatency.record('g', InputLatency.DISPATCH, start);
+		assertEquals(1, mLatency.get('x', InputLatency.DISPATCH).count());
+		assertEquals(1, mLatency.get('x', InputLatency.ACTION).count());
+		assertEquals(1, mLatency.get('o', InputLatency.DISPATCH).count());
+		assertEquals(0, mLatency.get('o', InputLatency.ACTION).count());
+	}
+
+	@Test
+	public void resetForgetsEverything() {
+		RemoteConnection a = connection("00:00:00:00:00:0A");
+		mLatency.record('v', InputLatency.DISPATCH, System.nanoTime());
+		mLatency.expectEcho(a, 'v', System.nanoTime());
+		mLatency.reset();
+		mLatency.onSent(a, Messages.VOLUME);
+		assertEquals(0, mLatency.get('v', InputLatency.DISPATCH).count());
+		assertEquals(0, mLatency.get('v', InputLatency.ECHO).count());
+	}
+}
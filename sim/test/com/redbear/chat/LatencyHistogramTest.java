@@ -0,0 +1,83 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	@Test
+	public void smallValuesGetABucketEach() {
+		for (int us = 0; us < LatencyHistogram.LINEAR; us++) {
+			assertEquals(us, LatencyHistogram.bucket(us));
+			assertEquals(us, LatencyHistogram.lowest(us));
+		}
+		assertEquals(0, LatencyHistogram.bucket(-5));
+	}
+
+	@Test
+	public void bucketsAreContiguousAndIncreasing() {
+		int last = -1;
+		for (long us = 0; us < 1 << 20; us++) {
+			int bucket = LatencyHistogram.bucket(us);
+			assertTrue("at " + us, bucket == last || bucket == last + 1);
+			last = bucket;
+		}
+	}
+
+	@Test
+	public void lowestIsWithinASixteenth() {
+		for (long us = 1; us < 1L << 27; us = us * 3 / 2 + 1) {
+			long lowest = LatencyHistogram.lowest(LatencyHistogram.bucket(us));
+			assertTrue("at " + us, lowest <= us);
+			assertTrue("at " + us, us - lowest <= us / 16);
+		}
+	}
+
+	@Test
+	public void hugeValuesLandInTheLastBucket() {
+		int last = LatencyHistogram.NUM_BUCKETS - 1;
+		assertEquals(last, LatencyHistogram.bucket(1L << 40));
+		assertEquals(last, LatencyHistogram.bucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void percentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.percentile(0.5));
+		for (int ms = 1; ms <= 100; ms++) {
+			h.record(ms * 1000000L);
+		}
+		assertEquals(100, h.count());
+		assertEquals(100000, h.max());
+		assertNear(50000, h.percentile(0.50));
+		assertNear(90000, h.percentile(0.90));
+		assertNear(99000, h.percentile(0.99));
+		assertNear(100000, h.percentile(1.0));
+		assertNear(1000, h.percentile(0.0));
+	}
+
+	@Test
+	public void percentileIsTheBucketFloor() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(1000000L);
+		assertEquals(LatencyHistogram.lowest(LatencyHistogram.bucket(1000)),
+					 h.percentile(0.99));
+		assertEquals(1000, h.max());
+	}
+
+	@Test
+	public void resetEmpties() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(5000);
+		h.reset();
+		assertEquals(0, h.count());
+		assertEquals(0, h.max());
+		assertEquals(0, h.percentile(0.5));
+	}
+
+	static void assertNear(long expected, long actual) {
+		assertTrue("expected about " + expected + ", got " + actual,
+				   Math.abs(expected - actual) <= expected / 16);
+	}
+}
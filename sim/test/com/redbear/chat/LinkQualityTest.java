@@ -0,0 +1,104 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LinkQualityTest {
+	final LinkQuality mQuality = new LinkQuality();
+
+	/* Enough readings for the average to settle on rssi. */
+	void settle(int rssi) {
+		for (int i = 0; i < 100; i++) {
+			mQuality.onRssi(rssi);
+		}
+	}
+
+	@Test
+	public void goodUntilToldOtherwise() {
+		assertEquals(LinkQuality.GOOD, mQuality.level());
+		assertEquals(Double.NaN, mQuality.rssi(), 0);
+	}
+
+	@Test
+	public void firstReadingCountsInFull() {
+		mQuality.onRssi(-80);
+		assertEquals(-80, mQuality.rssi(), 0);
+		assertEquals(LinkQuality.FAIR, mQuality.level());
+	}
+
+	@Test
+	public void climbingNeedsHysteresis() {
+		mQuality.onRssi(-80);
+		// Over the FAIR threshold but not by enough.
+		settle((int) (LinkQuality.FAIR_RSSI + LinkQuality.HYSTERESIS) - 2);
+		assertEquals(LinkQuality.FAIR, mQuality.level());
+		settle((int) (LinkQuality.FAIR_RSSI + LinkQuality.HYSTERESIS) + 1);
+		assertEquals(LinkQuality.GOOD, mQuality.level());
+
+		settle(-95);
+		settle((int) (LinkQuality.POOR_RSSI + LinkQuality.HYSTERESIS) - 2);
+		assertEquals(LinkQuality.POOR, mQuality.level());
+		settle((int) (LinkQuality.POOR_RSSI + LinkQuality.HYSTERESIS) + 1);
+		assertEquals(LinkQuality.FAIR, mQuality.level());
+	}
+
+	@Test
+	public void droppingIsImmediate() {
+		settle(-60);
+		settle((int) LinkQuality.FAIR_RSSI - 1);
+		assertEquals(LinkQuality.FAIR, mQuality.level());
+		settle((int) LinkQuality.POOR_RSSI - 1);
+		assertEquals(LinkQuality.POOR, mQuality.level());
+	}
+
+	@Test
+	public void failedWritesLowerTheLevel() {
+		settle(-50);
+		mQuality.onWrite(false);
+		assertEquals(LinkQuality.FAIR, mQuality.level());
+		mQuality.onWrite(false);
+		mQuality.onWrite(false);
+		assertEquals(LinkQuality.POOR, mQuality.level());
+		for (int i = 0; i < 50; i++) {
+			mQuality.onWrite(true);
+		}
+		assertEquals(LinkQuality.GOOD, mQuality.level());
+	}
+
+	@Test
+	public void chunksShrinkAndRetriesGrow() {
+		settle(-50);
+		assertEquals(20, mQuality.chunkSize(20));
+		assertEquals(LinkQuality.RETRY_BUDGET[LinkQuality.GOOD],
+					 mQuality.retryBudget());
+		settle(-80);
+		assertEquals(LinkQuality.CHUNK_SIZE[LinkQuality.FAIR],
+					 mQuality.chunkSize(512));
+		assertEquals(LinkQuality.RETRY_BUDGET[LinkQuality.FAIR],
+					 mQuality.retryBudget());
+		settle(-95);
+		assertEquals(LinkQuality.CHUNK_SIZE[LinkQuality.POOR],
+					 mQuality.chunkSize(20));
+		assertEquals(LinkQuality.RETRY_BUDGET[LinkQuality.POOR],
+					 mQuality.retryBudget());
+		// Never more than the link allows.
+		assertEquals(4, mQuality.chunkSize(4));
+	}
+
+	@Test
+	public void idleSamplingBacksOffToTheLevelsLimit() {
+		settle(-50);
+		long interval = LinkQuality.ACTIVE_INTERVAL;
+		assertEquals(interval, mQuality.nextInterval(true));
+		for (int i = 0; i < 10; i++) {
+			interval = Math.min(interval * 2,
+								LinkQuality.IDLE_INTERVAL[LinkQuality.GOOD]);
+			assertEquals(interval, mQuality.nextInterval(false));
+		}
+		settle(-95);
+		assertEquals(LinkQuality.IDLE_INTERVAL[LinkQuality.POOR],
+					 mQuality.nextInterval(false));
+		assertEquals(LinkQuality.ACTIVE_INTERVAL, mQuality.nextInterval(true));
+	}
+}
@@ -0,0 +1,80 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class MediaStateTest {
+	final MediaState mState = MediaState.INITIAL;
+
+	@Test
+	public void changesBumpTheVersion() {
+		MediaState state = mState.withVolume(10);
+		assertEquals(mState.version + 1, state.version);
+		assertEquals(10, state.volume);
+		state = state.withPlaying(!state.playing)
+			.withOnline(!state.online)
+			.withSong("a", "t");
+		assertEquals(mState.version + 4, state.version);
+		assertEquals(!mState.playing, state.playing);
+		assertEquals(!mState.online, state.online);
+		assertEquals("a", state.artist);
+		assertEquals("t", state.track);
+		// The original is untouched.
+		assertEquals(127, mState.volume);
+		assertEquals("Artist", mState.artist);
+	}
+
+	@Test
+	public void sameValueIsTheSameState() {
+		assertSame(mState, mState.withVolume(mState.volume));
+		assertSame(mState, mState.withPlaying(mState.playing));
+		assertSame(mState, mState.withOnline(mState.online));
+		assertSame(mState, mState.withSong("Artist", "Track"));
+		MediaState state = mState.withSong("Artist", "Other");
+		assertEquals(mState.version + 1, state.version);
+	}
+
+	@Test
+	public void volumeIsClamped() {
+		// Already at the top, so pressing up changes nothing.
+		assertSame(mState, mState.withVolume(mState.volume + 1));
+		MediaState state = mState.withVolume(-5);
+		assertEquals(0, state.volume);
+		assertSame(state, state.withVolume(-1));
+	}
+
+	@Test
+	public void racingUpdatesAreAllKept() throws InterruptedException {
+		final AtomicReference<MediaState> current =
+			new AtomicReference<MediaState>(mState.withVolume(0));
+		final int steps = 50;
+		Thread[] threads = new Thread[2];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					// The same loop as RBLService.stepVolume().
+					for (int i = 0; i < steps; i++) {
+						while (true) {
+							MediaState old = current.get();
+							MediaState state = old.withVolume(old.volume + 1);
+							if (state == old || current.compareAndSet(old, state)) {
+								break;
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		MediaState state = current.get();
+		assertEquals(2 * steps, state.volume);
+		assertEquals(mState.version + 1 + 2 * steps, state.version);
+	}
+}
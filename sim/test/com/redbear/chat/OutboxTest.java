@@ -0,0 +1,169 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.redbear.chat.protocol.Messages;
+
+public class OutboxTest {
+	@Test
+	public void newerReplacesOlder() {
+		Outbox outbox = new Outbox();
+		outbox.put(Messages.VOLUME, Messages.volume(10));
+		outbox.put(Messages.VOLUME, Messages.volume(20));
+		assertEquals(1, outbox.size());
+		assertArrayEquals(Messages.volume(20), outbox.poll());
+		assertNull(outbox.poll());
+		assertEquals(-1, outbox.lastPolledType());
+	}
+
+	@Test
+	public void putIfAbsentKeepsPending() {
+		Outbox outbox = new Outbox();
+		outbox.put(Messages.ART, Messages.art(1));
+		outbox.putIfAbsent(Messages.ART, Messages.art(2));
+		assertArrayEquals(Messages.art(1), outbox.poll());
+	}
+
+	@Test
+	public void pollsInPriorityOrder() {
+		Outbox outbox = new Outbox();
+		byte[] track = Messages.track("Track");
+		byte[] playing = Messages.playing(true);
+		byte[] volume = Messages.volume(64);
+		outbox.put(Messages.TRACK, track);
+		outbox.put(Messages.PLAYING, playing);
+		outbox.put(Messages.VOLUME, volume);
+		assertSame(volume, outbox.poll());
+		assertEquals(Messages.VOLUME, outbox.lastPolledType());
+		assertSame(playing, outbox.poll());
+		assertSame(track, outbox.poll());
+		assertEquals(Messages.TRACK, outbox.lastPolledType());
+		assertTrue(outbox.isEmpty());
+	}
+
+	@Test
+	public void pageRepliesDontReplaceEachOther() {
+		Outbox outbox = new Outbox();
+		byte[] first = Messages.queuePage(0, 20, new byte[0][], 0);
+		byte[] second = Messages.queuePage(8, 20, new byte[0][], 0);
+		byte[] changed = Messages.queueChanged(4, 20);
+		outbox.put(Messages.QUEUE, first);
+		outbox.put(Messages.QUEUE, changed);
+		outbox.put(Messages.QUEUE, second);
+		assertEquals(3, outbox.size());
+		// A newer page for the same index, and a newer change, take
+		// the older one's place.
+		byte[] again = Messages.queuePage(8, 21, new byte[0][], 0);
+		byte[] changedAgain = Messages.queueChanged(2, 21);
+		outbox.put(Messages.QUEUE, again);
+		outbox.put(Messages.QUEUE, changedAgain);
+		assertEquals(3, outbox.size());
+		assertSame(first, outbox.poll());
+		assertSame(changedAgain, outbox.poll());
+		assertSame(again, outbox.poll());
+		assertNull(outbox.poll());
+	}
+
+	@Test
+	public void queueLineIsBounded() {
+		Outbox outbox = new Outbox();
+		for (int i = 0; i < Outbox.MAX_QUEUE + 3; i++) {
+			outbox.put(Messages.QUEUE, Messages.queuePage(i * 8, 200, new byte[0][], 0));
+		}
+		assertEquals(Outbox.MAX_QUEUE, outbox.size());
+		// The oldest went.
+		assertArrayEquals(Messages.queuePage(3 * 8, 200, new byte[0][], 0),
+						  outbox.poll());
+	}
+
+	@Test
+	public void halfSentPageGoesBackInFront() {
+		Outbox outbox = new Outbox();
+		byte[] first = Messages.queuePage(0, 20, new byte[0][], 0);
+		byte[] second = Messages.queuePage(8, 20, new byte[0][], 0);
+		outbox.put(Messages.QUEUE, second);
+		outbox.putIfAbsent(Messages.QUEUE, first);
+		// Unless something newer for it is already waiting.
+		outbox.putIfAbsent(Messages.QUEUE, Messages.queuePage(8, 19, new byte[0][], 0));
+		assertSame(first, outbox.poll());
+		assertSame(second, outbox.poll());
+		assertNull(outbox.poll());
+	}
+
+	@Test
+	public void clearDropsEverything() {
+		Outbox outbox = new Outbox();
+		outbox.put(Messages.VOLUME, Messages.volume(64));
+		outbox.put(Messages.TRACK, Messages.track("Track"));
+		outbox.put(Messages.QUEUE, Messages.queueChanged(0, 1));
+		outbox.put(Messages.QUEUE, Messages.queuePage(0, 1, new byte[0][], 0));
+		outbox.clear();
+		assertTrue(outbox.isEmpty());
+		assertNull(outbox.poll());
+	}
+
+	@Test
+	public void pollOnlyTakesMaskedTypes() {
+		Outbox outbox = new Outbox();
+		byte[] track = Messages.track("Track");
+		outbox.put(Messages.VOLUME, Messages.volume(64));
+		outbox.put(Messages.TRACK, track);
+		assertSame(track, outbox.poll(1 << Messages.TRACK));
+		assertNull(outbox.poll(1 << Messages.ARTIST));
+		assertEquals(1, outbox.size());
+	}
+
+	@Test
+	public void passedOverMessageGoesAfterMaxWait() {
+		Outbox outbox = new Outbox();
+		byte[] track = Messages.track("Track");
+		outbox.put(Messages.TRACK, track);
+		for (int i = 0; i < Outbox.MAX_WAIT; i++) {
+			outbox.put(Messages.VOLUME, Messages.volume(i));
+			assertArrayEquals(Messages.volume(i), outbox.poll());
+		}
+		// Replacing it doesn't reset the wait.
+		track = Messages.track("Another track");
+		outbox.put(Messages.TRACK, track);
+		outbox.put(Messages.VOLUME, Messages.volume(100));
+		assertSame(track, outbox.poll());
+		assertArrayEquals(Messages.volume(100), outbox.poll());
+	}
+
+	@Test
+	public void waitOnlyCountsForMaskedTypes() {
+		Outbox outbox = new Outbox();
+		byte[] track = Messages.track("Track");
+		outbox.put(Messages.TRACK, track);
+		for (int i = 0; i < Outbox.MAX_WAIT * 2; i++) {
+			outbox.put(Messages.VOLUME, Messages.volume(i));
+			outbox.poll(1 << Messages.VOLUME);
+		}
+		outbox.put(Messages.VOLUME, Messages.volume(0));
+		assertArrayEquals(Messages.volume(0), outbox.poll());
+		assertSame(track, outbox.poll());
+	}
+
+	@Test
+	public void correctionFoldsIntoPendingPosition() {
+		Outbox outbox = new Outbox();
+		outbox.put(Messages.POSITION, Messages.position(3, 10000, 60000));
+		outbox.put(Messages.POSITION, Messages.correction(3, -5));
+		assertArrayEquals(Messages.position(3, 9500, 60000), outbox.poll());
+	}
+
+	@Test
+	public void correctionForAnotherPositionReplacesIt() {
+		Outbox outbox = new Outbox();
+		outbox.put(Messages.POSITION, Messages.position(3, 10000, 60000));
+		byte[] correction = Messages.correction(4, 5);
+		outbox.put(Messages.POSITION, correction);
+		assertSame(correction, outbox.poll());
+	}
+}
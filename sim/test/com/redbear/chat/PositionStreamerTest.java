@@ -0,0 +1,164 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.redbear.chat.protocol.Messages;
+import com.redbear.chat.protocol.StateDiff;
+
+/**
+ * Times are in ms on the scheduler's clock.
+ */
+public class PositionStreamerTest {
+	static final long LENGTH = 600000;
+
+	final Simulator mSim = new Simulator(1);
+	final VirtualScheduler mScheduler = new VirtualScheduler(mSim);
+
+	/* What was sent, and when. */
+	final List<byte[]> mSent = new ArrayList<byte[]>();
+	final List<Long> mTimes = new ArrayList<Long>();
+
+	final PositionStreamer mStreamer = new PositionStreamer(mScheduler,
+		new StateDiff.Sink() {
+			public void send(int type, byte[] message) {
+				assertEquals(Messages.POSITION, type);
+				mSent.add(message);
+				mTimes.add(mScheduler.now());
+			}
+		});
+
+	void advance(long ms) {
+		mSim.runUntil(mSim.now() + ms * 1000);
+	}
+
+	int count(char kind) {
+		int n = 0;
+		for (byte[] message : mSent) {
+			if (message[0] == kind) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/* A track playing from the start, with its p sent. */
+	void play() {
+		mStreamer.setPosition(0, true);
+		mStreamer.setTrack(LENGTH);
+		assertEquals(1, count('p'));
+		mSent.clear();
+		mTimes.clear();
+	}
+
+	@Test
+	public void nothingUntilThereIsATrack() {
+		mStreamer.setPosition(1000, true);
+		advance(60000);
+		assertEquals(0, mSent.size());
+	}
+
+	@Test
+	public void newTrackSendsAPosition() {
+		mStreamer.setPosition(0, true);
+		mStreamer.setTrack(LENGTH);
+		assertEquals(1, mSent.size());
+		assertEquals('p', mSent.get(0)[0]);
+	}
+
+	@Test
+	public void steadyPlaybackStaysQuiet() {
+		play();
+		for (int i = 0; i < 10; i++) {
+			advance(5000);
+			mStreamer.setPosition(5000 * (i + 1), true);
+		}
+		assertEquals(0, mSent.size());
+	}
+
+	@Test
+	public void seekSendsAPosition() {
+		play();
+		advance(10000);
+		mStreamer.setPosition(200000, true);
+		assertEquals(1, count('p'));
+	}
+
+	@Test
+	public void driftIsCorrected() {
+		play();
+		advance(10000);
+		mStreamer.setPosition(10000 + 2000, true);
+		assertEquals(0, count('p'));
+		assertEquals(1, count('q'));
+		// Too small to bother with.
+		mStreamer.setPosition(12000 + 100, true);
+		assertEquals(1, count('q'));
+	}
+
+	@Test
+	public void seekStormStaysWithinBudget() {
+		play();
+		// Seeks every 100 ms for five minutes.
+		for (int i = 0; i < 3000; i++) {
+			advance(100);
+			mStreamer.setPosition((i * 7919L) % LENGTH, true);
+		}
+		// Count bytes in every minute long window.
+		for (int start = 0; start < mTimes.size(); start++) {
+			int bytes = 0;
+			for (int i = start; i < mTimes.size() &&
+					 mTimes.get(i) < mTimes.get(start) + 60000; i++) {
+				bytes += mSent.get(i).length;
+			}
+			assertTrue(bytes <= PositionStreamer.BUDGET);
+		}
+		// But it still kept up.
+		assertTrue(count('p') > 5);
+	}
+
+	@Test
+	public void pausedDoesNothing() {
+		play();
+		mStreamer.setPosition(0, false);
+		advance(PositionStreamer.REFRESH * 2);
+		mSent.clear();
+		advance(PositionStreamer.REFRESH * 2);
+		assertEquals(0, mSent.size());
+		assertFalse(mStreamer.mCheckTask.isScheduled());
+	}
+
+	@Test
+	public void refreshWhilePlaying() {
+		play();
+		advance(PositionStreamer.REFRESH + PositionStreamer.STEADY_CHECK * 2);
+		assertEquals(1, count('p'));
+	}
+
+	@Test
+	public void resumeWithADrainedBucketStillChecks() {
+		play();
+		advance(5000);
+		// Nothing left for a settling p when we pause.
+		mStreamer.mTokens = 0;
+		mStreamer.setPosition(5000, false);
+		advance(2000);
+		assertFalse(mStreamer.mCheckTask.isScheduled());
+
+		mStreamer.setPosition(5000, true);
+		assertTrue(mStreamer.mCheckTask.isScheduled());
+		// The settling p goes out once the bucket has refilled, and
+		// the periodic checks carry on after it.
+		advance(PositionStreamer.STEADY_CHECK * 3);
+		assertEquals(1, count('p'));
+		assertTrue(mStreamer.mCheckTask.isScheduled());
+		advance(PositionStreamer.REFRESH + PositionStreamer.STEADY_CHECK * 2);
+		assertEquals(2, count('p'));
+	}
+}
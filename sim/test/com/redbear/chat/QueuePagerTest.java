@@ -0,0 +1,137 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueuePagerTest {
+	/* Item n has id n and title "n", until changed. */
+	final List<Long> mIds = new ArrayList<Long>();
+	int mFetches = 0;
+	int mReads = 0;
+
+	final QueuePager mPager = new QueuePager(new QueuePager.Source() {
+		public void fetch() {
+			mFetches++;
+		}
+
+		public int size() {
+			return mIds.size();
+		}
+
+		public int read(int index, int count, long[] ids, String[] titles) {
+			mReads++;
+			int n = Math.max(0, Math.min(count, mIds.size() - index));
+			for (int i = 0; i < n; i++) {
+				ids[i] = mIds.get(index + i);
+				if (titles != null) {
+					titles[i] = String.valueOf(ids[i]);
+				}
+			}
+			return n;
+		}
+	});
+
+	@Before
+	public void setUp() {
+		for (long id = 0; id < 20; id++) {
+			mIds.add(id);
+		}
+	}
+
+	@Test
+	public void nothingToInvalidateBeforeAnyPage() {
+		assertEquals(-1, mPager.invalidate());
+		assertEquals(0, mReads);
+		assertEquals(0, mFetches);
+	}
+
+	@Test
+	public void fetchesOncePerCall() {
+		// Across two pages, so two reads.
+		mPager.page(4, 8);
+		assertEquals(1, mFetches);
+		assertEquals(2, mReads);
+		// All held.
+		mPager.page(0, 8);
+		assertEquals(1, mFetches);
+		mPager.page(16, 8);
+		mPager.page(12, 8);
+		assertEquals(2, mFetches);
+		// Every held page is checked, from one fetch.
+		mReads = 0;
+		mIds.set(3, 100L);
+		assertEquals(3, mPager.invalidate());
+		assertEquals(3, mFetches);
+		assertEquals(3, mReads);
+	}
+
+	@Test
+	public void unchangedQueueInvalidatesNothing() {
+		mPager.page(0, 8);
+		mPager.page(8, 8);
+		assertEquals(-1, mPager.invalidate());
+		mPager.page(0, 8);
+		assertEquals(2, mPager.mMisses);
+		assertEquals(1, mPager.mHits);
+	}
+
+	@Test
+	public void changedItemIsTheFirstIndex() {
+		mPager.page(0, 8);
+		mPager.page(8, 8);
+		mIds.set(11, 100L);
+		mIds.set(13, 101L);
+		assertEquals(11, mPager.invalidate());
+		// Only the page that changed is read again.
+		mPager.page(0, 8);
+		mPager.page(8, 8);
+		assertEquals(3, mPager.mMisses);
+	}
+
+	@Test
+	public void changesOutsideTheWindowAreIgnored() {
+		mPager.page(0, 8);
+		mIds.set(17, 100L);
+		assertEquals(-1, mPager.invalidate());
+	}
+
+	@Test
+	public void insertionShiftsFromThere() {
+		mPager.page(0, 8);
+		mPager.page(8, 8);
+		mIds.add(5, 100L);
+		assertEquals(5, mPager.invalidate());
+		assertEquals(21, mPager.size());
+	}
+
+	@Test
+	public void shrinkingQueueReportsNewEnd() {
+		mPager.page(0, 8);
+		for (int i = 0; i < 8; i++) {
+			mIds.remove(mIds.size() - 1);
+		}
+		assertEquals(12, mPager.invalidate());
+		assertEquals(12, mPager.size());
+	}
+
+	@Test
+	public void shrinkingIntoTheWindow() {
+		mPager.page(0, 8);
+		while (mIds.size() > 6) {
+			mIds.remove(mIds.size() - 1);
+		}
+		assertEquals(6, mPager.invalidate());
+	}
+
+	@Test
+	public void pagesAreClampedToTheQueue() {
+		byte[] page = mPager.page(16, 8);
+		// l, index, total, count 4.
+		assertEquals('4', page[9]);
+	}
+}
@@ -0,0 +1,216 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.redbear.chat.protocol.Messages;
+
+public class RemoteConnectionTest {
+	final Simulator mSim = new Simulator(1);
+	final SimHost mHost = new SimHost(mSim);
+
+	/* Refuses the first mRefuse writes, then takes each one a
+	 * millisecond after it starts. */
+	class StubLink implements GattLink {
+		Callback mCallback;
+		int mRefuse;
+		boolean mChannels = false;
+		final ArrayList<Long> mWriteTimes = new ArrayList<Long>();
+		final ArrayList<Integer> mWriteTypes = new ArrayList<Integer>();
+
+		public void setCallback(Callback callback) {
+			mCallback = callback;
+		}
+
+		public boolean connect() {
+			return true;
+		}
+
+		public void disconnect() {
+		}
+
+		public void close() {
+		}
+
+		public int maxWriteSize() {
+			return 20;
+		}
+
+		public boolean hasChannels() {
+			return mChannels;
+		}
+
+		public boolean write(int type, byte[] chunk) {
+			if (mRefuse > 0) {
+				mRefuse--;
+				return false;
+			}
+			mWriteTimes.add(mSim.now());
+			mWriteTypes.add(type);
+			mSim.schedule(1000, new Runnable() {
+				public void run() {
+					mCallback.onWriteComplete(true);
+				}
+			});
+			return true;
+		}
+
+		public void readRssi() {
+		}
+	}
+
+	RemoteConnection ready(StubLink link) {
+		RemoteConnection connection =
+			new RemoteConnection(mHost, "00:00:00:00:00:0A", link);
+		connection.onReady();
+		// Let whatever the host sends on connecting go out.
+		mSim.runUntil(mSim.now() + 100000);
+		link.mWriteTypes.clear();
+		link.mWriteTimes.clear();
+		return connection;
+	}
+
+	/* Send a volume change every half millisecond for the given
+	 * time, faster than the link can take them. */
+	void floodVolume(final RemoteConnection connection, long until) {
+		for (long t = 0; t < until; t += 500) {
+			final int volume = (int) (t / 500) % 128;
+			mSim.schedule(t, new Runnable() {
+				public void run() {
+					connection.send(Messages.VOLUME, Messages.volume(volume));
+				}
+			});
+		}
+	}
+
+	int count(ArrayList<Integer> types, int type) {
+		int n = 0;
+		for (int t : types) {
+			if (t == type) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	String longTrack() {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 100) {
+			sb.append("A long track name ");
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void channelsTakeTurns() {
+		StubLink link = new StubLink();
+		link.mChannels = true;
+		RemoteConnection connection = ready(link);
+		byte[] track = Messages.track(longTrack());
+		int chunks = (track.length + link.maxWriteSize() - 1) / link.maxWriteSize();
+
+		// Volume outranks the track, so over one stream the flood
+		// would shut it out.
+		long start = mSim.now();
+		floodVolume(connection, 50000);
+		mSim.runUntil(start + 2000);
+		connection.send(Messages.TRACK, track);
+		mSim.runUntil(start + 50000);
+
+		// The track got through while the volume was still changing,
+		// with at most one volume write between its chunks.
+		ArrayList<Integer> types = link.mWriteTypes;
+		assertEquals(chunks, count(types, Messages.TRACK));
+		int first = types.indexOf(Messages.TRACK);
+		int last = types.lastIndexOf(Messages.TRACK);
+		assertTrue(link.mWriteTimes.get(last) < start + 2000 + 2 * chunks * 1000 + 1000);
+		for (int i = first + 1; i < last; i++) {
+			assertFalse(types.get(i) == Messages.VOLUME &&
+						types.get(i + 1) == Messages.VOLUME);
+		}
+		assertTrue(count(types, Messages.VOLUME) > chunks);
+		connection.close();
+	}
+
+	@Test
+	public void oneStreamFinishesEachMessage() {
+		StubLink link = new StubLink();
+		RemoteConnection connection = ready(link);
+		byte[] track = Messages.track(longTrack());
+		int chunks = (track.length + link.maxWriteSize() - 1) / link.maxWriteSize();
+
+		long start = mSim.now();
+		connection.send(Messages.TRACK, track);
+		floodVolume(connection, 10000);
+		mSim.runUntil(start + 50000);
+
+		// Volume outranks the track, but can't cut into it once it's
+		// started.
+		ArrayList<Integer> types = link.mWriteTypes;
+		for (int i = 0; i < chunks; i++) {
+			assertEquals(Messages.TRACK, (int) types.get(i));
+		}
+		assertEquals(Messages.VOLUME, (int) types.get(chunks));
+		connection.close();
+	}
+
+	@Test
+	public void writeThatFailsToStartIsRetriedSoon() {
+		StubLink link = new StubLink();
+		RemoteConnection connection =
+			new RemoteConnection(mHost, "00:00:00:00:00:0A", link);
+		connection.onServices(new UUID[0]);
+		link.mRefuse = 3;
+		connection.onReady();
+		assertEquals(0, link.mWriteTimes.size());
+
+		// Well before the first RSSI sample.
+		mSim.runUntil(LinkQuality.ACTIVE_INTERVAL * 1000 / 2);
+		assertEquals(1, link.mWriteTimes.size());
+		long first = link.mWriteTimes.get(0);
+		assertTrue(first > 0);
+		assertTrue(first <= 2 * RemoteConnection.WRITE_RETRY_DELAY * 1000);
+		connection.close();
+	}
+
+	@Test
+	public void queueDepthFollowsTheOutbox() {
+		StubLink link = new StubLink();
+		RemoteConnection connection = ready(link);
+		assertEquals(0, connection.queueDepth());
+		link.mRefuse = 1000;
+		connection.send(Messages.VOLUME, Messages.volume(1));
+		connection.send(Messages.VOLUME, Messages.volume(2));
+		connection.send(Messages.TRACK, Messages.track(longTrack()));
+		// The first volume has started, so the second waits behind
+		// it with the track.
+		assertEquals(3, connection.queueDepth());
+		link.mRefuse = 0;
+		mSim.runUntil(mSim.now() + 1000000);
+		assertEquals(0, connection.queueDepth());
+		connection.send(Messages.ARTIST, Messages.artist("Artist"));
+		connection.close();
+		assertEquals(1, connection.queueDepth());
+	}
+
+	@Test
+	public void noRetryAfterClose() {
+		StubLink link = new StubLink();
+		RemoteConnection connection =
+			new RemoteConnection(mHost, "00:00:00:00:00:0A", link);
+		link.mRefuse = 100;
+		connection.onReady();
+		int refused = 100 - link.mRefuse;
+		connection.close();
+		mSim.runUntil(LinkQuality.ACTIVE_INTERVAL * 1000 * 4);
+		connection.send(Messages.VOLUME, Messages.volume(10));
+		assertEquals(refused, 100 - link.mRefuse);
+		assertEquals(0, link.mWriteTimes.size());
+	}
+}
@@ -0,0 +1,64 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SavedDeviceTest {
+	static List<SavedDevice> decode(byte[] data) throws IOException {
+		return SavedDevice.decode(new ByteArrayInputStream(data));
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		List<SavedDevice> devices = Arrays.asList(
+			new SavedDevice("00:11:22:33:44:55", "Kitchen", -61, 1500000000000L),
+			new SavedDevice("66:77:88:99:AA:BB"));
+		List<SavedDevice> read = decode(SavedDevice.encode(devices));
+		assertEquals(2, read.size());
+		SavedDevice first = read.get(0);
+		assertEquals("00:11:22:33:44:55", first.address);
+		assertEquals("Kitchen", first.name);
+		assertEquals(-61, first.rssi);
+		assertEquals(1500000000000L, first.lastConnected);
+		SavedDevice second = read.get(1);
+		assertEquals("66:77:88:99:AA:BB", second.address);
+		assertNull(second.name);
+		assertEquals(0, second.rssi);
+		assertEquals(0, second.lastConnected);
+	}
+
+	@Test
+	public void roundTripsNothing() throws IOException {
+		assertEquals(0, decode(SavedDevice.encode(new ArrayList<SavedDevice>())).size());
+	}
+
+	@Test
+	public void withersLeaveTheOriginal() {
+		SavedDevice device = new SavedDevice("00:11:22:33:44:55");
+		SavedDevice named = device.withName("Desk").withRssi(-70).withLastConnected(5);
+		assertNull(device.name);
+		assertEquals(0, device.rssi);
+		assertEquals("Desk", named.name);
+		assertEquals(-70, named.rssi);
+		assertEquals(5, named.lastConnected);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsUnknownVersion() throws IOException {
+		decode(new byte[] { 0, 0, 0, 9, 0, 0, 0, 0 });
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedData() throws IOException {
+		byte[] data = SavedDevice.encode(Arrays.asList(new SavedDevice("00:11:22:33:44:55")));
+		decode(Arrays.copyOf(data, data.length - 3));
+	}
+}
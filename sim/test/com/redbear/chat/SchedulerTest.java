@@ -0,0 +1,108 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class SchedulerTest {
+	final Simulator mSim = new Simulator(1);
+	final VirtualScheduler mScheduler = new VirtualScheduler(mSim);
+
+	/* Names of tasks, with the time in ms they ran at. */
+	final ArrayList<String> mRan = new ArrayList<String>();
+
+	Scheduler.Task task(final String name) {
+		return mScheduler.task(new Runnable() {
+			public void run() {
+				mRan.add(name + "@" + mScheduler.now());
+			}
+		});
+	}
+
+	void runUntil(long ms) {
+		mSim.runUntil(ms * 1000);
+	}
+
+	@Test
+	public void runsWhenDue() {
+		task("a").schedule(100);
+		runUntil(99);
+		assertEquals(0, mRan.size());
+		runUntil(100);
+		assertEquals("[a@100]", mRan.toString());
+		assertEquals(1, mScheduler.mWakeups);
+	}
+
+	@Test
+	public void slackLetsTasksShareAWakeup() {
+		task("a").schedule(100, 50);
+		task("b").schedule(120);
+		runUntil(1000);
+		// a waited for b rather than waking us on its own.
+		assertEquals("[a@120, b@120]", mRan.toString());
+		assertEquals(1, mScheduler.mWakeups);
+		assertEquals(2, mScheduler.mRuns);
+	}
+
+	@Test
+	public void noSlackNoSharing() {
+		task("a").schedule(100);
+		task("b").schedule(120);
+		runUntil(1000);
+		assertEquals("[a@100, b@120]", mRan.toString());
+		assertEquals(2, mScheduler.mWakeups);
+	}
+
+	@Test
+	public void tooLittleSlackToShare() {
+		task("a").schedule(100, 10);
+		task("b").schedule(120);
+		runUntil(1000);
+		assertEquals("[a@110, b@120]", mRan.toString());
+		assertEquals(2, mScheduler.mWakeups);
+	}
+
+	@Test
+	public void schedulingAgainMovesTheTask() {
+		Scheduler.Task a = task("a");
+		a.schedule(100);
+		a.schedule(300);
+		runUntil(1000);
+		assertEquals("[a@300]", mRan.toString());
+		assertFalse(a.isScheduled());
+	}
+
+	@Test
+	public void cancelledTasksDontRun() {
+		Scheduler.Task a = task("a");
+		a.schedule(100);
+		assertTrue(a.isScheduled());
+		a.cancel();
+		assertFalse(a.isScheduled());
+		runUntil(1000);
+		assertEquals(0, mRan.size());
+		assertEquals(0, mScheduler.mWakeups);
+		// Cancelling again is harmless.
+		a.cancel();
+	}
+
+	@Test
+	public void tasksCanRescheduleThemselves() {
+		final Scheduler.Task[] tick = new Scheduler.Task[1];
+		tick[0] = mScheduler.task(new Runnable() {
+			public void run() {
+				mRan.add("tick@" + mScheduler.now());
+				if (mRan.size() < 3) {
+					tick[0].schedule(100);
+				}
+			}
+		});
+		tick[0].schedule(100);
+		runUntil(1000);
+		assertEquals("[tick@100, tick@200, tick@300]", mRan.toString());
+	}
+}
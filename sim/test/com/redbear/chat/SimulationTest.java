@@ -0,0 +1,73 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * The app's connection code against a VirtualPeripheral, end to end.
+ * Times are in microseconds, as on the Simulator.
+ */
+public class SimulationTest {
+	static final String ADDRESS = "00:11:22:33:44:55";
+
+	final Simulator mSim = new Simulator(1);
+	final LinkModel mModel = new LinkModel();
+	final SimHost mHost = new SimHost(mSim);
+	final VirtualPeripheral mPeripheral = new VirtualPeripheral(mSim, ADDRESS);
+	RemoteConnection mConnection;
+
+	void connect() {
+		SimulatedLink link = new SimulatedLink(mSim, mModel, mPeripheral);
+		mConnection = new RemoteConnection(mHost, ADDRESS, link);
+		mConnection.mGestures = mHost.gestureRecognizer(mConnection);
+		mHost.mPool.put(mConnection);
+		mConnection.connect();
+		run(2000000);
+	}
+
+	void run(long us) {
+		mSim.runUntil(mSim.now() + us);
+	}
+
+	void checkEcho() {
+		assertEquals(1, mHost.mReady);
+		mHost.sendTrack("Artist", "Track", 180000);
+		mPeripheral.press('V');
+		mPeripheral.press('V');
+		run(2000000);
+		assertEquals("Artist", mPeripheral.mArtist);
+		assertEquals("Track", mPeripheral.mTrack);
+		assertEquals((64 + 2) * 2, mPeripheral.mVolume);
+		assertEquals(0, mPeripheral.badBytes());
+	}
+
+	@Test
+	public void remoteProfile() {
+		connect();
+		checkEcho();
+	}
+
+	@Test
+	public void uart() {
+		mModel.channels = false;
+		connect();
+		checkEcho();
+	}
+
+	@Test
+	public void lossyLink() {
+		mModel.lossRate = 0.2;
+		connect();
+		checkEcho();
+	}
+
+	@Test
+	public void pressesWhileDownAreDropped() {
+		mPeripheral.press('V');
+		assertEquals(1, mPeripheral.mDroppedPresses);
+		connect();
+		run(1000000);
+		assertEquals(-1, mPeripheral.mPendingVolumeSince);
+	}
+}
@@ -0,0 +1,107 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TraceTest {
+	@Before
+	public void setUp() {
+		Trace.clear();
+		Trace.setLevel(Trace.EVENTS);
+	}
+
+	@After
+	public void tearDown() {
+		Trace.setLevel(Trace.OFF);
+		Trace.clear();
+	}
+
+	/* The dump's records, as event, a and b per record. */
+	static int[][] dump() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Trace.dump(bytes);
+		DataInputStream in = new DataInputStream(
+			new ByteArrayInputStream(bytes.toByteArray()));
+		byte[] magic = new byte[Trace.MAGIC.length];
+		in.readFully(magic);
+		assertArrayEquals(Trace.MAGIC, magic);
+		assertEquals(Trace.VERSION, in.readUnsignedByte());
+		int[][] records = new int[in.readInt()][];
+		long last = Long.MIN_VALUE;
+		for (int i = 0; i < records.length; i++) {
+			int event = in.readByte();
+			long time = in.readLong();
+			assertTrue(time >= last);
+			last = time;
+			records[i] = new int[] { event, in.readInt(), in.readInt() };
+		}
+		assertEquals(-1, in.read());
+		return records;
+	}
+
+	@Test
+	public void recordsInOrder() throws IOException {
+		Trace.event(Trace.COMMAND, 'x', 0);
+		Trace.event(Trace.VOLUME, 65, 9);
+		int[][] records = dump();
+		assertEquals(2, records.length);
+		assertArrayEquals(new int[] { Trace.COMMAND, 'x', 0 }, records[0]);
+		assertArrayEquals(new int[] { Trace.VOLUME, 65, 9 }, records[1]);
+	}
+
+	@Test
+	public void nothingWhenOff() throws IOException {
+		Trace.setLevel(Trace.OFF);
+		assertFalse(Trace.on(Trace.EVENTS));
+		Trace.event(Trace.COMMAND, 'x', 0);
+		assertEquals(0, dump().length);
+	}
+
+	@Test
+	public void levels() {
+		assertTrue(Trace.on(Trace.EVENTS));
+		assertFalse(Trace.on(Trace.VERBOSE));
+		Trace.setLevel(Trace.VERBOSE);
+		assertTrue(Trace.on(Trace.EVENTS));
+	}
+
+	@Test
+	public void ringKeepsTheNewest() throws IOException {
+		int extra = 10;
+		for (int i = 0; i < Trace.RING_SIZE + extra; i++) {
+			Trace.event(Trace.WRITE, i, -i);
+		}
+		int[][] records = dump();
+		assertEquals(Trace.RING_SIZE, records.length);
+		for (int i = 0; i < records.length; i++) {
+			assertArrayEquals(new int[] { Trace.WRITE, extra + i, -(extra + i) },
+							  records[i]);
+		}
+	}
+
+	@Test
+	public void clearEmpties() throws IOException {
+		Trace.event(Trace.SYNC, 1, 0);
+		Trace.clear();
+		assertEquals(0, dump().length);
+	}
+
+	@Test
+	public void unknownEventsHaveAName() {
+		assertEquals("gesture", Trace.name(Trace.GESTURE));
+		assertEquals("?", Trace.name(0));
+		assertEquals("?", Trace.name(Trace.NAMES.length));
+		assertEquals("?", Trace.name(-3));
+	}
+}
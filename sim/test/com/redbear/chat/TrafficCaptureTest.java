@@ -0,0 +1,132 @@
+package com.redbear.chat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrafficCaptureTest {
+	static final String A = "00:11:22:33:44:55";
+	static final String B = "66:77:88:99:AA:BB";
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	static void session(File file, String address, int rssi) throws IOException {
+		TrafficCapture capture = new TrafficCapture();
+		capture.start(file);
+		capture.record(TrafficCapture.CONNECTED, address);
+		capture.record(TrafficCapture.RSSI, address, new byte[] { (byte) rssi });
+		capture.stop();
+	}
+
+	static void expect(CaptureReader reader, int type, String address,
+					   byte[] payload) throws IOException {
+		assertTrue(reader.next());
+		assertEquals(type, reader.type);
+		assertEquals(address, reader.address);
+		assertArrayEquals(payload, reader.payload);
+	}
+
+	static CaptureReader read(File file) throws IOException {
+		return new CaptureReader(new FileInputStream(file));
+	}
+
+	@Test
+	public void roundTrips() throws IOException {
+		File file = mFolder.newFile();
+		TrafficCapture capture = new TrafficCapture();
+		capture.start(file);
+		assertTrue(capture.isRecording());
+		byte[] chunk = new byte[300];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = (byte) i;
+		}
+		capture.record(TrafficCapture.CONNECTED, A);
+		capture.record(TrafficCapture.CONNECTED, B);
+		capture.record(TrafficCapture.WRITE, A, chunk, 10, 200);
+		capture.record(TrafficCapture.NOTIFY, B, new byte[] { 'x' });
+		capture.stop();
+		assertFalse(capture.isRecording());
+		assertEquals(0, capture.dropped());
+
+		CaptureReader reader = read(file);
+		expect(reader, TrafficCapture.CONNECTED, A, new byte[0]);
+		long time = reader.time;
+		expect(reader, TrafficCapture.CONNECTED, B, new byte[0]);
+		byte[] expected = new byte[200];
+		System.arraycopy(chunk, 10, expected, 0, 200);
+		expect(reader, TrafficCapture.WRITE, A, expected);
+		expect(reader, TrafficCapture.NOTIFY, B, new byte[] { 'x' });
+		assertTrue(reader.time >= time);
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void nothingIsRecordedWhenOff() throws IOException {
+		File file = mFolder.newFile();
+		TrafficCapture capture = new TrafficCapture();
+		capture.record(TrafficCapture.CONNECTED, A);
+		capture.start(file);
+		capture.stop();
+		capture.record(TrafficCapture.CONNECTED, A);
+		assertFalse(read(file).next());
+	}
+
+	@Test
+	public void sessionsAppend() throws IOException {
+		File file = mFolder.newFile();
+		session(file, A, -50);
+		session(file, B, -60);
+		CaptureReader reader = read(file);
+		expect(reader, TrafficCapture.CONNECTED, A, new byte[0]);
+		expect(reader, TrafficCapture.RSSI, A, new byte[] { -50 });
+		// Ids start again at 0 in the second session.
+		expect(reader, TrafficCapture.CONNECTED, B, new byte[0]);
+		expect(reader, TrafficCapture.RSSI, B, new byte[] { -60 });
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void otherVersionIsReplaced() throws IOException {
+		File file = mFolder.newFile();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(TrafficCapture.MAGIC);
+		out.write(TrafficCapture.VERSION + 1);
+		out.write(new byte[] { 1, 2, 3, 4 });
+		out.close();
+
+		session(file, A, -50);
+		CaptureReader reader = read(file);
+		expect(reader, TrafficCapture.CONNECTED, A, new byte[0]);
+		expect(reader, TrafficCapture.RSSI, A, new byte[] { -50 });
+		assertFalse(reader.next());
+	}
+
+	@Test
+	public void readerRejectsOtherVersions() throws IOException {
+		byte[] header = { 'R', 'B', 'L', 'C', (byte) (TrafficCapture.VERSION + 1) };
+		try {
+			new CaptureReader(new ByteArrayInputStream(header));
+			fail();
+		} catch (IOException e) {
+		}
+		try {
+			new CaptureReader(new ByteArrayInputStream(new byte[] { 'R', 'I', 'F', 'F', 1 }));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+}
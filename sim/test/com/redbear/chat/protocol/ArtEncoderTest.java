@@ -0,0 +1,66 @@
+package com.redbear.chat.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ArtEncoderTest {
+	static void assertRoundTrip(byte[] bits) {
+		byte[] compressed = ArtEncoder.compress(bits);
+		assertArrayEquals(bits, ArtEncoder.decompress(compressed, compressed.length));
+	}
+
+	@Test
+	public void roundTripsNoise() {
+		Random random = new Random(1);
+		for (int i = 0; i < 20; i++) {
+			byte[] bits = new byte[ArtEncoder.BYTES];
+			random.nextBytes(bits);
+			assertRoundTrip(bits);
+		}
+	}
+
+	@Test
+	public void roundTripsBlankAndFull() {
+		byte[] bits = new byte[ArtEncoder.BYTES];
+		assertRoundTrip(bits);
+		for (int i = 0; i < bits.length; i++) {
+			bits[i] = (byte) 0xFF;
+		}
+		assertRoundTrip(bits);
+	}
+
+	@Test
+	public void flatGreyCompressesWell() {
+		int side = 64;
+		int[] argb = new int[side * side];
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = 0xFF808080;
+		}
+		byte[] bits = ArtEncoder.thumbnail(argb, side, side);
+		assertEquals(ArtEncoder.BYTES, bits.length);
+		byte[] compressed = ArtEncoder.compress(bits);
+		assertTrue("compressed to " + compressed.length, compressed.length < 32);
+		assertRoundTrip(bits);
+	}
+
+	@Test
+	public void truncatedDataIsRejected() {
+		byte[] bits = new byte[ArtEncoder.BYTES];
+		new Random(2).nextBytes(bits);
+		byte[] compressed = ArtEncoder.compress(bits);
+		assertNull(ArtEncoder.decompress(compressed, compressed.length - 1));
+		assertNull(ArtEncoder.decompress(compressed, 0));
+	}
+
+	@Test
+	public void hashIsNeverZero() {
+		byte[] bits = new byte[ArtEncoder.BYTES];
+		assertTrue(ArtEncoder.hash(bits) != 0);
+	}
+}
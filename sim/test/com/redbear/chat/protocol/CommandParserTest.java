@@ -0,0 +1,115 @@
+package com.redbear.chat.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CommandParserTest {
+	final List<String> mCommands = new ArrayList<String>();
+
+	final CommandParser mParser = new CommandParser(new CommandParser.Listener() {
+		public void onCommand(int command, byte[] args, int length) {
+			StringBuilder sb = new StringBuilder();
+			sb.append((char) command);
+			for (int i = 0; i < length; i++) {
+				sb.append(' ').append(args[i] & 0xFF);
+			}
+			mCommands.add(sb.toString());
+		}
+	});
+
+	static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+		for (int i = 0; i < values.length; i++) {
+			b[i] = (byte) values[i];
+		}
+		return b;
+	}
+
+	/* Feed the stream in two parts, split at every point in turn, and
+	 * check it always parses the same. */
+	void checkSplits(byte[] stream, String expected) {
+		for (int split = 0; split <= stream.length; split++) {
+			mCommands.clear();
+			mParser.reset();
+			mParser.feed(stream, 0, split);
+			mParser.feed(stream, split, stream.length - split);
+			assertEquals("split at " + split, expected, mCommands.toString());
+		}
+	}
+
+	@Test
+	public void parsesPlainCommands() {
+		mParser.feed(bytes('x', 'P', 'N', 'v', 'V', 'o'));
+		assertEquals("[x, P, N, v, V, o]", mCommands.toString());
+	}
+
+	@Test
+	public void skipsUnknownBytes() {
+		mParser.feed(bytes('x', 'z', 0, 'N'));
+		assertEquals("[x, N]", mCommands.toString());
+		assertEquals(2, mParser.skipped());
+	}
+
+	@Test
+	public void carriesArgumentsAcrossFeeds() {
+		mParser.define('w', 3);
+		mParser.feed(bytes('x', 'w'));
+		mParser.feed(bytes(5));
+		mParser.feed(bytes(0x12, 0xfe, 'w', 5, 0x13));
+		assertEquals("[x, w 5 18 254]", mCommands.toString());
+		mParser.feed(bytes(0xaa, 0x00, 'N', 1, 2), 1, 2);
+		assertEquals("[x, w 5 18 254, w 5 19 0, N]", mCommands.toString());
+	}
+
+	@Test
+	public void everySplitGivesTheSameCommands() {
+		mParser.define('w', 3);
+		checkSplits(bytes('w', 0, 16, 8, 'V', 'w', 2, 0xff, 0xf0, 'x'),
+					"[w 0 16 8, V, w 2 255 240, x]");
+	}
+
+	@Test
+	public void resetDropsPartialCommand() {
+		mParser.define('w', 2);
+		mParser.feed(bytes('w', 1));
+		mParser.reset();
+		mParser.feed(bytes('x'));
+		assertEquals("[x]", mCommands.toString());
+	}
+
+	@Test
+	public void pressAndRelease() {
+		// Button, then the remote's clock in ms, high byte first.
+		checkSplits(bytes('d', 'N', 0x12, 0x34, 'u', 'N', 0x12, 0xff, 'x'),
+					"[d 78 18 52, u 78 18 255, x]");
+	}
+
+	@Test
+	public void pageRequest() {
+		// Index, high byte first, then how many.
+		checkSplits(bytes('g', 0x01, 0x08, 8, 'N'), "[g 1 8 8, N]");
+	}
+
+	@Test
+	public void artRequest() {
+		// Hash, high byte first, then the offset to carry on from.
+		checkSplits(bytes('r', 0x12, 0xab, 0x34, 0xcd, 0x01, 0x02, 'x'),
+					"[r 18 171 52 205 1 2, x]");
+	}
+
+	@Test
+	public void defineChangesArguments() {
+		mParser.define('x', 1);
+		mParser.feed(bytes('x', 'N', 'N'));
+		assertEquals("[x 78, N]", mCommands.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void defineRejectsTooManyArguments() {
+		mParser.define('w', CommandParser.MAX_ARGS + 1);
+	}
+}
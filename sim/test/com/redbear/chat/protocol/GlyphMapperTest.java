@@ -0,0 +1,64 @@
+package com.redbear.chat.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class GlyphMapperTest {
+	static String map(String s) {
+		return new String(GlyphMapper.map(s, 100));
+	}
+
+	@Test
+	public void asciiIsUnchanged() {
+		assertEquals("Hello, World! ~", map("Hello, World! ~"));
+	}
+
+	@Test
+	public void accentsAreDropped() {
+		assertEquals("Beyonce", map("Beyonc\u00e9"));
+		assertEquals("Angstrom", map("\u00c5ngstr\u00f6m"));
+		assertEquals("Lodz", map("\u0141\u00f3d\u017a"));
+	}
+
+	@Test
+	public void combiningMarksAreDropped() {
+		// The same as the precomposed forms above.
+		assertEquals("Beyonce", map("Beyonce\u0301"));
+		assertEquals("Angstrom", map("A\u030angstro\u0308m"));
+		// Several on one letter, and one with nothing before it.
+		assertEquals("a", map("a\u0323\u0302"));
+		assertEquals("", map("\u0301"));
+		// Beyond the table too.
+		assertEquals("", GlyphMapper.transliterate(0x20d7));
+		assertEquals("", GlyphMapper.lookup(0x1dc0));
+	}
+
+	@Test
+	public void someLettersAreSpelledOut() {
+		assertEquals("Strasse", map("Stra\u00dfe"));
+		assertEquals("AEon", map("\u00c6on"));
+		assertEquals("\"Quoted\" - it's...",
+					 map("\u201cQuoted\u201d \u2013 it\u2019s\u2026"));
+	}
+
+	@Test
+	public void controlsBecomeSpaces() {
+		assertEquals("a b c d", map("a\nb\tc\u00a0d"));
+	}
+
+	@Test
+	public void unmappableIsUnknown() {
+		assertEquals("??", map("\u65e5\u672c"));
+		// Outside the BMP: one glyph, not one per surrogate.
+		assertEquals("?", map(new String(Character.toChars(0x1f3b5))));
+	}
+
+	@Test
+	public void stopsAtMax() {
+		assertEquals(3, GlyphMapper.map("abcdef", 3).length);
+		// A spelled out letter can be cut short.
+		assertEquals("Stra", new String(GlyphMapper.map("Stra\u00dfe", 4)));
+		assertEquals("Stras", new String(GlyphMapper.map("Stra\u00dfe", 5)));
+	}
+}
@@ -0,0 +1,160 @@
+package com.redbear.chat.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageDecoderTest {
+	final List<String> mEvents = new ArrayList<String>();
+
+	final MessageDecoder mDecoder = new MessageDecoder(new MessageDecoder.Listener() {
+		public void onVolume(int volume) {
+			mEvents.add("volume " + volume);
+		}
+
+		public void onPlaying(boolean playing) {
+			mEvents.add("playing " + playing);
+		}
+
+		public void onNetwork(boolean online) {
+			mEvents.add("network " + online);
+		}
+
+		public void onText(int type, byte[] text, int length) {
+			mEvents.add("text " + type + " " + new String(text, 0, length));
+		}
+
+		public void onBitmap(int type, byte[] columns, int length) {
+			mEvents.add("bitmap " + type + " " + length);
+		}
+
+		public void onPosition(int seq, long position, long length) {
+			mEvents.add("position " + seq + " " + position + " " + length);
+		}
+
+		public void onCorrection(int seq, int correction) {
+			mEvents.add("correction " + seq + " " + correction);
+		}
+
+		public void onQueuePage(int index, int total, int count, byte[] items,
+								int length) {
+			mEvents.add("page " + index + " " + total + " " + count + " " +
+						new String(items, 0, length).replace('\n', '|'));
+		}
+
+		public void onQueueChanged(int index, int total) {
+			mEvents.add("changed " + index + " " + total);
+		}
+
+		public void onArt(int hash) {
+			mEvents.add("art " + Integer.toHexString(hash));
+		}
+
+		public void onArtData(int hash, int offset, int total, byte[] data,
+							  int length) {
+			StringBuilder sb = new StringBuilder("data ");
+			sb.append(Integer.toHexString(hash)).append(' ').append(offset)
+				.append(' ').append(total);
+			for (int i = 0; i < length; i++) {
+				sb.append(' ').append(data[i] & 0xFF);
+			}
+			mEvents.add(sb.toString());
+		}
+	});
+
+	static byte[] concat(byte[]... messages) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] message : messages) {
+			out.write(message, 0, message.length);
+		}
+		return out.toByteArray();
+	}
+
+	/* Feed the stream whole, a byte at a time, and in two parts split
+	 * at every point in turn, and check it always decodes the same. */
+	void check(byte[] stream, String expected) {
+		mEvents.clear();
+		mDecoder.reset();
+		mDecoder.feed(stream);
+		assertEquals(expected, mEvents.toString());
+		assertEquals(0, mDecoder.badBytes());
+
+		mEvents.clear();
+		for (int i = 0; i < stream.length; i++) {
+			mDecoder.feed(stream, i, 1);
+		}
+		assertEquals(expected, mEvents.toString());
+
+		for (int split = 0; split <= stream.length; split++) {
+			mEvents.clear();
+			mDecoder.reset();
+			mDecoder.feed(stream, 0, split);
+			mDecoder.feed(stream, split, stream.length - split);
+			assertEquals("split at " + split, expected, mEvents.toString());
+		}
+	}
+
+	@Test
+	public void state() {
+		check(concat(Messages.volume(64), Messages.playing(true),
+					 Messages.network(false), Messages.playing(false),
+					 Messages.network(true), Messages.volume(127)),
+			  "[volume 128, playing true, network false, playing false, " +
+			  "network true, volume 254]");
+	}
+
+	@Test
+	public void text() {
+		check(concat(Messages.artist("Artist"), Messages.track("Track"),
+					 Messages.artist("")),
+			  "[text " + Messages.ARTIST + " Artist, text " + Messages.TRACK +
+			  " Track, text " + Messages.ARTIST + " ]");
+	}
+
+	@Test
+	public void bitmaps() {
+		int artist = GlyphFont.render(GlyphMapper.map("Artist", Messages.MAX_TEXT)).length;
+		int track = GlyphFont.render(GlyphMapper.map("Tr\u00e4ck", Messages.MAX_TEXT)).length;
+		check(concat(Messages.artist("Artist", true), Messages.track("Tr\u00e4ck", true),
+					 Messages.track("Track", false)),
+			  "[bitmap " + Messages.ARTIST + " " + artist + ", bitmap " +
+			  Messages.TRACK + " " + track + ", text " + Messages.TRACK + " Track]");
+	}
+
+	@Test
+	public void position() {
+		check(concat(Messages.position(3, 12300, 180000), Messages.correction(3, -5),
+					 Messages.correction(3, 127), Messages.position(15, 0, 0)),
+			  "[position 3 12300 180000, correction 3 -500, " +
+			  "correction 3 12700, position 15 0 0]");
+	}
+
+	@Test
+	public void queue() {
+		byte[][] items = { "One".getBytes(), "Two".getBytes() };
+		check(concat(Messages.queuePage(0x10, 0x123, items, 2),
+					 Messages.queueChanged(3, 0x122),
+					 Messages.queuePage(0, 0, items, 0)),
+			  "[page 16 291 2 One|Two|, changed 3 290, page 0 0 0 ]");
+	}
+
+	@Test
+	public void art() {
+		byte[] data = { 1, 2, (byte) 255, 0, (byte) 128, 127, 64 };
+		check(concat(Messages.art(0x12ab34cd), Messages.artData(0x12ab34cd, data, 0, 5),
+					 Messages.artData(0x12ab34cd, data, 5, 2), Messages.art(0)),
+			  "[art 12ab34cd, data 12ab34cd 0 7 1 2 255 0 128, " +
+			  "data 12ab34cd 5 7 127 64, art 0]");
+	}
+
+	@Test
+	public void recoversFromBadHex() {
+		mDecoder.feed(new byte[] { 'v', '4', 'g', 'X' });
+		assertEquals("[playing true]", mEvents.toString());
+		assertEquals(1, mDecoder.badBytes());
+	}
+}
@@ -0,0 +1,52 @@
+package com.redbear.chat.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessagesTest {
+	@Test
+	public void replaceFoldsCorrectionIntoPosition() {
+		byte[] p = Messages.position(7, 12000, 180000);
+		assertArrayEquals(Messages.position(7, 12300, 180000),
+						  Messages.replace(p, Messages.correction(7, 3)));
+		assertArrayEquals(Messages.position(7, 11900, 180000),
+						  Messages.replace(p, Messages.correction(7, -1)));
+	}
+
+	@Test
+	public void replaceKeepsNewerMessageOtherwise() {
+		byte[] p = Messages.position(7, 12000, 180000);
+		byte[] q = Messages.correction(8, 3);
+		assertSame(q, Messages.replace(p, q));
+		assertSame(q, Messages.replace(null, q));
+		byte[] newer = Messages.position(8, 0, 1000);
+		assertSame(newer, Messages.replace(p, newer));
+		assertSame(p, Messages.replace(q, p));
+	}
+
+	@Test
+	public void queueMessagesOnlySupersedeTheirOwnKind() {
+		byte[] page = Messages.queuePage(8, 20, new byte[0][], 0);
+		byte[] samePage = Messages.queuePage(8, 21, new byte[0][], 0);
+		byte[] otherPage = Messages.queuePage(16, 20, new byte[0][], 0);
+		byte[] changed = Messages.queueChanged(8, 20);
+		assertTrue(Messages.supersedes(samePage, page));
+		assertFalse(Messages.supersedes(otherPage, page));
+		assertFalse(Messages.supersedes(changed, page));
+		assertFalse(Messages.supersedes(page, changed));
+		assertTrue(Messages.supersedes(Messages.queueChanged(0, 20), changed));
+		// Anything else always does.
+		assertTrue(Messages.supersedes(Messages.volume(1), Messages.volume(2)));
+	}
+
+	@Test
+	public void replaceClampsAtZero() {
+		byte[] p = Messages.position(1, 200, 180000);
+		assertArrayEquals(Messages.position(1, 0, 180000),
+						  Messages.replace(p, Messages.correction(1, -10)));
+	}
+}
@@ -0,0 +1,245 @@
+package com.redbear.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * GattLink on top of the Android Bluetooth stack, talking to the
+ * remote profile if the device has it and to the BLE Shield UART
+ * service if not.
+ */
+class AndroidGattLink implements GattLink {
+	/* Largest value we can write to a characteristic in one go. */
+	static final int CHUNK_SIZE = 20;
+
+	static final UUID UUID_REMOTE_SERVICE =
+		UUID.fromString(RBLGattAttributes.REMOTE_SERVICE);
+	static final UUID UUID_REMOTE_INPUT =
+		UUID.fromString(RBLGattAttributes.REMOTE_INPUT);
+
+	final static String TAG = AndroidGattLink.class.getSimpleName();
+
+	final Context mContext;
+	final BluetoothAdapter mAdapter;
+	final String mAddress;
+
+	BluetoothGatt mGatt;
+	BluetoothGattCharacteristic mTX;
+	/* Where input arrives: RX, or the remote profile's input
+	 * characteristic. */
+	BluetoothGattCharacteristic mInput;
+	/* Per message type, when the remote has the profile; otherwise
+	 * null and everything goes to TX. */
+	BluetoothGattCharacteristic[] mChannels;
+	Callback mCallback;
+
+	AndroidGattLink(Context context, BluetoothAdapter adapter, String address) {
+		mContext = context;
+		mAdapter = adapter;
+		mAddress = address;
+	}
+
+	final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+		@Override
+		public void onConnectionStateChange(BluetoothGatt gatt,
+											int status,
+											int newState) {
+			if (newState == BluetoothProfile.STATE_CONNECTED) {
+				Log.i(TAG, "Connected to GATT server: " + mAddress);
+				if (!gatt.discoverServices()) {
+					Log.e(TAG, "Service discovery failed to start.");
+				}
+				mCallback.onConnected();
+			} else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+				Log.i(TAG, "Disconnected from GATT server: " + mAddress);
+				mCallback.onDisconnected();
+			}
+		}
+
+		@Override
+		public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				Log.e(TAG, "onServicesDiscovered received: " + status);
+				return;
+			}
+
+			List<UUID> layout = new ArrayList<UUID>();
+			for (BluetoothGattService s : gatt.getServices()) {
+				for (BluetoothGattCharacteristic c : s.getCharacteristics()) {
+					layout.add(c.getUuid());
+				}
+			}
+			UUID[] uuids = layout.toArray(new UUID[layout.size()]);
+			mCallback.onServices(uuids);
+
+			BluetoothGattService remote = gatt.getService(UUID_REMOTE_SERVICE);
+			if (remote != null && RBLGattAttributes.hasRemoteProfile(uuids)) {
+				mChannels = new BluetoothGattCharacteristic[Messages.NUM_TYPES];
+				for (int type = 0; type < Messages.NUM_TYPES; type++) {
+					mChannels[type] = remote.getCharacteristic(UUID.fromString(
+						RBLGattAttributes.characteristicFor(type)));
+				}
+				mInput = remote.getCharacteristic(UUID_REMOTE_INPUT);
+				setCharacteristicNotification(mInput, true);
+				return;
+			}
+
+			BluetoothGattService service =
+				gatt.getService(RBLService.UUID_BLE_SHIELD_SERVICE);
+			if (service == null) {
+				Log.e(TAG, "BLE Shield service not found on " + mAddress);
+				return;
+			}
+
+			mChannels = null;
+			mTX = service.getCharacteristic(RBLService.UUID_BLE_SHIELD_TX);
+			mInput = service.getCharacteristic(RBLService.UUID_BLE_SHIELD_RX);
+			setCharacteristicNotification(mInput, true);
+		}
+
+		@Override
+		public void onDescriptorWrite(BluetoothGatt gatt,
+									  BluetoothGattDescriptor descriptor,
+									  int status) {
+			// Notifications on input are the last step of the handshake.
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mCallback.onReady();
+			} else {
+				Log.e(TAG, "onDescriptorWrite received: " + status);
+			}
+		}
+
+		@Override
+		public void onCharacteristicWrite(BluetoothGatt gatt,
+										  BluetoothGattCharacteristic characteristic,
+										  int status) {
+			if (status != BluetoothGatt.GATT_SUCCESS) {
+				Log.w(TAG, "onCharacteristicWrite received: " + status);
+			}
+			mCallback.onWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+		}
+
+		@Override
+		public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				mCallback.onRssi(rssi);
+			} else {
+				Log.w(TAG, "onReadRemoteRssi received: " + status);
+			}
+		}
+
+		@Override
+		public void onCharacteristicRead(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic, int status) {
+			if (status == BluetoothGatt.GATT_SUCCESS) {
+				onCharacteristicChanged(gatt, characteristic);
+			}
+		}
+
+		@Override
+		public void onCharacteristicChanged(BluetoothGatt gatt,
+				BluetoothGattCharacteristic characteristic) {
+			if (mInput != null && mInput.getUuid().equals(characteristic.getUuid())) {
+				mCallback.onNotification(characteristic.getValue());
+			}
+		}
+	};
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	public boolean connect() {
+		if (mGatt != null) {
+			Log.d(TAG, "Trying to use an existing mGatt for " + mAddress);
+			return mGatt.connect();
+		}
+
+		final BluetoothDevice device = mAdapter.getRemoteDevice(mAddress);
+		if (device == null) {
+			Log.e(TAG, "Device not found.  Unable to connect.");
+			return false;
+		}
+
+		Log.d(TAG, "Trying to create a new connection to " + mAddress);
+		mGatt = device.connectGatt(mContext, true, mGattCallback);
+		return mGatt != null;
+	}
+
+	public void disconnect() {
+		if (mGatt == null) {
+			return;
+		}
+		mGatt.disconnect();
+	}
+
+	public void close() {
+		if (mGatt == null) {
+			return;
+		}
+		mGatt.close();
+		mGatt = null;
+	}
+
+	public int maxWriteSize() {
+		return CHUNK_SIZE;
+	}
+
+	public boolean hasChannels() {
+		return mChannels != null;
+	}
+
+	public boolean write(int type, byte[] chunk) {
+		BluetoothGattCharacteristic characteristic =
+			mChannels != null ? mChannels[type] : mTX;
+		if (mGatt == null || characteristic == null) {
+			return false;
+		}
+		characteristic.setValue(chunk);
+		return mGatt.writeCharacteristic(characteristic);
+	}
+
+	public void readRssi() {
+		if (mGatt == null) {
+			return;
+		}
+		mGatt.readRemoteRssi();
+	}
+
+	/**
+	 * Enables or disables notification on a give characteristic.
+	 *
+	 * @param characteristic
+	 *            Characteristic to act on.
+	 * @param enabled
+	 *            If true, enable notification. False otherwise.
+	 */
+	void setCharacteristicNotification(
+		BluetoothGattCharacteristic characteristic, boolean enabled) {
+		if (mGatt == null) {
+			return;
+		}
+		mGatt.setCharacteristicNotification(characteristic, enabled);
+
+		BluetoothGattDescriptor descriptor = characteristic
+			.getDescriptor(UUID
+						   .fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
+		descriptor
+			.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+		mGatt.writeDescriptor(descriptor);
+	}
+}
@@ -0,0 +1,119 @@
+package com.redbear.chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.redbear.chat.protocol.ArtEncoder;
+
+/**
+ * Turns cover art bitmaps into thumbnails for ArtStreamer, on a
+ * background thread.
+ *
+ * Spotify posts the same cover for every track on an album, and
+ * often reposts the notification for one track, so we remember
+ * which thumbnail each bitmap made. Comparing a sample of 64 pixels
+ * is a lot cheaper than scaling the whole bitmap again.
+ *
+ * NLService runs in our process and hands covers straight to the
+ * running loader (current()), rather than putting a full-size bitmap
+ * in a broadcast. That could be too big for the binder, which would
+ * lose the song change with it, and anyone could receive it.
+ */
+class ArtLoader {
+	final static String TAG = ArtLoader.class.getSimpleName();
+
+	/* Sample grid, per side. */
+	static final int SAMPLES = 8;
+	static final int MAX_KEYS = 16;
+
+	/* The running service's loader, or null. */
+	static ArtLoader sCurrent;
+
+	final ArtStreamer mStreamer;
+	final HandlerThread mThread;
+	final Handler mHandler;
+
+	/* Sample key to thumbnail hash. Only touched on mThread. */
+	final LinkedHashMap<Integer, Integer> mHashes =
+		new LinkedHashMap<Integer, Integer>(MAX_KEYS * 2, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, Integer> eldest) {
+				return size() > MAX_KEYS;
+			}
+		};
+
+	ArtLoader(ArtStreamer streamer) {
+		mStreamer = streamer;
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+		synchronized (ArtLoader.class) {
+			sCurrent = this;
+		}
+	}
+
+	static synchronized ArtLoader current() {
+		return sCurrent;
+	}
+
+	/**
+	 * @param bitmap
+	 *            The new cover, or null for none.
+	 */
+	void load(final Bitmap bitmap) {
+		mHandler.post(new Runnable() {
+			public void run() {
+				if (bitmap == null) {
+					mStreamer.setArt(0, null);
+				} else {
+					encode(bitmap);
+				}
+			}
+		});
+	}
+
+	void encode(Bitmap bitmap) {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		int key = key(bitmap, width, height);
+		Integer hash = mHashes.get(key);
+		if (hash != null && mStreamer.has(hash)) {
+			mStreamer.setArt(hash, null);
+			return;
+		}
+
+		int[] pixels = new int[width * height];
+		bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+		byte[] bits = ArtEncoder.thumbnail(pixels, width, height);
+		hash = ArtEncoder.hash(bits);
+		mHashes.put(key, hash);
+		mStreamer.setArt(hash, ArtEncoder.compress(bits));
+	}
+
+	static int key(Bitmap bitmap, int width, int height) {
+		int key = width * 31 + height;
+		for (int y = 0; y < SAMPLES; y++) {
+			for (int x = 0; x < SAMPLES; x++) {
+				key = key * 31 + bitmap.getPixel(x * width / SAMPLES,
+												 y * height / SAMPLES);
+			}
+		}
+		return key;
+	}
+
+	void close() {
+		synchronized (ArtLoader.class) {
+			if (sCurrent == this) {
+				sCurrent = null;
+			}
+		}
+		mThread.quit();
+	}
+}
@@ -0,0 +1,149 @@
+package com.redbear.chat;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * Gets cover art to the remotes, at the lowest priority there is.
+ *
+ * Remotes are only told which art to show, by hash. One that doesn't
+ * have it asks for the data from the offset it has got to, which is
+ * also how a transfer cut off by a dropped link resumes. The data
+ * then goes out one j message at a time, each queued when the last
+ * has been written, so it only ever fills the link when nothing else
+ * wants it and a newer request takes over at the next segment.
+ *
+ * We keep the compressed art for the last few hashes, so a remote
+ * that asks late, or for the album before, is still served.
+ */
+class ArtStreamer {
+	static final int MAX_ART = 8;
+
+	static class Transfer {
+		final int hash;
+		final byte[] data;
+		int offset;
+
+		Transfer(int hash, byte[] data, int offset) {
+			this.hash = hash;
+			this.data = data;
+			this.offset = offset;
+		}
+	}
+
+	final ConnectionPool mPool;
+
+	/* Compressed art by hash, least recently used first. */
+	final LinkedHashMap<Integer, byte[]> mArt =
+		new LinkedHashMap<Integer, byte[]>(MAX_ART * 2, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+				return size() > MAX_ART;
+			}
+		};
+
+	/* By remote address. */
+	final HashMap<String, Transfer> mTransfers = new HashMap<String, Transfer>();
+
+	int mCurrent = 0;
+
+	/* Counters for the load test and diagnostics. */
+	long mRequests = 0;
+	long mSegments = 0;
+	long mBytes = 0;
+
+	ArtStreamer(ConnectionPool pool) {
+		mPool = pool;
+	}
+
+	synchronized boolean has(int hash) {
+		return mArt.containsKey(hash);
+	}
+
+	/**
+	 * Show this art on every remote.
+	 *
+	 * @param data
+	 *            ArtEncoder.compress() output, or null if we already
+	 *            have it or hash is 0.
+	 */
+	void setArt(int hash, byte[] data) {
+		synchronized (this) {
+			if (data != null) {
+				mArt.put(hash, data);
+			}
+			if (hash == mCurrent) {
+				return;
+			}
+			mCurrent = hash;
+		}
+		mPool.broadcast(Messages.ART, Messages.art(hash));
+	}
+
+	/**
+	 * Tell every remote again, e.g. because one has just connected.
+	 */
+	void resync() {
+		int hash;
+		synchronized (this) {
+			hash = mCurrent;
+		}
+		mPool.broadcast(Messages.ART, Messages.art(hash));
+	}
+
+	/**
+	 * A remote wants art data from offset on.
+	 */
+	void request(RemoteConnection connection, int hash, int offset) {
+		synchronized (this) {
+			mRequests++;
+			byte[] data = mArt.get(hash);
+			if (data == null) {
+				// Too old. It'll get the current art's hash on the
+				// next change or reconnect.
+				return;
+			}
+			mTransfers.put(connection.mAddress, new Transfer(hash, data, offset));
+		}
+		sendNext(connection);
+	}
+
+	/**
+	 * A message has been written to a remote.
+	 */
+	void onSent(RemoteConnection connection, int type) {
+		if (type == Messages.ART_DATA) {
+			sendNext(connection);
+		}
+	}
+
+	void forget(RemoteConnection connection) {
+		synchronized (this) {
+			mTransfers.remove(connection.mAddress);
+		}
+	}
+
+	void sendNext(RemoteConnection connection) {
+		byte[] message;
+		synchronized (this) {
+			Transfer transfer = mTransfers.get(connection.mAddress);
+			if (transfer == null) {
+				return;
+			}
+			int count = Math.min(Messages.ART_SEGMENT,
+								 transfer.data.length - transfer.offset);
+			if (count <= 0) {
+				mTransfers.remove(connection.mAddress);
+				return;
+			}
+			message = Messages.artData(transfer.hash, transfer.data,
+									   transfer.offset, count);
+			transfer.offset += count;
+			mSegments++;
+			mBytes += message.length;
+		}
+		connection.send(Messages.ART_DATA, message);
+	}
+}
@@ -0,0 +1,38 @@
+package com.redbear.chat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * Starts RBLService without anyone opening the app: after boot, and
+ * whenever Bluetooth comes on, which is usually the phone noticing the
+ * car. If the service is already running, it takes this as a cue to
+ * reconnect.
+ */
+public class BootReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		String action = intent.getAction();
+		int reason;
+		if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+			reason = RBLService.START_BOOT;
+		} else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+			if (intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1) !=
+				BluetoothAdapter.STATE_ON) {
+				return;
+			}
+			reason = RBLService.START_BLUETOOTH_ON;
+		} else {
+			return;
+		}
+
+		Intent start = new Intent(context, RBLService.class);
+		start.putExtra(RBLService.EXTRA_START_REASON, reason);
+		start.putExtra(RBLService.EXTRA_START_TIME,
+					   SystemClock.elapsedRealtime());
+		context.startService(start);
+	}
+}
@@ -0,0 +1,113 @@
+package com.redbear.chat;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back a file written by TrafficCapture, one record at a time.
+ *
+ *   CaptureReader reader = new CaptureReader(in);
+ *   while (reader.next()) {
+ *       ... reader.type, reader.time, reader.address, reader.payload ...
+ *   }
+ */
+class CaptureReader {
+	final InputStream mIn;
+	final List<String> mAddresses = new ArrayList<String>();
+
+	/* The current record. Times are nanoseconds since the first
+	 * record. */
+	int type;
+	long time;
+	String address;
+	byte[] payload = new byte[0];
+
+	CaptureReader(InputStream in) throws IOException {
+		mIn = new BufferedInputStream(in);
+		byte[] magic = new byte[TrafficCapture.MAGIC.length];
+		readFully(magic);
+		if (!Arrays.equals(magic, TrafficCapture.MAGIC)) {
+			throw new IOException("Not a capture file");
+		}
+		int version = mIn.read();
+		if (version != TrafficCapture.VERSION) {
+			throw new IOException("Unknown capture version: " + version);
+		}
+	}
+
+	/**
+	 * Advance to the next record, skipping ADDRESS records.
+	 *
+	 * @return false at the end of the capture.
+	 */
+	boolean next() throws IOException {
+		while (true) {
+			int t = mIn.read();
+			if (t < 0) {
+				return false;
+			}
+			time += readVarint();
+			int id = readByte();
+			int length = (int) readVarint();
+			byte[] data = new byte[length];
+			readFully(data);
+
+			if (t == TrafficCapture.ADDRESS) {
+				// Ids restart at zero each time recording starts.
+				if (id == 0) {
+					mAddresses.clear();
+				}
+				mAddresses.add(new String(data));
+				continue;
+			}
+
+			if (id >= mAddresses.size()) {
+				throw new IOException("Record for unknown connection " + id);
+			}
+			type = t;
+			address = mAddresses.get(id);
+			payload = data;
+			return true;
+		}
+	}
+
+	void close() throws IOException {
+		mIn.close();
+	}
+
+	int readByte() throws IOException {
+		int b = mIn.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		return b;
+	}
+
+	long readVarint() throws IOException {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	void readFully(byte[] data) throws IOException {
+		int offset = 0;
+		while (offset < data.length) {
+			int n = mIn.read(data, offset, data.length - offset);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			offset += n;
+		}
+	}
+}
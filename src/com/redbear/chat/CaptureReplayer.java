@@ -0,0 +1,203 @@
+package com.redbear.chat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Feeds a capture back through RemoteConnection and a Host, as if the
+ * captured remotes were talking to us again.
+ *
+ * Each captured address gets a RemoteConnection on a ReplayLink, whose
+ * callbacks are driven by the capture instead of the radio. RX
+ * notifications go to the host as usual, but the connections are
+ * private to the replayer: what they send is exactly what the capture
+ * says was queued, not what the host replies today. Whatever the
+ * connections write is checked against the TX chunks in the capture,
+ * so a replay both reproduces a field issue and tells us whether the
+ * code under test still behaves the same way.
+ *
+ * Records are replayed in order as fast as they can be processed;
+ * their timestamps are ignored. Version 1 captures don't say which
+ * message type a write was for, so only the chunks are compared.
+ */
+class CaptureReplayer {
+	static class Result {
+		long records = 0;
+		long notifications = 0;
+		long capturedWrites = 0;
+		long replayedWrites = 0;
+		long mismatches = 0;
+
+		@Override
+		public String toString() {
+			return "records " + records +
+				", notifications " + notifications +
+				", writes captured " + capturedWrites +
+				" replayed " + replayedWrites +
+				", mismatches " + mismatches;
+		}
+	}
+
+	/**
+	 * A GattLink that never touches a radio. Writes are kept, type
+	 * first, so they can be compared with the capture.
+	 */
+	static class ReplayLink implements GattLink {
+		Callback mCallback;
+		/* Until the capture tells us otherwise, assume the BLE
+		 * Shield's 20 bytes. */
+		int mMaxWriteSize = 20;
+		/* Whether the captured remote had the remote profile. */
+		boolean mChannels = false;
+		final ArrayDeque<byte[]> mWrites = new ArrayDeque<byte[]>();
+
+		public void setCallback(Callback callback) {
+			mCallback = callback;
+		}
+
+		public boolean connect() {
+			return true;
+		}
+
+		public void disconnect() {
+		}
+
+		public void close() {
+		}
+
+		public int maxWriteSize() {
+			return mMaxWriteSize;
+		}
+
+		public boolean hasChannels() {
+			return mChannels;
+		}
+
+		public boolean write(int type, byte[] chunk) {
+			byte[] record = new byte[chunk.length + 1];
+			record[0] = (byte) type;
+			System.arraycopy(chunk, 0, record, 1, chunk.length);
+			mWrites.add(record);
+			return true;
+		}
+
+		public void readRssi() {
+		}
+	}
+
+	final RemoteConnection.Host mHost;
+	final HashMap<String, ReplayLink> mLinks =
+		new HashMap<String, ReplayLink>();
+	final HashMap<String, RemoteConnection> mConnections =
+		new HashMap<String, RemoteConnection>();
+	final Result mResult = new Result();
+
+	/**
+	 * @param host
+	 *            Handles input from the replayed remotes.
+	 */
+	CaptureReplayer(RemoteConnection.Host host) {
+		mHost = host;
+	}
+
+	Result replay(CaptureReader reader) throws IOException {
+		while (reader.next()) {
+			mResult.records++;
+			ReplayLink link = link(reader.address);
+			replay(reader.type, link, mConnections.get(reader.address),
+				   reader.payload);
+		}
+
+		// Anything still queued was written in the replay but not in
+		// the capture.
+		for (ReplayLink link : mLinks.values()) {
+			mResult.replayedWrites += link.mWrites.size();
+			mResult.mismatches += link.mWrites.size();
+			link.mWrites.clear();
+		}
+		return mResult;
+	}
+
+	ReplayLink link(String address) {
+		ReplayLink link = mLinks.get(address);
+		if (link == null) {
+			link = new ReplayLink();
+			mLinks.put(address, link);
+			RemoteConnection connection =
+				new RemoteConnection(mHost, address, link);
+			mConnections.put(address, connection);
+			connection.connect();
+		}
+		return link;
+	}
+
+	void replay(int type, ReplayLink link, RemoteConnection connection,
+				byte[] payload) {
+		switch (type) {
+		case TrafficCapture.CONNECTED:
+			if (payload.length == 2) {
+				link.mMaxWriteSize =
+					((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+			}
+			link.mCallback.onConnected();
+			break;
+		case TrafficCapture.SERVICES:
+			UUID[] layout = new UUID[payload.length / 16];
+			for (int i = 0; i < layout.length; i++) {
+				layout[i] = new UUID(getLong(payload, i * 16),
+									 getLong(payload, i * 16 + 8));
+			}
+			link.mChannels = RBLGattAttributes.hasRemoteProfile(layout);
+			link.mCallback.onServices(layout);
+			break;
+		case TrafficCapture.READY:
+			link.mCallback.onReady();
+			break;
+		case TrafficCapture.DISCONNECTED:
+			link.mCallback.onDisconnected();
+			link.mWrites.clear();
+			break;
+		case TrafficCapture.WRITE:
+			mResult.capturedWrites++;
+			byte[] replayed = link.mWrites.poll();
+			if (replayed == null) {
+				mResult.mismatches++;
+			} else {
+				mResult.replayedWrites++;
+				if (!Arrays.equals(replayed, payload)) {
+					mResult.mismatches++;
+				}
+			}
+			break;
+		case TrafficCapture.WRITE_COMPLETE:
+			link.mCallback.onWriteComplete(payload.length > 0 && payload[0] != 0);
+			break;
+		case TrafficCapture.NOTIFY:
+			mResult.notifications++;
+			link.mCallback.onNotification(payload);
+			break;
+		case TrafficCapture.QUEUE:
+			if (payload.length > 0) {
+				connection.send(payload[0],
+								Arrays.copyOfRange(payload, 1, payload.length));
+			}
+			break;
+		case TrafficCapture.RSSI:
+			if (payload.length > 0) {
+				link.mCallback.onRssi(payload[0]);
+			}
+			break;
+		}
+	}
+
+	static long getLong(byte[] data, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (data[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
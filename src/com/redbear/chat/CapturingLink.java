@@ -0,0 +1,119 @@
+package com.redbear.chat;
+
+import java.util.UUID;
+
+/**
+ * Wraps a GattLink and records everything that passes through it to a
+ * TrafficCapture. While the capture isn't recording this adds nothing
+ * but a volatile read per call.
+ */
+class CapturingLink implements GattLink, GattLink.Callback {
+	final GattLink mLink;
+	final TrafficCapture mCapture;
+	final String mAddress;
+	Callback mCallback;
+
+	CapturingLink(GattLink link, TrafficCapture capture, String address) {
+		mLink = link;
+		mCapture = capture;
+		mAddress = address;
+		mLink.setCallback(this);
+	}
+
+	public void setCallback(Callback callback) {
+		mCallback = callback;
+	}
+
+	public boolean connect() {
+		return mLink.connect();
+	}
+
+	public void disconnect() {
+		mLink.disconnect();
+	}
+
+	public void close() {
+		mLink.close();
+	}
+
+	public int maxWriteSize() {
+		return mLink.maxWriteSize();
+	}
+
+	public boolean hasChannels() {
+		return mLink.hasChannels();
+	}
+
+	public boolean write(int type, byte[] chunk) {
+		boolean started = mLink.write(type, chunk);
+		if (started && mCapture.isRecording()) {
+			byte[] record = new byte[chunk.length + 1];
+			record[0] = (byte) type;
+			System.arraycopy(chunk, 0, record, 1, chunk.length);
+			mCapture.record(TrafficCapture.WRITE, mAddress, record);
+		}
+		return started;
+	}
+
+	public void readRssi() {
+		mLink.readRssi();
+	}
+
+	public void onConnected() {
+		// Record the write size, so that a replay chunks the same way.
+		int size = mLink.maxWriteSize();
+		mCapture.record(TrafficCapture.CONNECTED, mAddress,
+						new byte[] { (byte) (size >> 8), (byte) size });
+		mCallback.onConnected();
+	}
+
+	public void onServices(UUID[] layout) {
+		if (mCapture.isRecording()) {
+			byte[] data = new byte[layout.length * 16];
+			for (int i = 0; i < layout.length; i++) {
+				putLong(data, i * 16, layout[i].getMostSignificantBits());
+				putLong(data, i * 16 + 8, layout[i].getLeastSignificantBits());
+			}
+			mCapture.record(TrafficCapture.SERVICES, mAddress, data);
+		}
+		mCallback.onServices(layout);
+	}
+
+	public void onReady() {
+		mCapture.record(TrafficCapture.READY, mAddress);
+		mCallback.onReady();
+	}
+
+	public void onDisconnected() {
+		mCapture.record(TrafficCapture.DISCONNECTED, mAddress);
+		mCallback.onDisconnected();
+	}
+
+	public void onWriteComplete(boolean success) {
+		if (mCapture.isRecording()) {
+			mCapture.record(TrafficCapture.WRITE_COMPLETE, mAddress,
+							new byte[] { (byte) (success ? 1 : 0) });
+		}
+		mCallback.onWriteComplete(success);
+	}
+
+	public void onNotification(byte[] value) {
+		mCapture.record(TrafficCapture.NOTIFY, mAddress, value);
+		mCallback.onNotification(value);
+	}
+
+	public void onRssi(int rssi) {
+		if (mCapture.isRecording()) {
+			mCapture.record(TrafficCapture.RSSI, mAddress,
+							new byte[] { (byte) rssi });
+		}
+		mCallback.onRssi(rssi);
+	}
+
+	static void putLong(byte[] data, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			data[offset + i] = (byte) value;
+			value >>= 8;
+		}
+	}
+}
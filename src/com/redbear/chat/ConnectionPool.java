@@ -0,0 +1,57 @@
+package com.redbear.chat;
+
+import java.util.HashMap;
+
+/**
+ * All the remotes we know about, keyed by Bluetooth address.
+ *
+ * Fan-out walks a cached array rather than the map, so sending to
+ * every remote costs one outbox put per remote and never holds the
+ * pool lock while a connection is busy.
+ */
+class ConnectionPool {
+	static final RemoteConnection[] EMPTY = new RemoteConnection[0];
+
+	final HashMap<String, RemoteConnection> mConnections =
+		new HashMap<String, RemoteConnection>();
+
+	/* Rebuilt whenever the pool changes. */
+	volatile RemoteConnection[] mSnapshot = EMPTY;
+
+	synchronized RemoteConnection get(String address) {
+		return mConnections.get(address);
+	}
+
+	synchronized void put(RemoteConnection connection) {
+		mConnections.put(connection.mAddress, connection);
+		mSnapshot = mConnections.values().toArray(EMPTY);
+	}
+
+	synchronized RemoteConnection remove(String address) {
+		RemoteConnection connection = mConnections.remove(address);
+		mSnapshot = mConnections.values().toArray(EMPTY);
+		return connection;
+	}
+
+	RemoteConnection[] all() {
+		return mSnapshot;
+	}
+
+	/**
+	 * Queue a message on every remote.
+	 */
+	void broadcast(int type, byte[] message) {
+		for (RemoteConnection connection : mSnapshot) {
+			connection.send(type, message);
+		}
+	}
+
+	boolean anyReady() {
+		for (RemoteConnection connection : mSnapshot) {
+			if (connection.isReady()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -71,6 +71,7 @@ public class Device extends Activity implements OnItemClickListener {
 
 		Intent intent = new Intent(RBLService.ACTION_CHOOSE_DEVICE);
 		intent.putExtra(RBLService.EXTRA_DEVICE_ADDRESS, addr);
+		intent.putExtra(RBLService.EXTRA_DEVICE_NAME, name);
 		sendBroadcast(intent);
 		finish();
 	}
@@ -0,0 +1,233 @@
+package com.redbear.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.AtomicFile;
+import android.util.Log;
+
+/**
+ * The remotes we've been asked to connect to, and what we last knew
+ * about each of them.
+ *
+ * The registry is read from disk once, when it's created. After that
+ * every read is served from memory, and changes are written back on a
+ * background thread. Writes are coalesced, so a burst of updates
+ * (e.g. while a remote connects) costs a single write. See SavedDevice
+ * for the file format.
+ */
+class DeviceRegistry {
+	static final String FILE_NAME = "devices.bin";
+
+	/* How long to wait for more changes before writing. */
+	static final long WRITE_DELAY = 2000;
+
+	final static String TAG = DeviceRegistry.class.getSimpleName();
+
+	final LinkedHashMap<String, SavedDevice> mDevices =
+		new LinkedHashMap<String, SavedDevice>();
+	final AtomicFile mFile;
+	final HandlerThread mThread;
+	final Handler mHandler;
+	boolean mWriteScheduled = false;
+
+	final Runnable mWriteTask = new Runnable() {
+		public void run() {
+			write();
+		}
+	};
+
+	DeviceRegistry(File file) {
+		mFile = new AtomicFile(file);
+		mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Load the registry for this app, migrating devices saved in the
+	 * old "default" preferences the first time round.
+	 */
+	static DeviceRegistry load(Context context) {
+		final File file = new File(context.getFilesDir(), FILE_NAME);
+		DeviceRegistry registry = new DeviceRegistry(file);
+
+		if (file.exists()) {
+			registry.read();
+			return registry;
+		}
+
+		final SharedPreferences prefs = context.getSharedPreferences(
+			"default",
+			Context.MODE_WORLD_READABLE |
+			Context.MODE_WORLD_WRITEABLE);
+		Set<String> devices = new HashSet<String>(
+			prefs.getStringSet("devices", new HashSet<String>()));
+		String legacy = prefs.getString("device", null);
+		if (legacy != null) {
+			devices.add(legacy);
+		}
+		if (devices.isEmpty()) {
+			return registry;
+		}
+		for (String address : devices) {
+			registry.add(address);
+		}
+
+		// Once they're safely in the file, so that losing the file
+		// later doesn't bring back remotes that have been forgotten
+		// since. Runs after the write, on the same thread.
+		registry.flush();
+		registry.mHandler.post(new Runnable() {
+			public void run() {
+				if (file.exists()) {
+					prefs.edit().remove("devices").remove("device").apply();
+				}
+			}
+		});
+		return registry;
+	}
+
+	synchronized List<String> addresses() {
+		return new ArrayList<String>(mDevices.keySet());
+	}
+
+	synchronized boolean isEmpty() {
+		return mDevices.isEmpty();
+	}
+
+	/**
+	 * @return What we know about the device, or null if it isn't
+	 *         saved. Later changes don't show up in it.
+	 */
+	synchronized SavedDevice get(String address) {
+		return mDevices.get(address);
+	}
+
+	synchronized void add(String address) {
+		if (!mDevices.containsKey(address)) {
+			mDevices.put(address, new SavedDevice(address));
+			scheduleWrite();
+		}
+	}
+
+	synchronized void remove(String address) {
+		if (mDevices.remove(address) != null) {
+			scheduleWrite();
+		}
+	}
+
+	synchronized void clear() {
+		mDevices.clear();
+		scheduleWrite();
+	}
+
+	synchronized void setName(String address, String name) {
+		SavedDevice device = mDevices.get(address);
+		if (device != null && name != null && !name.equals(device.name)) {
+			mDevices.put(address, device.withName(name));
+			scheduleWrite();
+		}
+	}
+
+	synchronized void setRssi(String address, int rssi) {
+		SavedDevice device = mDevices.get(address);
+		// RSSI changes constantly, so it isn't worth a write of its
+		// own. It goes out with the next write, or on close().
+		if (device != null && rssi != device.rssi) {
+			mDevices.put(address, device.withRssi(rssi));
+		}
+	}
+
+	synchronized void setLastConnected(String address, long time) {
+		SavedDevice device = mDevices.get(address);
+		if (device != null) {
+			mDevices.put(address, device.withLastConnected(time));
+			scheduleWrite();
+		}
+	}
+
+	void scheduleWrite() {
+		if (!mWriteScheduled) {
+			mWriteScheduled = true;
+			mHandler.postDelayed(mWriteTask, WRITE_DELAY);
+		}
+	}
+
+	/**
+	 * Write out anything pending now rather than waiting, e.g. because
+	 * we're about to be destroyed.
+	 */
+	void flush() {
+		mHandler.removeCallbacks(mWriteTask);
+		mHandler.post(mWriteTask);
+	}
+
+	/**
+	 * Serialize under the lock, then write outside it so that readers
+	 * are never held up by the disk.
+	 */
+	void write() {
+		byte[] data;
+		synchronized (this) {
+			mWriteScheduled = false;
+			try {
+				data = SavedDevice.encode(mDevices.values());
+			} catch (IOException e) {
+				Log.e(TAG, "Failed to encode registry", e);
+				return;
+			}
+		}
+
+		FileOutputStream out = null;
+		try {
+			out = mFile.startWrite();
+			out.write(data);
+			mFile.finishWrite(out);
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to write registry", e);
+			if (out != null) {
+				mFile.failWrite(out);
+			}
+		}
+	}
+
+	synchronized void read() {
+		FileInputStream in = null;
+		try {
+			in = mFile.openRead();
+			for (SavedDevice device : SavedDevice.decode(in)) {
+				mDevices.put(device.address, device);
+			}
+		} catch (FileNotFoundException e) {
+			// Nothing saved yet.
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to read registry", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	void close() {
+		flush();
+		mThread.quitSafely();
+	}
+}
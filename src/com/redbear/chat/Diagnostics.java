@@ -0,0 +1,374 @@
+package com.redbear.chat;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.widget.TextView;
+
+/**
+ * What the links to the remotes are doing right now: throughput,
+ * write latency, queue depth, RSSI and reconnects, per remote, plus
+ * the button-to-action latencies.
+ *
+ * The service doesn't tell us anything. We bind to it and read its
+ * figures (LinkStats, LinkQuality, InputLatency) on a fixed frame
+ * timer, so however busy the links get we redraw at most
+ * FRAMES_PER_SECOND times a second, and not at all while we're not
+ * in front.
+ *
+ * A frame allocates nothing unless something on screen has changed:
+ * each view's text is built in the one reused StringBuilder, numbers
+ * are appended by hand rather than formatted, and a view is only
+ * given a new String if its text differs from what it shows.
+ */
+public class Diagnostics extends Activity {
+	final static String TAG = Diagnostics.class.getSimpleName();
+
+	static final int FRAMES_PER_SECOND = 4;
+	static final long FRAME_INTERVAL = 1000 / FRAMES_PER_SECOND;
+
+	/* Weight of each frame's throughput in the average shown. */
+	static final double THROUGHPUT_ALPHA = 0.25;
+
+	/* The range the RSSI trend is drawn over, in dBm. */
+	static final int RSSI_FLOOR = -100;
+	static final int RSSI_CEILING = -40;
+
+	static final String SPARKS =
+		"\u2581\u2582\u2583\u2584\u2585\u2586\u2587\u2588";
+
+	/* Per remote, its short name and what the last frame saw, to work
+	 * out rates. */
+	static class Remote {
+		final String name;
+		long bytes;
+		long writes;
+		double bytesPerSecond;
+		double writesPerSecond;
+
+		Remote(String address) {
+			// The last two bytes of the address are enough to tell
+			// remotes apart.
+			name = address.length() > 5 ? address.substring(address.length() - 5)
+										: address;
+		}
+	}
+
+	RBLService mService;
+	boolean mResumed = false;
+
+	TextView mRemotesView;
+	TextView mThroughput;
+	TextView mLatency;
+	TextView mQueue;
+	TextView mRssi;
+	TextView mRssiTrend;
+	TextView mReconnects;
+	TextView mInput;
+
+	/* By address; remotes that leave the pool are dropped. */
+	final HashMap<String, Remote> mRemotes = new HashMap<String, Remote>();
+	long mLastFrame = -1;
+
+	/* Reused every frame. */
+	final StringBuilder mText = new StringBuilder(1024);
+	final int[] mRssiHistory = new int[LinkStats.RSSI_HISTORY];
+	final long[] mChangeTimes = new long[LinkStats.CONNECTION_HISTORY];
+	final boolean[] mChangeUp = new boolean[LinkStats.CONNECTION_HISTORY];
+	final TimeZone mZone = TimeZone.getDefault();
+
+	final Scheduler.Task mFrameTask =
+		HandlerScheduler.main().task(new Runnable() {
+			@Override
+			public void run() {
+				draw();
+				scheduleFrame();
+			}
+		});
+
+	final ServiceConnection mConnection = new ServiceConnection() {
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			mService = ((RBLService.LocalBinder) binder).getService();
+			scheduleFrame();
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			mService = null;
+			mFrameTask.cancel();
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		setContentView(R.layout.diagnostics);
+
+		mRemotesView = (TextView) findViewById(R.id.diagRemotes);
+		mThroughput = (TextView) findViewById(R.id.diagThroughput);
+		mLatency = (TextView) findViewById(R.id.diagLatency);
+		mQueue = (TextView) findViewById(R.id.diagQueue);
+		mRssi = (TextView) findViewById(R.id.diagRssi);
+		mRssiTrend = (TextView) findViewById(R.id.diagRssiTrend);
+		mReconnects = (TextView) findViewById(R.id.diagReconnects);
+		mInput = (TextView) findViewById(R.id.diagInput);
+	}
+
+	@Override
+	protected void onStart() {
+		super.onStart();
+		// No BIND_AUTO_CREATE: looking shouldn't start the service.
+		bindService(new Intent(this, RBLService.class), mConnection, 0);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		mResumed = true;
+		// Rates restart from here rather than averaging over the time
+		// we weren't looking.
+		mLastFrame = -1;
+		scheduleFrame();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		mResumed = false;
+		mFrameTask.cancel();
+	}
+
+	@Override
+	protected void onStop() {
+		super.onStop();
+		unbindService(mConnection);
+		mService = null;
+	}
+
+	void scheduleFrame() {
+		if (mResumed && mService != null) {
+			// A late frame is fine, so let it share a wakeup.
+			mFrameTask.schedule(FRAME_INTERVAL, FRAME_INTERVAL / 4);
+		}
+	}
+
+	void draw() {
+		RBLService service = mService;
+		if (service == null) {
+			return;
+		}
+		RemoteConnection[] connections = service.connections();
+		updateRates(connections);
+		StringBuilder sb = mText;
+
+		sb.setLength(0);
+		int ready = 0;
+		for (RemoteConnection connection : connections) {
+			if (connection.isReady()) {
+				ready++;
+			}
+		}
+		sb.append(connections.length).append(" remotes, ")
+			.append(ready).append(" ready");
+		update(mRemotesView, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			Remote remote = mRemotes.get(connection.mAddress);
+			sb.append(remote.name).append("  ")
+				.append(Math.round(remote.bytesPerSecond)).append(" B/s  ");
+			appendTenths(sb, Math.round(remote.writesPerSecond * 10));
+			sb.append(" writes/s  ")
+				.append(connection.mStats.failedWrites()).append(" failed\n");
+		}
+		update(mThroughput, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			sb.append(mRemotes.get(connection.mAddress).name).append("  ");
+			appendSummary(sb, connection.mStats.mWriteLatency);
+			sb.append('\n');
+		}
+		update(mLatency, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			sb.append(mRemotes.get(connection.mAddress).name).append("  ")
+				.append(connection.queueDepth()).append(" waiting  ")
+				.append(connection.mAbandoned).append(" abandoned\n");
+		}
+		update(mQueue, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			double average = connection.mQuality.rssi();
+			sb.append(mRemotes.get(connection.mAddress).name).append("  ");
+			if (Double.isNaN(average)) {
+				sb.append("no reading");
+			} else {
+				sb.append(Math.round(average)).append(" dBm");
+			}
+			sb.append("  ")
+				.append(LinkQuality.NAMES[connection.mQuality.level()]).append('\n');
+		}
+		update(mRssi, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			sb.append(mRemotes.get(connection.mAddress).name).append("  ");
+			appendTrend(sb, connection.mStats);
+			sb.append('\n');
+		}
+		update(mRssiTrend, sb);
+
+		sb.setLength(0);
+		for (RemoteConnection connection : connections) {
+			LinkStats stats = connection.mStats;
+			sb.append(mRemotes.get(connection.mAddress).name).append("  ")
+				.append(stats.reconnects()).append(" reconnects\n");
+			int n = stats.connectionHistory(mChangeTimes, mChangeUp);
+			for (int i = 0; i < n; i++) {
+				sb.append("    ");
+				appendTime(sb, mChangeTimes[i]);
+				sb.append(mChangeUp[i] ? " up\n" : " down\n");
+			}
+		}
+		update(mReconnects, sb);
+
+		sb.setLength(0);
+		InputLatency latency = service.latency();
+		for (int c = 0; c < InputLatency.COMMANDS.length(); c++) {
+			char command = InputLatency.COMMANDS.charAt(c);
+			for (int s = 0; s < InputLatency.NUM_STAGES; s++) {
+				LatencyHistogram h = latency.get(command, s);
+				if (h.count() > 0) {
+					sb.append(command).append(' ')
+						.append(InputLatency.STAGE_NAMES[s]).append(": ");
+					appendSummary(sb, h);
+					sb.append('\n');
+				}
+			}
+		}
+		update(mInput, sb);
+	}
+
+	/* Bring each remote's throughput averages up to now, and forget
+	 * remotes that have left the pool. */
+	void updateRates(RemoteConnection[] connections) {
+		long now = SystemClock.uptimeMillis();
+		double seconds = mLastFrame < 0 ? 0 : (now - mLastFrame) / 1000.0;
+		mLastFrame = now;
+
+		for (RemoteConnection connection : connections) {
+			Remote remote = mRemotes.get(connection.mAddress);
+			if (remote == null) {
+				remote = new Remote(connection.mAddress);
+				mRemotes.put(connection.mAddress, remote);
+			}
+			long bytes = connection.mStats.bytes();
+			long writes = connection.mStats.writes();
+			if (seconds > 0) {
+				remote.bytesPerSecond += THROUGHPUT_ALPHA *
+					((bytes - remote.bytes) / seconds - remote.bytesPerSecond);
+				remote.writesPerSecond += THROUGHPUT_ALPHA *
+					((writes - remote.writes) / seconds - remote.writesPerSecond);
+			}
+			remote.bytes = bytes;
+			remote.writes = writes;
+		}
+
+		if (mRemotes.size() > connections.length) {
+			Iterator<String> it = mRemotes.keySet().iterator();
+			while (it.hasNext()) {
+				if (!contains(connections, it.next())) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	static boolean contains(RemoteConnection[] connections, String address) {
+		for (RemoteConnection connection : connections) {
+			if (connection.mAddress.equals(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* Oldest to newest, one character per reading. */
+	void appendTrend(StringBuilder sb, LinkStats stats) {
+		int n = stats.rssiHistory(mRssiHistory);
+		if (n == 0) {
+			sb.append('-');
+			return;
+		}
+		int levels = SPARKS.length();
+		for (int i = 0; i < n; i++) {
+			int clamped = Math.max(RSSI_FLOOR, Math.min(RSSI_CEILING, mRssiHistory[i]));
+			int level = (clamped - RSSI_FLOOR) * (levels - 1) /
+				(RSSI_CEILING - RSSI_FLOOR);
+			sb.append(SPARKS.charAt(level));
+		}
+		sb.append("  ").append(mRssiHistory[n - 1]);
+	}
+
+	/* Local time of day, hh:mm:ss. */
+	void appendTime(StringBuilder sb, long time) {
+		long seconds = (time + mZone.getOffset(time)) / 1000 % 86400;
+		appendTwo(sb, seconds / 3600);
+		sb.append(':');
+		appendTwo(sb, seconds / 60 % 60);
+		sb.append(':');
+		appendTwo(sb, seconds % 60);
+	}
+
+	/* Like LatencyHistogram.summary(), without String.format. */
+	static void appendSummary(StringBuilder sb, LatencyHistogram h) {
+		sb.append("n ").append(h.count()).append(" p50 ");
+		appendTenths(sb, h.percentile(0.50) / 100);
+		sb.append(" p90 ");
+		appendTenths(sb, h.percentile(0.90) / 100);
+		sb.append(" p99 ");
+		appendTenths(sb, h.percentile(0.99) / 100);
+		sb.append(" max ");
+		appendTenths(sb, h.max() / 100);
+		sb.append(" ms");
+	}
+
+	static void appendTenths(StringBuilder sb, long tenths) {
+		if (tenths < 0) {
+			sb.append('-');
+			tenths = -tenths;
+		}
+		sb.append(tenths / 10).append('.').append(tenths % 10);
+	}
+
+	static void appendTwo(StringBuilder sb, long n) {
+		if (n < 10) {
+			sb.append('0');
+		}
+		sb.append(n);
+	}
+
+	/* Setting the same text still costs a layout pass, so only set
+	 * it, and only make a String of it, if it's changed. */
+	static void update(TextView view, StringBuilder text) {
+		Object shown = view.getTag();
+		if (shown instanceof String && ((String) shown).contentEquals(text)) {
+			return;
+		}
+		String s = text.toString();
+		view.setTag(s);
+		view.setText(s);
+	}
+}
@@ -0,0 +1,78 @@
+package com.redbear.chat;
+
+import java.util.UUID;
+
+/**
+ * The GATT operations a RemoteConnection needs, without any of the
+ * Android types. AndroidGattLink is the real thing; the simulator in
+ * com.redbear.chat.sim provides a stand-in that runs on a plain JVM.
+ *
+ * A link takes care of the connection handshake itself (service
+ * discovery, enabling notifications on RX) and reports progress
+ * through its Callback.
+ */
+interface GattLink {
+	interface Callback {
+		/* The link-layer connection is up and the handshake has
+		 * started. */
+		void onConnected();
+
+		/* Services were discovered. The layout lists every
+		 * characteristic the remote offers. */
+		void onServices(UUID[] layout);
+
+		/* The handshake is complete and we can write. */
+		void onReady();
+
+		void onDisconnected();
+
+		/* The last write() has been acknowledged, or failed. */
+		void onWriteComplete(boolean success);
+
+		/* The remote sent us some input, on RX or its input
+		 * characteristic. */
+		void onNotification(byte[] value);
+
+		void onRssi(int rssi);
+	}
+
+	void setCallback(Callback callback);
+
+	/**
+	 * Start connecting, or reconnecting.
+	 *
+	 * @return Return true if the connection is initiated successfully.
+	 */
+	boolean connect();
+
+	void disconnect();
+
+	/**
+	 * Release the link. It can't be used again after this.
+	 */
+	void close();
+
+	/**
+	 * Largest value that can go out in a single write().
+	 */
+	int maxWriteSize();
+
+	/**
+	 * Whether each message type has its own characteristic (see
+	 * RBLGattAttributes), rather than everything sharing TX. If so,
+	 * chunks of different types can be interleaved. Only meaningful
+	 * once the link is ready.
+	 */
+	boolean hasChannels();
+
+	/**
+	 * Start writing a chunk of a message of the given type, to its
+	 * characteristic or to TX. Only one write may be in flight at a
+	 * time; the result arrives via onWriteComplete.
+	 *
+	 * @return Return true if the write was started.
+	 */
+	boolean write(int type, byte[] chunk);
+
+	void readRssi();
+}
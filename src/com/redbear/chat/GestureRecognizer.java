@@ -0,0 +1,203 @@
+package com.redbear.chat;
+
+/**
+ * Turns raw press and release events from one remote into gestures:
+ * taps, double taps, long presses that keep firing while held, and
+ * auto-repeat that speeds up the longer a button is held.
+ *
+ * Events carry the remote's own clock (milliseconds, 16 bits, so it
+ * wraps every minute or so), which is what durations and double-tap
+ * gaps are measured with. The radio adds tens of milliseconds of
+ * jitter in each direction, and we don't want that deciding whether
+ * a press was long. Only a button that's still held needs our clock,
+ * to know when to fire next.
+ *
+ * Taps are never held back: in every mode the tap fires on the press,
+ * and what comes after depends on how long the button stays down.
+ *
+ *   MODE_TAP     nothing more
+ *   MODE_REPEAT  REPEAT while held, faster and faster
+ *   MODE_HOLD    HOLD every so often once held past mLongPress
+ *
+ * So a HOLD always follows the tap of the same press, and the
+ * listener has to make sense of the two together.
+ *
+ * Double taps are recognised eagerly: the first tap fires as usual,
+ * and the second becomes DOUBLE_TAP instead of TAP. Nothing ever
+ * waits to see if a second tap is coming.
+ */
+class GestureRecognizer {
+	static final int TAP = 0;
+	static final int DOUBLE_TAP = 1;
+	static final int HOLD = 2;
+	static final int REPEAT = 3;
+
+	static final String[] NAMES = { "tap", "double-tap", "hold", "repeat" };
+
+	static final int MODE_TAP = 0;
+	static final int MODE_REPEAT = 1;
+	static final int MODE_HOLD = 2;
+
+	interface Listener {
+		/**
+		 * @param start
+		 *            System.nanoTime() when the event behind the
+		 *            gesture arrived, or when a timer fired.
+		 */
+		void onGesture(int button, int gesture, long start);
+	}
+
+	/* Thresholds, in ms. */
+	long mLongPress = 500;
+	long mHoldInterval = 250;
+	long mRepeatDelay = 400;
+	long mRepeatInterval = 150;
+	long mMinRepeatInterval = 40;
+	long mDoubleTapWindow = 300;
+	/* If a release hasn't shown up by now, it was lost. */
+	long mMaxHold = 10000;
+
+	final Scheduler mScheduler;
+	final Listener mListener;
+	final Scheduler.Task mTimer;
+
+	final int[] mModes = new int[128];
+	final boolean[] mDoubleTaps = new boolean[128];
+
+	/* The button that's down, or -1, with its remote press time and
+	 * the scheduler's time when the press arrived. */
+	int mHeld = -1;
+	int mPressTime;
+	long mPressArrival;
+	boolean mHoldFired;
+	long mInterval;
+
+	/* The last tap, for double taps. */
+	int mLastTap = -1;
+	int mLastTapTime;
+
+	GestureRecognizer(Scheduler scheduler, Listener listener) {
+		mScheduler = scheduler;
+		mListener = listener;
+		mTimer = scheduler.task(new Runnable() {
+			public void run() {
+				onTimer();
+			}
+		});
+	}
+
+	synchronized void setMode(int button, int mode) {
+		mModes[button & 0x7F] = mode;
+	}
+
+	synchronized void setDoubleTap(int button, boolean enabled) {
+		mDoubleTaps[button & 0x7F] = enabled;
+	}
+
+	/**
+	 * @param time
+	 *            The remote's clock when the button went down.
+	 */
+	void onPress(int button, int time, long start) {
+		int gesture;
+		synchronized (this) {
+			// A press before the last one's release supersedes it;
+			// its tap has already fired.
+			button &= 0x7F;
+			mHeld = button;
+			mPressTime = time;
+			mPressArrival = mScheduler.now();
+			mHoldFired = false;
+			switch (mModes[button]) {
+			case MODE_REPEAT:
+				mInterval = mRepeatInterval;
+				mTimer.schedule(mRepeatDelay);
+				break;
+			case MODE_HOLD:
+				mTimer.schedule(mLongPress);
+				break;
+			default:
+				mTimer.cancel();
+			}
+			gesture = tap(button, time);
+		}
+		mListener.onGesture(button, gesture, start);
+	}
+
+	/**
+	 * @param time
+	 *            The remote's clock when the button came up.
+	 */
+	void onRelease(int button, int time, long start) {
+		int gesture = -1;
+		synchronized (this) {
+			button &= 0x7F;
+			if (button != mHeld) {
+				// Superseded by another press, or a duplicate.
+				return;
+			}
+			mHeld = -1;
+			mTimer.cancel();
+			if (mModes[button] == MODE_HOLD && !mHoldFired &&
+				elapsed(mPressTime, time) >= mLongPress) {
+				// The release beat our timer, because the press was
+				// delayed on the way, but the press was long.
+				gesture = HOLD;
+			}
+		}
+		if (gesture >= 0) {
+			mListener.onGesture(button, gesture, start);
+		}
+	}
+
+	void onTimer() {
+		int button;
+		int gesture;
+		synchronized (this) {
+			button = mHeld;
+			if (button < 0) {
+				return;
+			}
+			if (mScheduler.now() - mPressArrival > mMaxHold) {
+				mHeld = -1;
+				return;
+			}
+			if (mModes[button] == MODE_REPEAT) {
+				gesture = REPEAT;
+				mTimer.schedule(mInterval);
+				mInterval = Math.max(mMinRepeatInterval, mInterval * 3 / 4);
+			} else {
+				gesture = HOLD;
+				mHoldFired = true;
+				mTimer.schedule(mHoldInterval);
+			}
+		}
+		mListener.onGesture(button, gesture, System.nanoTime());
+	}
+
+	/* Called with the lock held. */
+	int tap(int button, int time) {
+		if (mDoubleTaps[button] && button == mLastTap &&
+			elapsed(mLastTapTime, time) <= mDoubleTapWindow) {
+			mLastTap = -1;
+			return DOUBLE_TAP;
+		}
+		mLastTap = button;
+		mLastTapTime = time;
+		return TAP;
+	}
+
+	/**
+	 * Forget any held button, e.g. after the link drops, so that a
+	 * lost release doesn't leave it repeating.
+	 */
+	synchronized void reset() {
+		mHeld = -1;
+		mLastTap = -1;
+		mTimer.cancel();
+	}
+
+	static int elapsed(int from, int to) {
+		return (to - from) & 0xFFFF;
+	}
+}
@@ -0,0 +1,46 @@
+package com.redbear.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * A Scheduler that runs its tasks on a Looper, waking it with a single
+ * posted Runnable however many tasks are pending.
+ */
+class HandlerScheduler extends Scheduler {
+	static HandlerScheduler sMain;
+
+	/**
+	 * The app's scheduler, running on the main thread.
+	 */
+	static synchronized HandlerScheduler main() {
+		if (sMain == null) {
+			sMain = new HandlerScheduler(new Handler(Looper.getMainLooper()));
+		}
+		return sMain;
+	}
+
+	final Handler mHandler;
+
+	final Runnable mWakeTask = new Runnable() {
+		public void run() {
+			runDue();
+		}
+	};
+
+	HandlerScheduler(Handler handler) {
+		mHandler = handler;
+	}
+
+	long now() {
+		return SystemClock.uptimeMillis();
+	}
+
+	void wakeAt(long time) {
+		mHandler.removeCallbacks(mWakeTask);
+		if (time != NEVER) {
+			mHandler.postAtTime(mWakeTask, time);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.redbear.chat;
+
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * Where the time goes between a button press on a remote and the
+ * phone reacting to it. Every stage is measured from the moment the
+ * command's notification arrived, for each command separately:
+ *
+ *   DISPATCH  we've finished handling the command
+ *   ACTION    we've asked the media player or AudioManager to act
+ *   ECHO      the state change has been written back to the remote
+ *
+ * The echo is the message a command is expected to change: VOLUME for
+ * v and V, NETWORK for o, PLAYING for x and TRACK for P and N. The last
+ * three depend on the player reacting, so an echo that takes longer
+ * than ECHO_TIMEOUT is assumed to be about something else and dropped.
+ *
+ * Memory is fixed: one LatencyHistogram per command and stage.
+ */
+class InputLatency {
+	static final String COMMANDS = "xPNvVo";
+
+	static final int DISPATCH = 0;
+	static final int ACTION = 1;
+	static final int ECHO = 2;
+	static final int NUM_STAGES = 3;
+
+	static final String[] STAGE_NAMES = { "dispatch", "action", "echo" };
+
+	static final long ECHO_TIMEOUT = 10000000000L;
+
+	final LatencyHistogram[][] mHistograms =
+		new LatencyHistogram[COMMANDS.length()][NUM_STAGES];
+
+	/* Per message type: the command waiting for it to be written, the
+	 * remote it came from, and when it arrived. */
+	final int[] mEchoCommand = new int[Messages.NUM_TYPES];
+	final RemoteConnection[] mEchoFrom = new RemoteConnection[Messages.NUM_TYPES];
+	final long[] mEchoStart = new long[Messages.NUM_TYPES];
+
+	InputLatency() {
+		for (int c = 0; c < mHistograms.length; c++) {
+			for (int s = 0; s < NUM_STAGES; s++) {
+				mHistograms[c][s] = new LatencyHistogram();
+			}
+		}
+	}
+
+	static int index(int command) {
+		return COMMANDS.indexOf(command);
+	}
+
+	static int echoType(int command) {
+		switch (command) {
+		case 'v':
+		case 'V':
+			return Messages.VOLUME;
+		case 'o':
+			return Messages.NETWORK;
+		case 'x':
+			return Messages.PLAYING;
+		case 'P':
+		case 'N':
+			return Messages.TRACK;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * Record that a command reached the given stage. start is the
+	 * System.nanoTime() its notification arrived.
+	 */
+	void record(int command, int stage, long start) {
+		int c = index(command);
+		if (c >= 0) {
+			mHistograms[c][stage].record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * A command has been handled; time the echo it should cause.
+	 */
+	synchronized void expectEcho(RemoteConnection from, int command,
+								 long start) {
+		int type = echoType(command);
+		if (type >= 0) {
+			mEchoCommand[type] = command;
+			mEchoFrom[type] = from;
+			mEchoStart[type] = start;
+		}
+	}
+
+	/**
+	 * A message has been written in full to a remote.
+	 */
+	void onSent(RemoteConnection to, int type) {
+		int command;
+		long start;
+		synchronized (this) {
+			if (mEchoFrom[type] != to) {
+				return;
+			}
+			command = mEchoCommand[type];
+			start = mEchoStart[type];
+			mEchoFrom[type] = null;
+		}
+		if (System.nanoTime() - start < ECHO_TIMEOUT) {
+			record(command, ECHO, start);
+		}
+	}
+
+	LatencyHistogram get(int command, int stage) {
+		return mHistograms[index(command)][stage];
+	}
+
+	synchronized void reset() {
+		for (LatencyHistogram[] stages : mHistograms) {
+			for (LatencyHistogram h : stages) {
+				h.reset();
+			}
+		}
+		for (int t = 0; t < Messages.NUM_TYPES; t++) {
+			mEchoFrom[t] = null;
+		}
+	}
+
+	/**
+	 * One line per command and stage that has any samples.
+	 */
+	String summary() {
+		StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < COMMANDS.length(); c++) {
+			for (int s = 0; s < NUM_STAGES; s++) {
+				LatencyHistogram h = mHistograms[c][s];
+				if (h.count() > 0) {
+					sb.append(COMMANDS.charAt(c)).append(' ')
+						.append(STAGE_NAMES[s]).append(": ")
+						.append(h.summary()).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package com.redbear.chat;
+
+/**
+ * A histogram of latencies in a fixed amount of memory, however many
+ * samples go in.
+ *
+ * Buckets are log-linear: values below 32us get a bucket each, and
+ * every power of two above that is split into 16 buckets, so a
+ * percentile is within about 6% of the true value. Anything over 2^27
+ * us (a couple of minutes) lands in the last bucket.
+ */
+class LatencyHistogram {
+	static final int SUB_BUCKETS = 16;
+	static final int LINEAR = 2 * SUB_BUCKETS;
+	static final int MAX_EXPONENT = 26;
+	static final int NUM_BUCKETS =
+		LINEAR + (MAX_EXPONENT - 4) * SUB_BUCKETS;
+
+	final int[] mCounts = new int[NUM_BUCKETS];
+	long mCount = 0;
+	long mMax = 0;
+
+	static int bucket(long us) {
+		if (us < LINEAR) {
+			return (int) Math.max(0, us);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(us);
+		if (exponent > MAX_EXPONENT) {
+			return NUM_BUCKETS - 1;
+		}
+		int mantissa = (int) (us >> (exponent - 4)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 5) * SUB_BUCKETS + mantissa;
+	}
+
+	/* The smallest value that lands in a bucket. */
+	static long lowest(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR) / SUB_BUCKETS + 5;
+		int mantissa = (bucket - LINEAR) % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + mantissa) << (exponent - 4);
+	}
+
+	synchronized void record(long nanos) {
+		long us = nanos / 1000;
+		mCounts[bucket(us)]++;
+		mCount++;
+		if (us > mMax) {
+			mMax = us;
+		}
+	}
+
+	synchronized long count() {
+		return mCount;
+	}
+
+	synchronized long max() {
+		return mMax;
+	}
+
+	/**
+	 * The latency in microseconds at the given fraction (0..1) of the
+	 * samples, or 0 if there aren't any.
+	 */
+	synchronized long percentile(double p) {
+		if (mCount == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(p * mCount));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += mCounts[i];
+			if (seen >= rank) {
+				return Math.min(lowest(i), mMax);
+			}
+		}
+		return mMax;
+	}
+
+	synchronized void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			mCounts[i] = 0;
+		}
+		mCount = 0;
+		mMax = 0;
+	}
+
+	/**
+	 * Percentiles in milliseconds, e.g. "n 40 p50 12.1 p99 40.3 max 61.0".
+	 */
+	synchronized String summary() {
+		return String.format("n %d p50 %.1f p90 %.1f p99 %.1f max %.1f ms",
+							 mCount,
+							 percentile(0.50) / 1000.0,
+							 percentile(0.90) / 1000.0,
+							 percentile(0.99) / 1000.0,
+							 mMax / 1000.0);
+	}
+}
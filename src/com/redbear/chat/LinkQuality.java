@@ -0,0 +1,149 @@
+package com.redbear.chat;
+
+/**
+ * How good the radio link to one remote is, and what to do about it.
+ *
+ * The estimate is a moving average of RSSI readings, together with a
+ * moving average of failed writes, which catches interference that
+ * RSSI doesn't show. The result is one of three levels, with a few dB
+ * of hysteresis so that a link on a boundary doesn't flap between
+ * them.
+ *
+ * As the link gets worse we write smaller chunks, which are less
+ * likely to be lost, retry failed chunks more times before giving up
+ * on a message, and sample RSSI more often. As it improves we relax
+ * again.
+ */
+class LinkQuality {
+	static final int POOR = 0;
+	static final int FAIR = 1;
+	static final int GOOD = 2;
+
+	static final String[] NAMES = { "poor", "fair", "good" };
+
+	/* Weight of each new RSSI reading, and of each write result. */
+	static final double RSSI_ALPHA = 0.25;
+	static final double FAILURE_ALPHA = 0.1;
+
+	/* Averaged RSSI at which we drop to FAIR and POOR. Climbing back
+	 * up takes HYSTERESIS dB more. */
+	static final double FAIR_RSSI = -75;
+	static final double POOR_RSSI = -88;
+	static final double HYSTERESIS = 4;
+
+	/* Averaged fraction of failed writes at which we drop a level. */
+	static final double FAIR_FAILURES = 0.05;
+	static final double POOR_FAILURES = 0.2;
+
+	/* Per level, POOR first. */
+	static final int[] CHUNK_SIZE = { 8, 20, Integer.MAX_VALUE };
+	static final int[] RETRY_BUDGET = { 8, 4, 2 };
+
+	/* RSSI sampling intervals in ms. While the remote is in use we
+	 * sample at ACTIVE_INTERVAL; when it's idle the interval doubles
+	 * each time up to the maximum for the level. */
+	static final long ACTIVE_INTERVAL = 1000;
+	static final long[] IDLE_INTERVAL = { 2000, 8000, 30000 };
+
+	double mRssi = Double.NaN;
+	double mFailures = 0;
+	int mLevel = GOOD;
+	long mInterval = ACTIVE_INTERVAL;
+
+	synchronized void onRssi(int rssi) {
+		if (Double.isNaN(mRssi)) {
+			mRssi = rssi;
+		} else {
+			mRssi += RSSI_ALPHA * (rssi - mRssi);
+		}
+		update();
+	}
+
+	synchronized void onWrite(boolean success) {
+		mFailures += FAILURE_ALPHA * ((success ? 0 : 1) - mFailures);
+		update();
+	}
+
+	void update() {
+		int level = Math.min(rssiLevel(), failureLevel());
+		if (level != mLevel) {
+			mLevel = level;
+			Trace.event(Trace.LINK, level, (int) Math.round(mRssi));
+		}
+	}
+
+	int rssiLevel() {
+		if (Double.isNaN(mRssi)) {
+			return GOOD;
+		}
+		// Moving down a level is immediate; moving up needs the
+		// average to clear the threshold by HYSTERESIS.
+		double up = HYSTERESIS;
+		switch (mLevel) {
+		case POOR:
+			if (mRssi < POOR_RSSI + up) {
+				return POOR;
+			}
+			return mRssi < FAIR_RSSI + up ? FAIR : GOOD;
+		case FAIR:
+			if (mRssi < POOR_RSSI) {
+				return POOR;
+			}
+			return mRssi < FAIR_RSSI + up ? FAIR : GOOD;
+		default:
+			if (mRssi < POOR_RSSI) {
+				return POOR;
+			}
+			return mRssi < FAIR_RSSI ? FAIR : GOOD;
+		}
+	}
+
+	int failureLevel() {
+		if (mFailures >= POOR_FAILURES) {
+			return POOR;
+		}
+		return mFailures >= FAIR_FAILURES ? FAIR : GOOD;
+	}
+
+	synchronized int level() {
+		return mLevel;
+	}
+
+	/**
+	 * Averaged RSSI in dBm, or NaN before the first reading.
+	 */
+	synchronized double rssi() {
+		return mRssi;
+	}
+
+	/**
+	 * How much of a message to put in each write, given the most the
+	 * link allows.
+	 */
+	synchronized int chunkSize(int max) {
+		return Math.min(max, CHUNK_SIZE[mLevel]);
+	}
+
+	/**
+	 * How many times to retry a failed chunk before giving up on the
+	 * rest of its message.
+	 */
+	synchronized int retryBudget() {
+		return RETRY_BUDGET[mLevel];
+	}
+
+	/**
+	 * Time in ms until the next RSSI sample.
+	 *
+	 * @param active
+	 *            Whether the remote has been used since the last sample.
+	 */
+	synchronized long nextInterval(boolean active) {
+		if (active) {
+			mInterval = ACTIVE_INTERVAL;
+		} else {
+			mInterval = Math.min(mInterval * 2, IDLE_INTERVAL[mLevel]);
+		}
+		return mInterval;
+	}
+}
@@ -0,0 +1,102 @@
+package com.redbear.chat;
+
+/**
+ * Running figures about one remote's link, for the diagnostics screen.
+ *
+ * RemoteConnection records as it goes and the screen reads whenever
+ * it redraws, so nothing is pushed anywhere and a busy link costs the
+ * screen nothing. Memory is fixed: a histogram of write latencies, a
+ * few counters, and short rings of RSSI readings and connection
+ * changes.
+ */
+class LinkStats {
+	static final int RSSI_HISTORY = 32;
+	static final int CONNECTION_HISTORY = 8;
+
+	/* From starting a chunk's write to its callback. */
+	final LatencyHistogram mWriteLatency = new LatencyHistogram();
+
+	long mBytes = 0;
+	long mWrites = 0;
+	long mFailedWrites = 0;
+
+	/* Raw RSSI readings; the newest is at mRssiCount - 1. */
+	final int[] mRssi = new int[RSSI_HISTORY];
+	long mRssiCount = 0;
+
+	/* When the link came up or went down, by currentTimeMillis(). */
+	final long[] mChanges = new long[CONNECTION_HISTORY];
+	final boolean[] mChangeUp = new boolean[CONNECTION_HISTORY];
+	int mChangeCount = 0;
+	int mConnects = 0;
+
+	synchronized void onWrite(boolean success, int bytes, long nanos) {
+		mWriteLatency.record(nanos);
+		mWrites++;
+		if (success) {
+			mBytes += bytes;
+		} else {
+			mFailedWrites++;
+		}
+	}
+
+	synchronized void onRssi(int rssi) {
+		mRssi[(int) (mRssiCount++ % RSSI_HISTORY)] = rssi;
+	}
+
+	synchronized void onConnection(boolean up, long time) {
+		int i = mChangeCount++ % CONNECTION_HISTORY;
+		mChanges[i] = time;
+		mChangeUp[i] = up;
+		if (up) {
+			mConnects++;
+		}
+	}
+
+	synchronized long bytes() {
+		return mBytes;
+	}
+
+	synchronized long writes() {
+		return mWrites;
+	}
+
+	synchronized long failedWrites() {
+		return mFailedWrites;
+	}
+
+	/**
+	 * Times the link has come back after the first connection.
+	 */
+	synchronized int reconnects() {
+		return Math.max(0, mConnects - 1);
+	}
+
+	/**
+	 * Copy the recent RSSI readings into out, oldest first.
+	 *
+	 * @return How many there were.
+	 */
+	synchronized int rssiHistory(int[] out) {
+		int n = (int) Math.min(Math.min(mRssiCount, RSSI_HISTORY), out.length);
+		for (int i = 0; i < n; i++) {
+			out[i] = mRssi[(int) ((mRssiCount - n + i) % RSSI_HISTORY)];
+		}
+		return n;
+	}
+
+	/**
+	 * Copy the recent connection changes out, newest first.
+	 *
+	 * @return How many there were.
+	 */
+	synchronized int connectionHistory(long[] times, boolean[] up) {
+		int n = Math.min(Math.min(mChangeCount, CONNECTION_HISTORY), times.length);
+		for (int i = 0; i < n; i++) {
+			int j = (mChangeCount - 1 - i) % CONNECTION_HISTORY;
+			times[i] = mChanges[j];
+			up[i] = mChangeUp[j];
+		}
+		return n;
+	}
+}
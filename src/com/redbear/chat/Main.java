@@ -2,8 +2,6 @@ package com.redbear.chat;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -41,6 +39,21 @@ public class Main extends Activity {
 	RBLService mService;
 	TextView mTextView;
 
+	/* Ends a scan and shows what it found. Clicking Connect again
+	 * during a scan just restarts the clock. */
+	final Scheduler.Task mScanDoneTask =
+		HandlerScheduler.main().task(new Runnable() {
+			@Override
+			public void run() {
+				mBluetoothAdapter.stopLeScan(mLeScanCallback);
+
+				Intent deviceListIntent = new Intent(getApplicationContext(),
+						Device.class);
+				startActivity(deviceListIntent);
+				mDialog.dismiss();
+			}
+		});
+
 	final BroadcastReceiver mReceiver = new BroadcastReceiver() {	
 		@Override
 		public void onReceive(Context context, Intent intent) {
@@ -105,21 +118,10 @@ public class Main extends Activity {
 			
 			@Override
 			public void onClick(View v) {
+				if (!mScanDoneTask.isScheduled()) {
+					showRoundProcessDialog(Main.this, R.layout.loading_process_dialog_anim);
+				}
 				scanLeDevice();
-
-				showRoundProcessDialog(Main.this, R.layout.loading_process_dialog_anim);
-
-				Timer mTimer = new Timer();
-				mTimer.schedule(new TimerTask() {
-
-					@Override
-					public void run() {
-						Intent deviceListIntent = new Intent(getApplicationContext(),
-								Device.class);
-						startActivity(deviceListIntent);
-						mDialog.dismiss();
-					}
-				}, SCAN_PERIOD);
 			}
 		});
 
@@ -131,6 +133,14 @@ public class Main extends Activity {
 				sendBroadcast(intent);
 			}
 		});
+
+		Button diagnostics = (Button)findViewById(R.id.diagnosticsBtn);
+		diagnostics.setOnClickListener(new OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				startActivity(new Intent(Main.this, Diagnostics.class));
+			}
+		});
 	}
 
 	public void showRoundProcessDialog(Context mContext, int layout) {
@@ -154,21 +164,10 @@ public class Main extends Activity {
 	}
 
 	private void scanLeDevice() {
-		new Thread() {
-
-			@Override
-			public void run() {
-				mBluetoothAdapter.startLeScan(mLeScanCallback);
-
-				try {
-					Thread.sleep(SCAN_PERIOD);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-
-				mBluetoothAdapter.stopLeScan(mLeScanCallback);
-			}
-		}.start();
+		if (!mScanDoneTask.isScheduled()) {
+			mBluetoothAdapter.startLeScan(mLeScanCallback);
+		}
+		mScanDoneTask.schedule(SCAN_PERIOD);
 	}
 
 	private BluetoothAdapter.LeScanCallback
@@ -216,6 +215,10 @@ public class Main extends Activity {
 	protected void onDestroy() {
 		super.onDestroy();
 
-		System.exit(0);
+		// The service carries on without us.
+		if (mScanDoneTask.isScheduled()) {
+			mScanDoneTask.cancel();
+			mBluetoothAdapter.stopLeScan(mLeScanCallback);
+		}
 	}
 }
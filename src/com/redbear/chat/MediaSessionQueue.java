@@ -0,0 +1,101 @@
+package com.redbear.chat;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * The play queue of the active media session, for QueuePager.
+ *
+ * MediaSession came in with API 21, after the SDK we build against, so
+ * it's reached by reflection. Listing sessions also needs our
+ * notification listener (NLService) to be enabled. On older phones,
+ * or if anything is missing, the queue is simply empty.
+ *
+ * getQueue() parcels the whole list over each time, so we only call
+ * it from fetch(), and copy out just the items asked for.
+ */
+class MediaSessionQueue implements QueuePager.Source {
+	final static String TAG = MediaSessionQueue.class.getSimpleName();
+
+	final Context mContext;
+
+	/* From the last fetch(), or null if there wasn't a queue. */
+	List<?> mQueue;
+
+	MediaSessionQueue(Context context) {
+		mContext = context;
+	}
+
+	public void fetch() {
+		mQueue = queue();
+	}
+
+	public int size() {
+		return mQueue == null ? 0 : mQueue.size();
+	}
+
+	public int read(int index, int count, long[] ids, String[] titles) {
+		List<?> queue = mQueue;
+		if (queue == null) {
+			return 0;
+		}
+		int n = Math.max(0, Math.min(count, queue.size() - index));
+		try {
+			for (int i = 0; i < n; i++) {
+				Object item = queue.get(index + i);
+				ids[i] = (Long) invoke(item, "getQueueItemId");
+				if (titles != null) {
+					Object description = invoke(item, "getDescription");
+					Object title = invoke(description, "getTitle");
+					Object subtitle = invoke(description, "getSubtitle");
+					titles[i] = subtitle == null ? String.valueOf(title)
+												 : title + " - " + subtitle;
+				}
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Can't read the queue", e);
+			return 0;
+		}
+		return n;
+	}
+
+	/* Spotify's queue if it has one, or else the first we find. */
+	List<?> queue() {
+		Object manager = mContext.getSystemService("media_session");
+		if (manager == null) {
+			return null;
+		}
+		try {
+			Method getActiveSessions =
+				manager.getClass().getMethod("getActiveSessions", ComponentName.class);
+			List<?> controllers = (List<?>) getActiveSessions.invoke(
+				manager, new ComponentName(mContext, NLService.class));
+			List<?> found = null;
+			for (Object controller : controllers) {
+				List<?> queue = (List<?>) invoke(controller, "getQueue");
+				if (queue == null) {
+					continue;
+				}
+				if (RBLService.SPOTIFY_PACKAGE.equals(invoke(controller, "getPackageName"))) {
+					return queue;
+				}
+				if (found == null) {
+					found = queue;
+				}
+			}
+			return found;
+		} catch (Exception e) {
+			// Including the SecurityException if the listener is off.
+			Log.w(TAG, "Can't get the media sessions", e);
+			return null;
+		}
+	}
+
+	static Object invoke(Object target, String name) throws Exception {
+		return target.getClass().getMethod(name).invoke(target);
+	}
+}
@@ -0,0 +1,83 @@
+package com.redbear.chat;
+
+/**
+ * Everything we tell the remotes about what's playing, as one
+ * immutable value.
+ *
+ * The service keeps the current state in an AtomicReference and
+ * replaces it whole on every change, so whoever reads it gets a
+ * consistent view (never the new track with the old artist) without
+ * taking a lock. Every change bumps the version; a reader that
+ * remembers the version it last acted on can skip the work when it
+ * hasn't moved.
+ *
+ * The with* methods return this when nothing would change, which
+ * callers rely on to avoid publishing a new version for nothing.
+ */
+final class MediaState {
+	static final MediaState INITIAL =
+		new MediaState(0, 127, false, true, "Artist", "Track");
+
+	final long version;
+	/* 0..127. */
+	final int volume;
+	final boolean playing;
+	final boolean online;
+	final String artist;
+	final String track;
+
+	MediaState(long version, int volume, boolean playing, boolean online,
+			   String artist, String track) {
+		this.version = version;
+		this.volume = volume;
+		this.playing = playing;
+		this.online = online;
+		this.artist = artist;
+		this.track = track;
+	}
+
+	MediaState withVolume(int volume) {
+		volume = Math.min(127, Math.max(0, volume));
+		if (volume == this.volume) {
+			return this;
+		}
+		return new MediaState(version + 1, volume, playing, online,
+							  artist, track);
+	}
+
+	MediaState withPlaying(boolean playing) {
+		if (playing == this.playing) {
+			return this;
+		}
+		return new MediaState(version + 1, volume, playing, online,
+							  artist, track);
+	}
+
+	MediaState withOnline(boolean online) {
+		if (online == this.online) {
+			return this;
+		}
+		return new MediaState(version + 1, volume, playing, online,
+							  artist, track);
+	}
+
+	/**
+	 * Artist and track always change together, so that nobody sees
+	 * one without the other.
+	 */
+	MediaState withSong(String artist, String track) {
+		if (artist.equals(this.artist) && track.equals(this.track)) {
+			return this;
+		}
+		return new MediaState(version + 1, volume, playing, online,
+							  artist, track);
+	}
+
+	@Override
+	public String toString() {
+		return "v" + version + " volume " + volume +
+			(playing ? " playing" : " paused") +
+			(online ? " online " : " offline ") +
+			artist + " / " + track;
+	}
+}
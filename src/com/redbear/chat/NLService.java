@@ -5,6 +5,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.graphics.Bitmap;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
 import android.util.Log;
@@ -19,10 +20,17 @@ public class NLService extends NotificationListenerService {
 
     static final String TAG = NLService.class.getSimpleName();
 
+	/* The sample key (ArtLoader.key()) of the last cover handed over,
+	 * 0 for none, so that reposting the same cover costs nothing. */
+	boolean mArtSent = false;
+	int mArtKey;
+
 	BroadcastReceiver mReceiver = new BroadcastReceiver () {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			Log.i(TAG, "Got intent: " + intent.getAction());
+			if (Trace.on(Trace.VERBOSE)) {
+				Log.i(TAG, "Got intent: " + intent.getAction());
+			}
 			if (intent.getAction().equals(ACTION_GET_NOTIFICATIONS)) {
 				sendNotifications();
 			}
@@ -50,14 +58,17 @@ public class NLService extends NotificationListenerService {
 		Notification n = sbn.getNotification();
 		Intent i;
 
-		Log.i(TAG, "Posted");
-		Log.i(TAG, "ID: " + sbn.getId());
-		Log.i(TAG, "Ticker: " + n.tickerText);
-		Log.i(TAG, "Package: " + sbn.getPackageName());
-		Log.i(TAG, "String: " + n.toString());
+		boolean spotify = sbn.getPackageName().equals("com.spotify.music");
+		Trace.event(Trace.POSTED, sbn.getId(), spotify ? 1 : 0);
+		if (Trace.on(Trace.VERBOSE)) {
+			Log.i(TAG, "Posted " + sbn.getId() + " from " +
+				  sbn.getPackageName() + ": " + n.tickerText);
+			Log.i(TAG, "String: " + n.toString());
+		}
 
-		if (sbn.getPackageName().equals("com.spotify.music")) {
+		if (spotify) {
 			i = new Intent(ACTION_SONG_CHANGED);
+			offerArt(n.largeIcon);
 		} else {
 			i = new Intent(ACTION_NOTIFICATION_POSTED);
 		}
@@ -67,12 +78,37 @@ public class NLService extends NotificationListenerService {
 
     @Override
 	public void onNotificationRemoved(StatusBarNotification sbn) {
-		Log.i(TAG, "Removed");
-		Log.i(TAG, "ID: " + sbn.getId());
+		if (Trace.on(Trace.VERBOSE)) {
+			Log.i(TAG, "Removed " + sbn.getId());
+		}
     }
 
+	/**
+	 * Hand the cover art to RBLService's ArtLoader, in process, if
+	 * it's changed.
+	 */
+	void offerArt(Bitmap bitmap) {
+		ArtLoader loader = ArtLoader.current();
+		if (loader == null) {
+			return;
+		}
+		if (bitmap != null && (bitmap.getWidth() <= 0 || bitmap.getHeight() <= 0)) {
+			bitmap = null;
+		}
+		int key = bitmap == null ? 0 :
+			ArtLoader.key(bitmap, bitmap.getWidth(), bitmap.getHeight());
+		if (mArtSent && key == mArtKey) {
+			return;
+		}
+		mArtSent = true;
+		mArtKey = key;
+		loader.load(bitmap);
+	}
+
 	void sendNotifications() {
 		Log.i(TAG, "sendNotifications");
+		// The service asking is probably new, and has nothing yet.
+		mArtSent = false;
 		for (StatusBarNotification s : getActiveNotifications()) {
 			onNotificationPosted(s);
 		}
@@ -0,0 +1,185 @@
+package com.redbear.chat;
+
+import java.util.ArrayList;
+
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * Holds the newest pending message for each message type until the
+ * link can take it.
+ *
+ * Each type has exactly one slot, so a newer value simply replaces
+ * the older one. However long the link stays down, we never hold more
+ * than one message per type. The queue type is the exception: a page
+ * reply answers one remote's request and mustn't be lost to another,
+ * so its messages wait in line behind the slot, with a newer one only
+ * replacing what it supersedes (see Messages.supersedes()).
+ *
+ * Messages go out in priority order, except that one passed over
+ * MAX_WAIT times goes next whatever its priority. Replacing a message
+ * doesn't reset its wait, so a track name that keeps changing while
+ * volume changes fill the link still gets through.
+ */
+class Outbox {
+	/* One slot per message type; see Messages for the order. */
+	static final int NUM_TYPES = Messages.NUM_TYPES;
+
+	/* A mask of every type, for poll(). */
+	static final int ALL = (1 << NUM_TYPES) - 1;
+
+	static final int MAX_WAIT = 4;
+
+	/* Queue messages held in all: a page reply per page a remote can
+	 * be showing, and a change notice. */
+	static final int MAX_QUEUE = QueuePager.MAX_PAGES + 1;
+
+	final byte[][] mPending = new byte[NUM_TYPES][];
+	/* Queue messages behind mPending[QUEUE], oldest first. */
+	final ArrayList<byte[]> mQueueLine = new ArrayList<byte[]>();
+	/* Per type, how many times its pending message has been passed
+	 * over. */
+	final int[] mWaits = new int[NUM_TYPES];
+	int mLastPolledType = -1;
+
+	/**
+	 * Queue a message, replacing any pending message of the same type
+	 * (bar the one exception in Messages.replace()).
+	 */
+	synchronized void put(int type, byte[] message) {
+		if (type == Messages.POSITION) {
+			message = Messages.replace(mPending[type], message);
+		}
+		if (type == Messages.QUEUE && mPending[type] != null &&
+			!Messages.supersedes(message, mPending[type])) {
+			putInLine(message);
+			return;
+		}
+		if (mPending[type] == null) {
+			mWaits[type] = 0;
+		}
+		mPending[type] = message;
+	}
+
+	/**
+	 * Queue a message only if nothing newer of the same type is
+	 * already waiting.
+	 */
+	synchronized void putIfAbsent(int type, byte[] message) {
+		if (mPending[type] == null) {
+			mWaits[type] = 0;
+			mPending[type] = message;
+		} else if (type == Messages.QUEUE && !queued(message)) {
+			// It was first, so it goes back at the front.
+			mQueueLine.add(0, mPending[type]);
+			mPending[type] = message;
+			trimLine();
+		}
+	}
+
+	/* Behind the queue slot, replacing whatever message supersedes. */
+	void putInLine(byte[] message) {
+		for (int i = 0; i < mQueueLine.size(); i++) {
+			if (Messages.supersedes(message, mQueueLine.get(i))) {
+				mQueueLine.set(i, message);
+				return;
+			}
+		}
+		mQueueLine.add(message);
+		trimLine();
+	}
+
+	/* Whether something queued makes message redundant. */
+	boolean queued(byte[] message) {
+		if (Messages.supersedes(mPending[Messages.QUEUE], message)) {
+			return true;
+		}
+		for (int i = 0; i < mQueueLine.size(); i++) {
+			if (Messages.supersedes(mQueueLine.get(i), message)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* A remote only asks for pages it's showing, so this is just a
+	 * backstop; the oldest goes. */
+	void trimLine() {
+		while (mQueueLine.size() >= MAX_QUEUE) {
+			mPending[Messages.QUEUE] = mQueueLine.remove(0);
+		}
+	}
+
+	/**
+	 * Remove and return the next pending message, or null if there is
+	 * nothing left to send.
+	 */
+	synchronized byte[] poll() {
+		return poll(ALL);
+	}
+
+	/**
+	 * Remove and return the next pending message of the types in the
+	 * mask (bit n for type n), or null if there isn't one. Only those
+	 * types count as passed over.
+	 */
+	synchronized byte[] poll(int types) {
+		int next = -1;
+		for (int i = 0; i < NUM_TYPES; i++) {
+			if ((types & (1 << i)) == 0 || mPending[i] == null) {
+				continue;
+			}
+			if (next < 0 || (mWaits[i] >= MAX_WAIT && mWaits[i] > mWaits[next])) {
+				next = i;
+			}
+		}
+		mLastPolledType = next;
+		if (next < 0) {
+			return null;
+		}
+		for (int i = 0; i < NUM_TYPES; i++) {
+			if (i != next && (types & (1 << i)) != 0 && mPending[i] != null) {
+				mWaits[i]++;
+			}
+		}
+		byte[] message = mPending[next];
+		mPending[next] = null;
+		if (next == Messages.QUEUE && !mQueueLine.isEmpty()) {
+			mWaits[next] = 0;
+			mPending[next] = mQueueLine.remove(0);
+		}
+		return message;
+	}
+
+	/**
+	 * The type of the message most recently returned by poll().
+	 */
+	synchronized int lastPolledType() {
+		return mLastPolledType;
+	}
+
+	synchronized int size() {
+		int size = mQueueLine.size();
+		for (int i = 0; i < NUM_TYPES; i++) {
+			if (mPending[i] != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	synchronized boolean isEmpty() {
+		for (int i = 0; i < NUM_TYPES; i++) {
+			if (mPending[i] != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	synchronized void clear() {
+		for (int i = 0; i < NUM_TYPES; i++) {
+			mPending[i] = null;
+		}
+		mQueueLine.clear();
+	}
+}
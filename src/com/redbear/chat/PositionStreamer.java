@@ -0,0 +1,237 @@
+package com.redbear.chat;
+
+import com.redbear.chat.protocol.Messages;
+import com.redbear.chat.protocol.StateDiff;
+
+/**
+ * Keeps the remotes' idea of the playback position close to the
+ * player's, in as few bytes as we can.
+ *
+ * The remote runs the position forward by itself while playing, so
+ * once it has a starting point (a p message) it only needs to hear
+ * from us when the player jumps: a seek or a new track. Play and
+ * pause it already hears about, and stops or restarts its clock
+ * itself, but late by however long the playing message took to get
+ * there. A p a second or so later takes that out, but only if the
+ * bucket (below) is more than half full: it's tidying, and the rest
+ * is kept for seeks. Smaller differences, from buffering or the link delaying the p,
+ * are fixed with a 4 byte correction (q) instead. We keep a model of
+ * what the remotes believe, and compare it with the player whenever
+ * the player reports in and on a timer. The timer runs every second
+ * after a jump, since that's when the player tends to settle
+ * somewhere slightly different, and backs off to half a minute in
+ * steady playback.
+ *
+ * Everything is charged to a token bucket holding half of BUDGET,
+ * refilled at half of BUDGET a minute, so no minute ever sees more
+ * than BUDGET bytes of position messages on any link. If we can't
+ * afford a message it waits until we can, and whatever is newest
+ * then goes out instead.
+ *
+ * Times are on the scheduler's clock, in ms.
+ */
+class PositionStreamer {
+	/* Bytes per minute, per link. */
+	static final int BUDGET = 240;
+
+	/* Differences smaller than this aren't worth a message. */
+	static final long THRESHOLD = 500;
+
+	/* How often to check after a jump, doubling up to STEADY_CHECK. */
+	static final long FIRST_CHECK = 1000;
+	static final long STEADY_CHECK = 32000;
+
+	/* Send a fresh p at least this often while playing, in case a
+	 * remote missed the last one. */
+	static final long REFRESH = 120000;
+
+	final Scheduler mScheduler;
+	final StateDiff.Sink mSink;
+	final Scheduler.Task mCheckTask;
+
+	/* The player: at mTime, it was at mPosition of a track mLength
+	 * long. mLength is -1 until we know what's playing. */
+	long mPosition = 0;
+	long mTime = 0;
+	long mLength = -1;
+	boolean mPlaying = false;
+
+	/* What the remotes were last told: a p numbered mSeq at
+	 * mSentTime, and a correction in units on top. */
+	int mSeq = 0;
+	long mSentPosition;
+	long mSentTime;
+	long mSentLength = -1;
+	boolean mSentPlaying;
+	int mSentCorrection;
+
+	/* A p is owed, because something jumped or a remote is new. */
+	boolean mJumped = false;
+	/* A p would be nice, after play or pause. */
+	boolean mSettle = false;
+	long mInterval = FIRST_CHECK;
+
+	/* Token bucket, in bytes. */
+	double mTokens = BUDGET / 2;
+	long mRefillTime;
+
+	/* Counters for the load test and diagnostics. */
+	long mBytes = 0;
+	long mPositions = 0;
+	long mCorrections = 0;
+
+	PositionStreamer(Scheduler scheduler, StateDiff.Sink sink) {
+		mScheduler = scheduler;
+		mSink = sink;
+		mRefillTime = scheduler.now();
+		mCheckTask = scheduler.task(new Runnable() {
+			public void run() {
+				check();
+			}
+		});
+	}
+
+	/**
+	 * A new track has started.
+	 *
+	 * @param length
+	 *            In ms.
+	 */
+	synchronized void setTrack(long length) {
+		mLength = length;
+		mPosition = 0;
+		mTime = mScheduler.now();
+		mJumped = true;
+		check();
+	}
+
+	/**
+	 * The player says where it is.
+	 *
+	 * @param position
+	 *            In ms, as of now.
+	 */
+	synchronized void setPosition(long position, boolean playing) {
+		mPosition = position;
+		mTime = mScheduler.now();
+		if (playing != mPlaying) {
+			// The remotes stop or restart their clock on the playing
+			// message, so do the same to our model of them.
+			mSentPosition = extrapolated(mTime);
+			mSentTime = mTime;
+			mSentPlaying = playing;
+			mPlaying = playing;
+			// Always reschedule: a paused check may have cancelled
+			// the timer with mSettle still set, and a resume has to
+			// start it again.
+			mSettle = true;
+			mCheckTask.schedule(FIRST_CHECK);
+			return;
+		}
+		check();
+	}
+
+	/**
+	 * Send a fresh p, e.g. because a remote has just connected and
+	 * won't understand corrections to the last one.
+	 */
+	synchronized void resync() {
+		mJumped = true;
+		check();
+	}
+
+	/**
+	 * Where the player is now, by our reckoning.
+	 */
+	synchronized long position() {
+		return position(mScheduler.now());
+	}
+
+	long position(long now) {
+		return mPosition + (mPlaying ? now - mTime : 0);
+	}
+
+	/* Where the remotes have run the last p to, before correction. */
+	long extrapolated(long now) {
+		return mSentPosition + (mSentPlaying ? now - mSentTime : 0);
+	}
+
+	synchronized void check() {
+		if (mLength < 0) {
+			return;
+		}
+		long now = mScheduler.now();
+		int unit = Messages.POSITION_UNIT;
+		long position = position(now);
+		long difference = position - extrapolated(now);
+		int correction = (int) (difference / unit);
+		boolean jump = mJumped || mLength != mSentLength ||
+			Math.abs(correction) > Messages.MAX_CORRECTION ||
+			(mPlaying && now - mSentTime >= REFRESH);
+		if (!jump && mSettle) {
+			jump = refill(now) >= BUDGET / 4 + Messages.POSITION_SIZE;
+		}
+
+		byte[] message = null;
+		if (jump) {
+			message = Messages.position(mSeq + 1, position, mLength);
+		} else if (Math.abs(difference - mSentCorrection * unit) >= THRESHOLD) {
+			message = Messages.correction(mSeq, correction);
+		}
+
+		if (message != null) {
+			if (!spend(message.length, now)) {
+				// Try again once we can afford it.
+				long wait = (long) Math.ceil(
+					(message.length - mTokens) * 60000 / (BUDGET / 2));
+				mCheckTask.schedule(wait);
+				return;
+			}
+			if (jump) {
+				mSeq = (mSeq + 1) & 0xF;
+				// The remote only gets whole units.
+				mSentPosition = position / unit * unit;
+				mSentTime = now;
+				mSentLength = mLength;
+				mSentPlaying = mPlaying;
+				mSentCorrection = 0;
+				mJumped = false;
+				mSettle = false;
+				mPositions++;
+			} else {
+				mSentCorrection = correction;
+				mCorrections++;
+			}
+			mBytes += message.length;
+			mSink.send(Messages.POSITION, message);
+			mInterval = FIRST_CHECK;
+		} else {
+			mInterval = Math.min(mInterval * 2, STEADY_CHECK);
+		}
+
+		// Paused, nothing changes until the player tells us.
+		if (mPlaying) {
+			mCheckTask.schedule(mInterval, mInterval / 4);
+		} else {
+			mCheckTask.cancel();
+		}
+	}
+
+	/* Top up the bucket to now, and return what's in it. */
+	double refill(long now) {
+		double capacity = BUDGET / 2;
+		mTokens = Math.min(capacity,
+						   mTokens + (now - mRefillTime) * capacity / 60000);
+		mRefillTime = now;
+		return mTokens;
+	}
+
+	/* Take cost bytes from the bucket, if they're there. */
+	boolean spend(int cost, long now) {
+		if (refill(now) < cost) {
+			return false;
+		}
+		mTokens -= cost;
+		return true;
+	}
+}
@@ -0,0 +1,183 @@
+package com.redbear.chat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.redbear.chat.protocol.GlyphMapper;
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * Serves the play queue to remotes a page at a time.
+ *
+ * Remotes ask for a few items by index as the user scrolls, so we
+ * only ever hold a window of the queue: the last MAX_PAGES pages
+ * asked for, already in the remote's glyphs. Misses are read from the
+ * Source a page at a time. When the queue changes we re-read just the
+ * pages we hold, drop the ones that differ, and tell the caller the
+ * first index that did, which is all a remote needs to refresh what
+ * it's showing. Anything outside the window no remote can be showing.
+ *
+ * Getting hold of the queue can be costly (MediaSessionQueue has to
+ * parcel the whole list over), so each page() or invalidate() fetches
+ * it at most once, and only if it has to read something.
+ */
+class QueuePager {
+	interface Source {
+		/**
+		 * Get the queue as it is now. size() and read() answer from
+		 * it until the next fetch().
+		 */
+		void fetch();
+
+		/* Items in the queue, 0 if there isn't one. */
+		int size();
+
+		/**
+		 * Read up to count items from index on.
+		 *
+		 * @param titles
+		 *            May be null if only the ids are wanted.
+		 * @return How many were read.
+		 */
+		int read(int index, int count, long[] ids, String[] titles);
+	}
+
+	static final int PAGE_SIZE = Messages.MAX_QUEUE_PAGE;
+	static final int MAX_PAGES = 8;
+
+	static class Page {
+		final long[] ids = new long[PAGE_SIZE];
+		final byte[][] items = new byte[PAGE_SIZE][];
+		int count;
+	}
+
+	final Source mSource;
+
+	/* By page number, least recently used first. */
+	final LinkedHashMap<Integer, Page> mPages =
+		new LinkedHashMap<Integer, Page>(MAX_PAGES * 2, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+				return size() > MAX_PAGES;
+			}
+		};
+
+	/* Queue length, or -1 until something is asked for. */
+	int mSize = -1;
+
+	/* Whether the current call has fetched the queue yet. */
+	boolean mFetched;
+
+	/* Counters for the load test and diagnostics. */
+	long mHits = 0;
+	long mMisses = 0;
+	long mItemsRead = 0;
+
+	QueuePager(Source source) {
+		mSource = source;
+	}
+
+	/**
+	 * An l message with up to count items from index on.
+	 */
+	synchronized byte[] page(int index, int count) {
+		mFetched = false;
+		if (mSize < 0) {
+			fetch();
+			mSize = mSource.size();
+		}
+		count = Math.max(0, Math.min(Math.min(count, PAGE_SIZE), mSize - index));
+		byte[][] items = new byte[count][];
+		int n = 0;
+		Page page = null;
+		while (n < count) {
+			int i = index + n;
+			if (page == null || i % PAGE_SIZE == 0) {
+				page = load(i / PAGE_SIZE);
+			}
+			if (i % PAGE_SIZE >= page.count) {
+				// The queue got shorter than it said.
+				break;
+			}
+			items[n++] = page.items[i % PAGE_SIZE];
+		}
+		return Messages.queuePage(index, mSize, items, n);
+	}
+
+	synchronized int size() {
+		return Math.max(mSize, 0);
+	}
+
+	Page load(int number) {
+		Page page = mPages.get(number);
+		if (page != null) {
+			mHits++;
+			return page;
+		}
+		mMisses++;
+		fetch();
+		page = new Page();
+		String[] titles = new String[PAGE_SIZE];
+		page.count = mSource.read(number * PAGE_SIZE, PAGE_SIZE, page.ids, titles);
+		for (int i = 0; i < page.count; i++) {
+			page.items[i] = GlyphMapper.map(titles[i], Messages.MAX_TEXT);
+		}
+		mItemsRead += page.count;
+		mPages.put(number, page);
+		return page;
+	}
+
+	/**
+	 * The queue has changed: drop what's different.
+	 *
+	 * @return The first index a remote may be showing the wrong thing
+	 *         for, or -1 if none.
+	 */
+	synchronized int invalidate() {
+		if (mSize < 0) {
+			// Nobody has looked.
+			return -1;
+		}
+		mFetched = false;
+		fetch();
+		int size = mSource.size();
+		int first = size != mSize ? Math.min(size, mSize) : -1;
+		mSize = size;
+
+		long[] ids = new long[PAGE_SIZE];
+		Iterator<Map.Entry<Integer, Page>> it = mPages.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Page> entry = it.next();
+			int start = entry.getKey() * PAGE_SIZE;
+			Page page = entry.getValue();
+			int count = mSource.read(start, PAGE_SIZE, ids, null);
+			int changed = difference(page, ids, count);
+			if (changed >= 0) {
+				it.remove();
+				if (first < 0 || start + changed < first) {
+					first = start + changed;
+				}
+			}
+		}
+		return first;
+	}
+
+	/* Called with the lock held. */
+	void fetch() {
+		if (!mFetched) {
+			mSource.fetch();
+			mFetched = true;
+		}
+	}
+
+	/* Where a page and what's there now first differ, or -1. */
+	static int difference(Page page, long[] ids, int count) {
+		int n = Math.min(page.count, count);
+		for (int i = 0; i < n; i++) {
+			if (page.ids[i] != ids[i]) {
+				return i;
+			}
+		}
+		return page.count != count ? n : -1;
+	}
+}
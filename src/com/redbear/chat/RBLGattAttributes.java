@@ -17,10 +17,19 @@
 package com.redbear.chat;
 
 import java.util.HashMap;
+import java.util.UUID;
+
+import com.redbear.chat.protocol.Messages;
 
 /**
  * This class includes a small subset of standard GATT attributes for
- * demonstration purposes.
+ * demonstration purposes, and the remote's own profile.
+ *
+ * The remote profile gives each kind of message its own
+ * characteristic, so that a volume change doesn't have to wait behind
+ * a track name. Each characteristic carries the same messages as the
+ * shield UART would, just only of its own kind. Remotes that don't
+ * have the profile get everything over the BLE Shield TX/RX pair.
  */
 public class RBLGattAttributes {
 	private static HashMap<String, String> attributes = new HashMap<String, String>();
@@ -29,6 +38,17 @@ public class RBLGattAttributes {
 	public static String BLE_SHIELD_RX = "713d0002-503e-4c75-ba94-3148f18d941e";
 	public static String BLE_SHIELD_SERVICE = "713d0000-503e-4c75-ba94-3148f18d941e";
 
+	/* The remote profile. */
+	public static String REMOTE_SERVICE = "713d1000-503e-4c75-ba94-3148f18d941e";
+	/* Written: VOLUME messages. */
+	public static String REMOTE_VOLUME = "713d1001-503e-4c75-ba94-3148f18d941e";
+	/* Written: PLAYING, NETWORK and POSITION messages. */
+	public static String REMOTE_STATE = "713d1002-503e-4c75-ba94-3148f18d941e";
+	/* Written: ARTIST and TRACK messages. */
+	public static String REMOTE_METADATA = "713d1003-503e-4c75-ba94-3148f18d941e";
+	/* Notified: button presses, as on BLE Shield RX. */
+	public static String REMOTE_INPUT = "713d1004-503e-4c75-ba94-3148f18d941e";
+
 	static {
 		// RBL Services.
 		attributes.put("713d0000-503e-4c75-ba94-3148f18d941e",
@@ -36,6 +56,48 @@ public class RBLGattAttributes {
 		// RBL Characteristics.
 		attributes.put(BLE_SHIELD_TX, "BLE Shield TX");
 		attributes.put(BLE_SHIELD_RX, "BLE Shield RX");
+		attributes.put(REMOTE_SERVICE, "Remote Service");
+		attributes.put(REMOTE_VOLUME, "Remote Volume");
+		attributes.put(REMOTE_STATE, "Remote State");
+		attributes.put(REMOTE_METADATA, "Remote Metadata");
+		attributes.put(REMOTE_INPUT, "Remote Input");
+	}
+
+	/**
+	 * The remote profile characteristic that carries messages of the
+	 * given type (see Messages).
+	 */
+	public static String characteristicFor(int type) {
+		switch (type) {
+		case Messages.VOLUME:
+			return REMOTE_VOLUME;
+		case Messages.PLAYING:
+		case Messages.NETWORK:
+		case Messages.POSITION:
+			return REMOTE_STATE;
+		default:
+			return REMOTE_METADATA;
+		}
+	}
+
+	/**
+	 * Whether a device with the given characteristics has the whole
+	 * remote profile.
+	 */
+	public static boolean hasRemoteProfile(UUID[] layout) {
+		String[] wanted = {
+			REMOTE_VOLUME, REMOTE_STATE, REMOTE_METADATA, REMOTE_INPUT
+		};
+		int found = 0;
+		for (String w : wanted) {
+			for (UUID uuid : layout) {
+				if (uuid.toString().equalsIgnoreCase(w)) {
+					found++;
+					break;
+				}
+			}
+		}
+		return found == wanted.length;
 	}
 
 	public static String lookup(String uuid, String defaultName) {
@@ -16,38 +16,38 @@
 
 package com.redbear.chat;
 
-import java.util.Arrays;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.UUID;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.os.Binder;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.util.Log;
+import android.view.KeyEvent;
+
+import com.redbear.chat.protocol.Messages;
+import com.redbear.chat.protocol.StateDiff;
 
 /**
- * Service for managing connection and data communication with a GATT server
- * hosted on a given Bluetooth LE device.
+ * Service for managing connections and data communication with the GATT
+ * servers hosted on one or more Bluetooth LE remotes.
  */
-public class RBLService extends Service {
+public class RBLService extends Service implements RemoteConnection.Host {
+	public final static String ACTION_BITMAPS = "ACTION_BITMAPS";
+	public final static String ACTION_CAPTURE = "ACTION_CAPTURE";
 	public final static String ACTION_CHOOSE_DEVICE = "ACTION_CHOOSE_DEVICE";
     public final static String ACTION_CONNECTED = "ACTION_CONNECTED";
 	public final static String ACTION_CONNECTING = "ACTION_CONNECTING";
@@ -56,10 +56,23 @@ public class RBLService extends Service {
     public final static String ACTION_READY = "ACTION_READY";
     public final static String ACTION_RSSI = "ACTION_RSSI";
     public final static String ACTION_RX = "ACTION_RX";
+    public final static String ACTION_TRACE = "ACTION_TRACE";
+    public final static String ACTION_TRACE_DUMP = "ACTION_TRACE_DUMP";
     public final static String ACTION_UNSUPPORTED = "ACTION_UNSUPPORTED";
 
     public final static String EXTRA_RX = "EXTRA_RX";
     public final static String EXTRA_DEVICE_ADDRESS = "EXTRA_DEVICE_ADDRESS";
+    public final static String EXTRA_DEVICE_NAME = "EXTRA_DEVICE_NAME";
+    public final static String EXTRA_ENABLED = "EXTRA_ENABLED";
+    public final static String EXTRA_LEVEL = "EXTRA_LEVEL";
+    public final static String EXTRA_START_REASON = "EXTRA_START_REASON";
+    public final static String EXTRA_START_TIME = "EXTRA_START_TIME";
+
+    /* Why the service was started, for EXTRA_START_REASON. */
+    public final static int START_APP = 0;
+    public final static int START_BOOT = 1;
+    public final static int START_BLUETOOTH_ON = 2;
+    public final static int START_RESTART = 3;
 
     public final static UUID UUID_BLE_SHIELD_TX = UUID
             .fromString(RBLGattAttributes.BLE_SHIELD_TX);
@@ -68,9 +81,12 @@ public class RBLService extends Service {
     public final static UUID UUID_BLE_SHIELD_SERVICE = UUID
             .fromString(RBLGattAttributes.BLE_SHIELD_SERVICE);
     public final static byte VOLUME_DELTA = 1;
+    /* Tracks a double tap on next or previous skips. */
+    final static int PLAYLIST_SKIP = 5;
 
     final static String TAG = RBLService.class.getSimpleName();
 
+    final static String SPOTIFY_PACKAGE = "com.spotify.music";
     final static String SERVICECMD = "com.spotify.mobile.android.ui.widget.";
     final static String CMDNEXT = "NEXT";
     final static String CMDPREV = "PREVIOUS";
@@ -81,126 +97,266 @@ public class RBLService extends Service {
         "com.spotify.music.playbackstatechanged";
     final static String QUEUE_CHANGED =
         "com.spotify.music.queuechanged";
+    final static String SPOTIFY_METADATA_CHANGED =
+        "com.spotify.music.metadatachanged";
 
     BluetoothManager mBluetoothManager;
     BluetoothAdapter mBluetoothAdapter;
-    BluetoothGatt mBluetoothGatt;
-    BluetoothGattCharacteristic mTX;
-    BluetoothGattCharacteristic mRX;
-    String mBluetoothDeviceAddress;
+
+    /* Every remote we've been asked to talk to, connected or not. */
+    final ConnectionPool mPool = new ConnectionPool();
+    DeviceRegistry mRegistry;
+
+    /* All of the service's delayed work runs here. */
+    final Scheduler mScheduler = HandlerScheduler.main();
+
+    /* Button-to-action timings, per command. */
+    final InputLatency mLatency = new InputLatency();
+
+    /* Off unless someone sends ACTION_CAPTURE. */
+    final TrafficCapture mCapture = new TrafficCapture();
 
     AudioManager mAudioManager;
 
-	boolean mConnected = false;
-    boolean mPlaying = false;
-    boolean mOnline = true;
-    byte mVolume = 127;
-    String mArtist = "Artist";
-    String mTrack = "Track";
-    String mSource = "Source";
+    /* What's playing. Receivers and GATT threads replace it whole;
+     * see MediaState. */
+    final AtomicReference<MediaState> mState =
+        new AtomicReference<MediaState>(MediaState.INITIAL);
 	double reconnectInterval = 1.0d;
 
-    TimerTask mPostConnectTask = new TimerTask() {
-        public void run () {
-            sendState();
+    /* What every remote has been sent so far, so that repeated
+     * notifications for the same song don't go out again. Guarded by
+     * itself, along with the version it was last synced to. */
+    final StateDiff mDiff = new StateDiff();
+    long mSyncedVersion = -1;
+    final StateDiff.Sink mBroadcastSink = new StateDiff.Sink() {
+        public void send(int type, byte[] message) {
+            mPool.broadcast(type, message);
         }
     };
 
-	// TimerTask mReconnectTask = new TimerTask() {
-	// 	public void run () {
-	// 		connectToDevice();
-	// 	}
-	// };
+    /* Playback position, for the remotes' progress bars. */
+    final PositionStreamer mPositions =
+        new PositionStreamer(mScheduler, mBroadcastSink);
+
+    /* The play queue, a page at a time for remotes that browse it. */
+    final QueuePager mQueue = new QueuePager(new MediaSessionQueue(this));
+
+    /* Cover art, from Spotify's notification. */
+    final ArtStreamer mArt = new ArtStreamer(mPool);
+    ArtLoader mArtLoader;
+
+    /* Once remotes have connected and settled, send them the full
+     * state. Re-armed by each connection, so that remotes connecting
+     * together get a single send. */
+    static final long POST_CONNECT_DELAY = 500;
+    static final long POST_CONNECT_SLACK = 250;
+
+    final Scheduler.Task mPostConnectTask = mScheduler.task(new Runnable() {
+        public void run() {
+            sendState();
+        }
+    });
+
+    /* Keep the wake lock through short disconnections, but not
+     * forever. */
+    static final long WAKE_LOCK_TIMEOUT = 15 * 60 * 1000;
 
-    Timer mTimer = new Timer();
+    final Scheduler.Task mReleaseWakeLockTask = mScheduler.task(new Runnable() {
+        public void run() {
+            if (!mPool.anyReady() && mWakeLock != null &&
+                mWakeLock.isHeld()) {
+                mWakeLock.release();
+            }
+        }
+    });
+
+    /* Things that can wait until we've started connecting. */
+    final Scheduler.Task mDeferredInitTask = mScheduler.task(new Runnable() {
+        public void run() {
+            deferredInit();
+        }
+    });
+    boolean mReceiverRegistered = false;
+
+    /* When and why we were last asked to start connecting, by the
+     * elapsedRealtime() clock, or -1 once a remote has connected.
+     * mTimeToConnected is how long the last start took, or -1. */
+    long mStartTime = -1;
+    int mStartReason = START_APP;
+    long mTimeToConnected = -1;
 
     /* Turns out we need to keep the device awake while we're
      * connected, or it'll go to sleep and we lose our connection. */
     PowerManager mPowerManager;
     WakeLock mWakeLock;
 
-    final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt,
-                                            int status,
-                                            int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.i(TAG, "Connected to GATT server.");
-                Log.i(TAG, "Discovering services.");
-                if (!mBluetoothGatt.discoverServices()) {
-                    Log.e(TAG, "Service discovery failed to start.");
-                }
-				broadcastUpdate(ACTION_CONNECTING);
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-				mConnected = false;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(ACTION_DISCONNECTED);
-
-				//TODO: set a timer to release the wake lock after a
-				//reasonable timeout. Something like 15 minutes. If we
-				//release it too soon, we may get put to sleep even
-				//for a momentary disconnection. For now just don't
-				//release it, it'll get released when the user kills
-				//the app.
-            }
+    /* Called by each RemoteConnection as it moves through the
+     * handshake. These arrive on binder threads. */
+
+    public void onRemoteConnecting(RemoteConnection connection) {
+        broadcastUpdate(ACTION_CONNECTING, connection.mAddress);
+    }
+
+    public void onRemoteReady(RemoteConnection connection) {
+        // Announce to the system that we're connected now.
+        broadcastUpdate(ACTION_CONNECTED, connection.mAddress);
+        noteConnected();
+        mRegistry.setLastConnected(connection.mAddress,
+                                   System.currentTimeMillis());
+
+        // stash current volume level so it doesn't jump
+        MediaState state = setVolume(fromVolumeIndex(mAudioManager
+                                     .getStreamVolume(AudioManager
+                                                      .STREAM_MUSIC)));
+        connection.send(Messages.VOLUME, Messages.volume(state.volume));
+        connection.startSampling(mScheduler);
+        mPostConnectTask.schedule(POST_CONNECT_DELAY, POST_CONNECT_SLACK);
+
+        // Acquire wake lock so that we remain powered on, now
+        // that we have a bluetooth connection.
+        mReleaseWakeLockTask.cancel();
+        if (!mWakeLock.isHeld()) {
+            mWakeLock.acquire();
         }
+    }
 
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_RSSI, rssi);
-            } else {
-                Log.w(TAG, "onReadRemoteRssi received: " + status);
-            }
-        };
+    /**
+     * Record how long it took from being started to the first remote
+     * being ready.
+     */
+    void noteConnected() {
+        long start;
+        int reason;
+        synchronized (this) {
+            start = mStartTime;
+            reason = mStartReason;
+            mStartTime = -1;
+        }
+        if (start < 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mTimeToConnected = now - start;
+        Trace.event(Trace.STARTED, reason, (int) mTimeToConnected);
+        Log.i(TAG, "Connected " + mTimeToConnected + " ms after start (" +
+              reason + "), " + now + " ms after boot");
+    }
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            BluetoothGattService service = getSupportedGattService();
-			Log.i(TAG, "onServicesDiscovered");
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-				Log.i(TAG, "Success");
-                mTX = service.getCharacteristic(UUID_BLE_SHIELD_TX);
-                mRX = service.getCharacteristic(UUID_BLE_SHIELD_RX);
-                setCharacteristicNotification(mRX, true);
-				// XXX: need to figure out why this failed...
-                //mTimer.schedule(mPostConnectTask, 1000);
-
-                // Announce to the system that we're connected now.
-                broadcastUpdate(ACTION_CONNECTED);
-
-                // stash current volume level so it doesn't jump
-                mVolume = fromVolumeIndex(mAudioManager
-                                          .getStreamVolume(AudioManager
-                                                           .STREAM_MUSIC));
-
-                // Acquire wake lock so that we remain powered on, now
-                // that we have a bluetooth connection.
-                if (!mWakeLock.isHeld()) {
-					mWakeLock.acquire();
-				}
+    public void onRemoteDisconnected(RemoteConnection connection) {
+        broadcastUpdate(ACTION_DISCONNECTED, connection.mAddress);
+        // It asks again, from where it got to, when it's back.
+        mArt.forget(connection);
+
+        // If we release the wake lock too soon, we may get put to
+        // sleep for a momentary disconnection, so give the remotes
+        // a while to come back first.
+        if (!mPool.anyReady()) {
+            mReleaseWakeLockTask.schedule(WAKE_LOCK_TIMEOUT,
+                                          WAKE_LOCK_TIMEOUT / 10);
+        }
+    }
 
-				mConnected = true;
-            } else {
-                Log.e(TAG, "onServicesDiscovered received: " + status);
-            }
+    public void onRemoteRssi(RemoteConnection connection, int rssi) {
+        mRegistry.setRssi(connection.mAddress, rssi);
+        broadcastUpdate(ACTION_RSSI, rssi);
+    }
+
+    public void onRemoteInput(RemoteConnection connection, byte[] rx) {
+        broadcastUpdate(ACTION_RX, rx);
+    }
+
+    public void onRemoteCommand(RemoteConnection connection, int command,
+                                byte[] args, int length) {
+        long start = connection.mInputTime;
+        Trace.event(Trace.COMMAND, command, length);
+        if (command == 'g') {
+            int index = ((args[0] & 0xFF) << 8) | (args[1] & 0xFF);
+            connection.send(Messages.QUEUE, mQueue.page(index, args[2] & 0xFF));
+            return;
         }
+        if (command == 'r') {
+            int hash = ((args[0] & 0xFF) << 24) | ((args[1] & 0xFF) << 16) |
+                       ((args[2] & 0xFF) << 8) | (args[3] & 0xFF);
+            mArt.request(connection, hash, ((args[4] & 0xFF) << 8) | (args[5] & 0xFF));
+            return;
+        }
+        mLatency.expectEcho(connection, command, start);
+        handleCommand((char) command, start);
+        mLatency.record(command, InputLatency.DISPATCH, start);
+    }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                BluetoothGattCharacteristic characteristic, int status) {
+    /**
+     * Gestures for one remote: volume repeats while held, holding
+     * next or previous seeks, and double tapping them skips further.
+     */
+    GestureRecognizer gestureRecognizer(final RemoteConnection connection) {
+        GestureRecognizer gestures = new GestureRecognizer(
+            mScheduler, new GestureRecognizer.Listener() {
+                public void onGesture(int button, int gesture, long start) {
+                    handleGesture(connection, (char) button, gesture, start);
+                }
+            });
+        gestures.setMode('v', GestureRecognizer.MODE_REPEAT);
+        gestures.setMode('V', GestureRecognizer.MODE_REPEAT);
+        gestures.setMode('N', GestureRecognizer.MODE_HOLD);
+        gestures.setMode('P', GestureRecognizer.MODE_HOLD);
+        gestures.setDoubleTap('N', true);
+        gestures.setDoubleTap('P', true);
+        return gestures;
+    }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_RX, characteristic);
+    void handleGesture(RemoteConnection connection, char button, int gesture,
+                       long start) {
+        Trace.event(Trace.GESTURE, button, gesture);
+        switch (gesture) {
+        case GestureRecognizer.HOLD:
+            // The press has already skipped a track, so this seeks
+            // through the one it skipped to.
+            if (button == 'N' || button == 'P') {
+                seek(button == 'N');
             }
+            break;
+        case GestureRecognizer.DOUBLE_TAP:
+            if (button == 'N' || button == 'P') {
+                // The first tap skipped one; skip the rest of the way.
+                mLatency.expectEcho(connection, button, start);
+                for (int i = 1; i < PLAYLIST_SKIP; i++) {
+                    handleCommand(button, start);
+                }
+                mLatency.record(button, InputLatency.DISPATCH, start);
+                break;
+            }
+            // Otherwise it's just another tap.
+        default:
+            mLatency.expectEcho(connection, button, start);
+            handleCommand(button, start);
+            mLatency.record(button, InputLatency.DISPATCH, start);
         }
+    }
 
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                BluetoothGattCharacteristic characteristic) {
-            broadcastUpdate(ACTION_RX, characteristic);
-        }
-    };
+    /**
+     * Skip a little way through the track, the way a headset's fast
+     * forward and rewind buttons do.
+     */
+    void seek(boolean forward) {
+        int code = forward ? KeyEvent.KEYCODE_MEDIA_FAST_FORWARD
+                           : KeyEvent.KEYCODE_MEDIA_REWIND;
+        sendMediaKey(new KeyEvent(KeyEvent.ACTION_DOWN, code));
+        sendMediaKey(new KeyEvent(KeyEvent.ACTION_UP, code));
+    }
+
+    void sendMediaKey(KeyEvent event) {
+        Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        intent.setPackage(SPOTIFY_PACKAGE);
+        intent.putExtra(Intent.EXTRA_KEY_EVENT, event);
+        sendBroadcast(intent);
+    }
+
+    public void onRemoteSent(RemoteConnection connection, int type) {
+        mLatency.onSent(connection, type);
+        mArt.onSent(connection, type);
+    }
 
     void handleNotificationAction(Intent intent) {
         String tickerText = intent.getStringExtra("tickerText");
@@ -209,21 +365,13 @@ public class RBLService extends Service {
         // most song titles contain dashes instead. If they change
         // their format, this will break.
         String [] split = tickerText.split(" \\u2014 ", 2);
-        int i;
-        Log.i(TAG, "String contains \u2014: " + tickerText.contains("\u2014"));
-        Log.i(TAG, "TickerText: " + tickerText + "(" + split.length + ")");
+        Trace.event(Trace.TICKER, tickerText.length(), split.length);
+        if (Trace.on(Trace.VERBOSE)) {
+            Log.i(TAG, "TickerText: " + tickerText + "(" + split.length + ")");
+        }
         if (split.length == 2) {
-            mTrack = split[0].substring(0, Math.min(split[0].length(), 24));
-            mArtist = split[1].substring(0, Math.min(split[1].length(), 24));
-                    
-            Log.i(TAG, "Track: " + mTrack);
-            Log.i(TAG, "Artist: "  + mArtist);
-            sendArtist();
-            sendTrack();
-        } else {
-            for (String s : split) {
-                Log.i(TAG, "Field: " + ((s == null) ? "null" : s));
-            }
+            setSong(Messages.truncate(split[1]), Messages.truncate(split[0]));
+            syncState();
         }
     }
 
@@ -231,126 +379,230 @@ public class RBLService extends Service {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            Log.i(TAG, "Got intent: " + action);
+            if (Trace.on(Trace.VERBOSE)) {
+                Log.i(TAG, "Got intent: " + action);
+            }
             if (action.equals(NLService.ACTION_SONG_CHANGED)) {
                 handleNotificationAction(intent);
 			} else if (action.equals(ACTION_CHOOSE_DEVICE)) {
 				chooseDevice(intent);
             } else if (action.equals(ACTION_FORGET)) {
-                forgetDevice();
+                forgetDevice(intent);
+            } else if (action.equals(ACTION_BITMAPS)) {
+                setBitmaps(intent.getBooleanExtra(EXTRA_ENABLED, false));
+            } else if (action.equals(ACTION_CAPTURE)) {
+                setCapturing(intent.getBooleanExtra(EXTRA_ENABLED, false));
+            } else if (action.equals(ACTION_TRACE)) {
+                Trace.setLevel(intent.getIntExtra(EXTRA_LEVEL, Trace.OFF));
+            } else if (action.equals(ACTION_TRACE_DUMP)) {
+                dumpTrace();
+            } else if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                // Our links won't survive the adapter going away.
+                // BootReceiver starts us again when it comes back.
+                if (intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, -1) ==
+                    BluetoothAdapter.STATE_TURNING_OFF) {
+                    close();
+                }
             } else if (action.equals(PLAYSTATE_CHANGED)) {
-                mPlaying = intent.getBooleanExtra("playing", false);
-                sendPlaying();
+                boolean playing = intent.getBooleanExtra("playing", false);
+                setPlaying(playing);
+                syncState();
+                handlePosition(intent, playing);
+            } else if (action.equals(SPOTIFY_METADATA_CHANGED)) {
+                int length = intent.getIntExtra("length", -1);
+                if (length >= 0) {
+                    mPositions.setTrack(length);
+                    handlePosition(intent, mState.get().playing);
+                }
+                // Moving on a track takes one off the queue.
+                queueChanged();
+            } else if (action.equals(QUEUE_CHANGED)) {
+                queueChanged();
             }
         }
     };
 
+    /**
+     * Spotify says where it was when it sent the broadcast, so allow
+     * for the time the broadcast took to get here.
+     */
+    void handlePosition(Intent intent, boolean playing) {
+        int position = intent.getIntExtra("playbackPosition", -1);
+        if (position < 0) {
+            return;
+        }
+        long sent = intent.getLongExtra("timeSent", 0);
+        long late = sent > 0 ? System.currentTimeMillis() - sent : 0;
+        if (playing && late > 0 && late < 5000) {
+            position += late;
+        }
+        mPositions.setPosition(position, playing);
+    }
+
+    /**
+     * Let remotes know if the part of the queue they may be showing
+     * has changed.
+     */
+    void queueChanged() {
+        int first = mQueue.invalidate();
+        if (first >= 0) {
+            mPool.broadcast(Messages.QUEUE,
+                            Messages.queueChanged(first, mQueue.size()));
+        }
+    }
+
     void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         sendBroadcast(intent);
     }
 
+    void broadcastUpdate(final String action, final String address) {
+        final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
+        sendBroadcast(intent);
+    }
+
     void broadcastUpdate(final String action, int rssi) {
         final Intent intent = new Intent(action);
         intent.putExtra(EXTRA_RX, String.valueOf(rssi));
         sendBroadcast(intent);
     }
 
-    void broadcastUpdate(final String action,
-                         final BluetoothGattCharacteristic characteristic) {
+    void broadcastUpdate(final String action, final byte[] rx) {
         final Intent intent = new Intent(action);
-        if (UUID_BLE_SHIELD_RX.equals(characteristic.getUuid())) {
-            final byte[] rx = characteristic.getValue();
-            for (byte b : rx) {
-                handleBtByte(b);
-            }
-            intent.putExtra(EXTRA_RX, rx);
-        }
+        intent.putExtra(EXTRA_RX, rx);
 
         sendBroadcast(intent);
     }
 
-    char toHex(int b) {
-        // TODO: replace this crap with String.format()
-        switch (b) {    
-        case  0: return '0';
-        case  1: return '1';
-        case  2: return '2';
-        case  3: return '3';
-        case  4: return '4';
-        case  5: return '5';
-        case  6: return '6';
-        case  7: return '7';
-        case  8: return '8';
-        case  9: return '9';
-        case 10: return 'a';
-        case 11: return 'b';
-        case 12: return 'c';
-        case 13: return 'd';
-        case 14: return 'e';
-        case 15: return 'f';
+    /**
+     * Send every remote whatever has changed since the last sync.
+     */
+    void syncState() {
+        synchronized (mDiff) {
+            // Read under the lock, so that a sync that loses the race
+            // can't send an older state after a newer one.
+            MediaState state = mState.get();
+            if (state.version == mSyncedVersion) {
+                return;
+            }
+            mSyncedVersion = state.version;
+            int sent = mDiff.update(state.volume, state.playing, state.online,
+                                    state.artist, state.track, mBroadcastSink);
+            Trace.event(Trace.SYNC, sent, 0);
         }
-        return '*';
     }
 
-    void sendVolume() {
-        byte volume = (byte) Math.min(255, mVolume * 2);
-        String s = ("v" +
-                    String.valueOf(toHex((volume >> 4) & 0xF)) +
-                    String.valueOf(toHex(volume & 0xF)));
-        Log.i(TAG, s);
-        sendString(s);
+    /**
+     * Send every remote the full state, changed or not.
+     */
+    void sendState() {
+        Log.i(TAG, "Send state");
+        synchronized (mDiff) {
+            mDiff.reset();
+            mSyncedVersion = -1;
+        }
+        syncState();
+        // A new p for everyone, since a remote that's just connected
+        // can't use corrections to the last one.
+        mPositions.resync();
+        mArt.resync();
     }
 
-    void sendPlaying() {
-        sendString(mPlaying ? "X" : "x");
+    /**
+     * Send artist and track to the remotes pre-rendered in their font,
+     * or as text, and resend them now.
+     */
+    void setBitmaps(boolean bitmaps) {
+        Log.i(TAG, (bitmaps ? "Sending" : "Not sending") + " text as bitmaps");
+        synchronized (mDiff) {
+            mDiff.setBitmaps(bitmaps);
+        }
+        sendState();
     }
 
-    void sendNetwork() {
-        sendString(mOnline ? "O" : "o");
+    /* Each of these publishes a new MediaState built from the current
+     * one, retrying if another thread got there first, and returns
+     * whatever ended up current. */
+
+    MediaState setVolume(int volume) {
+        while (true) {
+            MediaState old = mState.get();
+            MediaState state = old.withVolume(volume);
+            if (state == old || mState.compareAndSet(old, state)) {
+                return state;
+            }
+        }
     }
 
-    void sendArtist() {
-        sendString("a" + mArtist + "\n");
+    MediaState stepVolume(int delta) {
+        while (true) {
+            MediaState old = mState.get();
+            MediaState state = old.withVolume(old.volume + delta);
+            if (state == old || mState.compareAndSet(old, state)) {
+                return state;
+            }
+        }
     }
 
-    void sendTrack() {
-        sendString("t" + mTrack + "\n");
+    MediaState setPlaying(boolean playing) {
+        while (true) {
+            MediaState old = mState.get();
+            MediaState state = old.withPlaying(playing);
+            if (state == old || mState.compareAndSet(old, state)) {
+                return state;
+            }
+        }
     }
 
-    void sendState() {
-        Log.i(TAG, "Send state");
-        sendVolume();
-        sendPlaying();
-        sendArtist();
-        sendTrack();
+    MediaState toggleOnline() {
+        while (true) {
+            MediaState old = mState.get();
+            MediaState state = old.withOnline(!old.online);
+            if (mState.compareAndSet(old, state)) {
+                return state;
+            }
+        }
     }
 
-    void handleBtByte(byte b) {
-        char c = (char) b;
-        int volume;
+    MediaState setSong(String artist, String track) {
+        while (true) {
+            MediaState old = mState.get();
+            MediaState state = old.withSong(artist, track);
+            if (state == old || mState.compareAndSet(old, state)) {
+                return state;
+            }
+        }
+    }
 
+    /**
+     * Act on a command from a remote. start is when its notification
+     * arrived, for mLatency.
+     */
+    void handleCommand(char c, long start) {
         switch (c) {
           case 'o':
-                mOnline = !mOnline;
-                sendNetwork();
+                toggleOnline();
+                mLatency.record(c, InputLatency.ACTION, start);
+                syncState();
                 break;
             case 'x':
                 sendBroadcast(new Intent(SERVICECMD + CMDTOGGLE));
+                mLatency.record(c, InputLatency.ACTION, start);
                 break;
             case 'P':
                 sendBroadcast(new Intent(SERVICECMD + CMDPREV));
+                mLatency.record(c, InputLatency.ACTION, start);
                 break;
             case 'N':
                 sendBroadcast(new Intent(SERVICECMD + CMDNEXT));
+                mLatency.record(c, InputLatency.ACTION, start);
                 break;
             case 'v':
-                adjustVolume(false);
-                sendVolume();
+                volumeCommand(c, false, start);
                 break;
             case 'V':
-                adjustVolume(true);
-                sendVolume();
+                volumeCommand(c, true, start);
                 break;
                  
         };
@@ -368,59 +620,82 @@ public class RBLService extends Service {
         return ((int) ((((float) volume) / 127.0d) * ((double) maxVolume)));
     }
 
-    void adjustVolume(boolean up)
+    void volumeCommand(char c, boolean up, long start) {
+        int volume = adjustVolume(up);
+        mLatency.record(c, InputLatency.ACTION, start);
+        if (volume == (up ? 127 : 0)) {
+            // Pressing past the end doesn't change the state, so
+            // syncState() won't send anything, but the remote still
+            // wants to hear the volume back. If this press is the one
+            // that reached the end, the second send usually replaces
+            // the first in the outbox.
+            mPool.broadcast(Messages.VOLUME, Messages.volume(volume));
+        }
+        syncState();
+    }
+
+    int adjustVolume(boolean up)
     {
-        int volume = Math.min(
-            127,
-            Math.max(
-                0,
-                ((int) mVolume) + (up ? VOLUME_DELTA : -VOLUME_DELTA)));
-        mVolume = (byte) volume;
-        int target_volume = toVolumeIndex(mVolume);
-        Log.i(TAG, "Internal Volume: " + mVolume);
-        Log.i(TAG, "New Volume: " + volume);
-        Log.i(TAG, "Target Volume: " + target_volume);
+        int volume = stepVolume(up ? VOLUME_DELTA : -VOLUME_DELTA).volume;
+        int target_volume = toVolumeIndex((byte) volume);
+        Trace.event(Trace.VOLUME, volume, target_volume);
 		mAudioManager.setStreamVolume(AudioManager.STREAM_MUSIC,
 									  target_volume,
 									  AudioManager.FLAG_VIBRATE |
 									  AudioManager.FLAG_PLAY_SOUND);
+		return volume;
 	}
 
-	void sendBytes(byte[] bytes) {
-		Log.i(TAG, "sendBytes: " + bytes.length);
-
-		if (!mConnected) {
-			Log.i(TAG, "Not connected. Returning");
-			return;
+	/**
+	 * Queue the full current state on a single remote, so that it
+	 * starts out in sync.
+	 */
+	void queueState(RemoteConnection connection) {
+		MediaState state = mState.get();
+		boolean bitmaps;
+		synchronized (mDiff) {
+			bitmaps = mDiff.bitmaps();
 		}
+		connection.send(Messages.VOLUME, Messages.volume(state.volume));
+		connection.send(Messages.PLAYING, Messages.playing(state.playing));
+		connection.send(Messages.ARTIST, Messages.artist(state.artist, bitmaps));
+		connection.send(Messages.TRACK, Messages.track(state.track, bitmaps));
+	}
 
-		int bytesRead = 0;
-
-		while (bytesRead < (bytes.length - 20)) {
-			Log.d(TAG, "Sending 20 bytes: " + bytesRead + ", " + (bytesRead + 20));
-			byte[] tx = Arrays.copyOfRange(bytes, bytesRead, bytesRead + 20);
-			mTX.setValue(tx);
-			writeCharacteristic(mTX);
-			bytesRead += 20;
+	/**
+	 * For activities in this app that want to read the service's
+	 * statistics directly.
+	 */
+	class LocalBinder extends Binder {
+		RBLService getService() {
+			return RBLService.this;
 		}
+	}
 
-		if (bytesRead < bytes.length) {
-			Log.d(TAG, "Sending " + (bytes.length - bytesRead) + "bytes.");
-			byte[] tx = Arrays.copyOfRange(bytes, bytesRead, bytes.length);					
-			mTX.setValue(tx);
-			writeCharacteristic(mTX);
-		}
+	final IBinder mBinder = new LocalBinder();
 
-		Log.i(TAG, "No more bytes.");
+	@Override
+	public IBinder onBind(Intent intent) {
+		return mBinder;
 	}
 
-	void sendString(String str) {
-		sendBytes(str.getBytes());
+	/**
+	 * Button-to-action latencies since the service started or was
+	 * last reset.
+	 */
+	InputLatency latency() {
+		return mLatency;
 	}
 
-	@Override
-	public IBinder onBind(Intent intent) {
-		return null;
+	void resetLatency() {
+		mLatency.reset();
+	}
+
+	/**
+	 * Every remote in the pool; each has its own LinkStats.
+	 */
+	RemoteConnection[] connections() {
+		return mPool.all();
 	}
 	
 	@Override
@@ -439,8 +714,6 @@ public class RBLService extends Service {
 			}
 		}
 
-		mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-
 		mBluetoothAdapter = mBluetoothManager.getAdapter();
 		if (mBluetoothAdapter == null) {
 			Log.e(TAG, "Unable to get BluetoothAdapter.");
@@ -448,72 +721,141 @@ public class RBLService extends Service {
 			return;
 		}
 
+		// Only what we need to connect comes before connecting; it's
+		// the first thing that happens when the car comes on.
+		synchronized (this) {
+			mStartTime = SystemClock.elapsedRealtime();
+			mStartReason = START_RESTART;
+		}
+		mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+		mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+		mRegistry = DeviceRegistry.load(this);
+
+		connectToDevices();
+		mDeferredInitTask.schedule(0);
+	}
+
+	/**
+	 * The rest of onCreate(), run once we've started connecting.
+	 */
+	void deferredInit() {
+		mArtLoader = new ArtLoader(mArt);
 		// We should always be ready to respond to these actions.
 		IntentFilter filter = new IntentFilter();
 		filter.addAction(RBLService.ACTION_CHOOSE_DEVICE);
 		filter.addAction(RBLService.ACTION_FORGET);		
+		filter.addAction(RBLService.ACTION_BITMAPS);
+		filter.addAction(RBLService.ACTION_CAPTURE);
+		filter.addAction(RBLService.ACTION_TRACE);
+		filter.addAction(RBLService.ACTION_TRACE_DUMP);
 		filter.addAction(NLService.ACTION_NOTIFICATION_POSTED);
 		filter.addAction(NLService.ACTION_SONG_CHANGED);
 		filter.addAction(PLAYSTATE_CHANGED);
+		filter.addAction(SPOTIFY_METADATA_CHANGED);
+		filter.addAction(QUEUE_CHANGED);
+		filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
 
-		// We start disconnected.
 		registerReceiver(mReceiver, filter);
+		mReceiverRegistered = true;
 
 		sendBroadcast(new Intent(ACTION_READY));
 		sendBroadcast(new Intent(NLService.ACTION_GET_NOTIFICATIONS));
+	}
 
-		// Initialize PM and Wake Lock
-		mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
-		mWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
-
-		connectToDevice();
+	/**
+	 * Called for every startService(), whether from Main or from
+	 * BootReceiver. We're sticky, so that closing the UI or running
+	 * low on memory doesn't leave the remotes without a service.
+	 */
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		if (intent != null && !mPool.anyReady()) {
+			synchronized (this) {
+				mStartReason = intent.getIntExtra(EXTRA_START_REASON,
+												  START_APP);
+				mStartTime = intent.getLongExtra(EXTRA_START_TIME,
+												 SystemClock.elapsedRealtime());
+			}
+		}
+		if (mRegistry != null) {
+			connectToDevices();
+		}
+		return START_STICKY;
 	}
 
 	public void onDestroy() {
 		super.onDestroy();
+		mDeferredInitTask.cancel();
+		if (mReceiverRegistered) {
+			unregisterReceiver(mReceiver);
+			mReceiverRegistered = false;
+		}
+		mPostConnectTask.cancel();
+		mReleaseWakeLockTask.cancel();
 		close();
+		mCapture.stop();
+		if (mRegistry != null) {
+			mRegistry.close();
+		}
+		if (mArtLoader != null) {
+			mArtLoader.close();
+		}
 	}
 
 	/**
-	 * Saves the BLE Address into preferences, then connects to the device.
+	 * Adds the BLE Address to the saved devices, then connects to it.
+	 * Remotes that are already connected stay connected.
 	 * 
 	 * @param Intent
 	 *
 	 */
 	void chooseDevice(Intent i) {
 		String address = i.getStringExtra(EXTRA_DEVICE_ADDRESS);
-		SharedPreferences prefs = getSharedPreferences(
-			"default",
-			MODE_WORLD_READABLE |
-			MODE_WORLD_WRITEABLE);
 		Log.i(TAG, "chooseDevice: " + address);
 
-		// GOD DAMN IT ANDROID, WHY IS THIS SO FUCKING COMPLICATED?!
-		// IT'S JUST A FUCKING KEY-VALUE STORE. YOU SUCK!
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putString("device", address);
-		editor.commit();
+		if (address == null) {
+			return;
+		}
+
+		mRegistry.add(address);
+		mRegistry.setName(address, i.getStringExtra(EXTRA_DEVICE_NAME));
+		connectToDevice(address);
+	}
+
+	/**
+	 * Disconnect from a device and remove it from the saved
+	 * devices. If the intent doesn't name a device, forget them all.
+	 */
+	void forgetDevice(Intent i) {
+		String address = i.getStringExtra(EXTRA_DEVICE_ADDRESS);
+		Log.i(TAG, "forgetDevice: " + address);
 
-		connectToDevice();
+		if (address != null) {
+			mRegistry.remove(address);
+			disconnect(address);
+		} else {
+			for (String d : mRegistry.addresses()) {
+				disconnect(d);
+			}
+			mRegistry.clear();
+		}
 	}
 
 	/**
-	 * Disconnect from a device and clear the device preference.
+	 * Starts connecting to every saved device.
 	 */
-	void forgetDevice() {
-		Log.i(TAG, "forgetDevice");
-		SharedPreferences prefs = getSharedPreferences(
-			"default",
-			MODE_WORLD_READABLE |
-			MODE_WORLD_WRITEABLE);
-
-		// GOD DAMN IT ANDROID, WHY IS THIS SO FUCKING COMPLICATED?!
-		// IT'S JUST A FUCKING KEY-VALUE STORE. YOU SUCK!
-		SharedPreferences.Editor editor = prefs.edit();
-		editor.putString("device", null);
-		editor.commit();
-
-		disconnect();
+	void connectToDevices() {
+		Log.i(TAG, "connectToDevices");
+
+		if (mRegistry.isEmpty()) {
+			Log.i(TAG, "No device ID saved.");
+			return;
+		}
+
+		for (String address : mRegistry.addresses()) {
+			connectToDevice(address);
+		}
 	}
 
 	/**
@@ -524,21 +866,8 @@ public class RBLService extends Service {
 	 * 
 	 * @return Return true if the connection is initiated successfully.
 	 */
-	boolean connectToDevice() {
-		Log.i(TAG, "connectToDevice");
-
-		SharedPreferences prefs = getSharedPreferences(
-			"default",
-			MODE_WORLD_READABLE |
-			MODE_WORLD_WRITEABLE);
-		String address = prefs.getString("device", null);
-
-		if (address != null) {
-			Log.i(TAG, "Device: " + address);
-		} else {
-			Log.i(TAG, "No device ID saved.");
-			return false;
-		}
+	boolean connectToDevice(String address) {
+		Log.i(TAG, "Device: " + address);
 
 		if (mBluetoothAdapter == null) {
 			Log.e(TAG, "BluetoothAdapter not initialized.");
@@ -546,135 +875,103 @@ public class RBLService extends Service {
 		}
 
 		// Previously connected device. Try to reconnect.
-		if (mBluetoothDeviceAddress != null
-			&& address.equals(mBluetoothDeviceAddress)
-			&& mBluetoothGatt != null) {
-			Log.d(TAG,
-				  "Trying to use an existing mBluetoothGatt for connection.");
-			if (mBluetoothGatt.connect()) {
-				return true;
-			} else {
-				return false;
-			}
+		RemoteConnection connection = mPool.get(address);
+		if (connection == null) {
+			connection = new RemoteConnection(
+				this, address,
+				new CapturingLink(
+					new AndroidGattLink(this, mBluetoothAdapter, address),
+					mCapture, address));
+			connection.mCapture = mCapture;
+			connection.mGestures = gestureRecognizer(connection);
+			queueState(connection);
+			mPool.put(connection);
+		} else if (!connection.isDisconnected()) {
+			// Already on its way; onCreate() and onStartCommand()
+			// both land here.
+			return true;
 		}
 
-		final BluetoothDevice device =
-			mBluetoothAdapter
-			.getRemoteDevice(address);
-		
-		if (device == null) {
-			Log.e(TAG, "Device not found.  Unable to connect.");
-			return false;
-		}
-
-		mBluetoothGatt = device.connectGatt(this, true, mGattCallback);
-
-		Log.d(TAG, "Trying to create a new connection.");
-		mBluetoothDeviceAddress = address;
-
-		return true;
+		return connection.connect();
 	}
 
 	/**
-	 * Disconnect an existing connection or cancel a pending
-	 * connection.
+	 * Start or stop recording link traffic to capture.bin in the
+	 * app's external files directory, where it can be pulled with adb
+	 * and fed to CaptureReplayer.
 	 */
-	void disconnect() {
-		Log.i(TAG, "disconnect");
-
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
+	void setCapturing(boolean enabled) {
+		if (!enabled) {
+			Log.i(TAG, "Capture stopped, dropped " + mCapture.dropped());
+			mCapture.stop();
 			return;
 		}
 
-		mBluetoothGatt.disconnect();
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			dir = getFilesDir();
+		}
+		File file = new File(dir, "capture.bin");
+		try {
+			mCapture.start(file);
+			Log.i(TAG, "Capturing to " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to start capture", e);
+		}
 	}
 
 	/**
-	 * After using a given BLE device, the app must call this method to ensure
-	 * resources are released properly.
+	 * Write the trace ring to trace.bin next to capture.bin. Each dump
+	 * replaces the last.
 	 */
-	void close() {
-		if (mBluetoothGatt == null) {
-			return;
+	void dumpTrace() {
+		File dir = getExternalFilesDir(null);
+		if (dir == null) {
+			dir = getFilesDir();
+		}
+		File file = new File(dir, "trace.bin");
+		FileOutputStream out = null;
+		try {
+			out = new FileOutputStream(file);
+			Trace.dump(out);
+			Log.i(TAG, "Trace dumped to " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to dump trace", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
 		}
-		mBluetoothGatt.close();
-		mBluetoothGatt = null;
 	}
 
 	/**
-	 * Request a read on a given {@code BluetoothGattCharacteristic}. The read
-	 * result is reported asynchronously through the
-	 * {@code BluetoothGattCallback#onCharacteristicRead(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
-	 * callback.
-	 * 
-	 * @param characteristic
-	 *            The characteristic to read from.
+	 * Disconnect an existing connection or cancel a pending
+	 * connection, and drop it from the pool.
 	 */
-	void readCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
+	void disconnect(String address) {
+		Log.i(TAG, "disconnect: " + address);
 
-		mBluetoothGatt.readCharacteristic(characteristic);
-	}
-
-	void readRssi() {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
+		RemoteConnection connection = mPool.remove(address);
+		if (connection == null) {
 			return;
 		}
 
-		mBluetoothGatt.readRemoteRssi();
-	}
-
-	void writeCharacteristic(BluetoothGattCharacteristic characteristic) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-
-		mBluetoothGatt.writeCharacteristic(characteristic);
+		connection.disconnect();
+		connection.close();
+		broadcastUpdate(ACTION_DISCONNECTED, address);
 	}
 
 	/**
-	 * Enables or disables notification on a give characteristic.
-	 * 
-	 * @param characteristic
-	 *            Characteristic to act on.
-	 * @param enabled
-	 *            If true, enable notification. False otherwise.
+	 * After using the remotes, the app must call this method to ensure
+	 * resources are released properly.
 	 */
-	void setCharacteristicNotification(
-		BluetoothGattCharacteristic characteristic, boolean enabled) {
-		if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-			Log.w(TAG, "BluetoothAdapter not initialized");
-			return;
-		}
-		mBluetoothGatt.setCharacteristicNotification(characteristic, enabled);
-
-		if (UUID_BLE_SHIELD_RX.equals(characteristic.getUuid())) {
-			BluetoothGattDescriptor descriptor = characteristic
-					.getDescriptor(UUID
-							.fromString(RBLGattAttributes.CLIENT_CHARACTERISTIC_CONFIG));
-			descriptor
-					.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-			mBluetoothGatt.writeDescriptor(descriptor);
+	void close() {
+		for (RemoteConnection connection : mPool.all()) {
+			mPool.remove(connection.mAddress);
+			connection.close();
 		}
 	}
-
-	/**
-	 * Retrieves a list of supported GATT services on the connected device. This
-	 * should be invoked only after {@code BluetoothGatt#discoverServices()}
-	 * completes successfully.
-	 * 
-	 * @return A {@code List} of supported services.
-	 */
-	BluetoothGattService getSupportedGattService() {
-		if (mBluetoothGatt == null)
-			return null;
-
-		return mBluetoothGatt.getService(UUID_BLE_SHIELD_SERVICE);
-	}
 }
@@ -0,0 +1,511 @@
+package com.redbear.chat;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import com.redbear.chat.protocol.Chunker;
+import com.redbear.chat.protocol.CommandParser;
+import com.redbear.chat.protocol.Messages;
+
+/**
+ * A single remote and everything we need to talk to it: its GATT
+ * link, how far through the handshake it is, and its own queue of
+ * outgoing messages.
+ *
+ * Only one GATT write may be outstanding per connection, so writes
+ * are paced by onWriteComplete: we write one chunk, wait for the
+ * callback, then write the next. Nothing here ever blocks, so a slow
+ * remote only delays itself.
+ *
+ * If the remote has a characteristic per kind of message, each
+ * characteristic is its own stream and they take turns a chunk at a
+ * time, highest priority first within each. A volume change then
+ * waits for at most one chunk on each of the others rather than for
+ * a whole track name, and a stream of volume changes can't shut the
+ * track name out. Over the UART each message has to finish before
+ * the next one starts.
+ *
+ * This class deliberately has no Android dependencies, so that it can
+ * be driven by the simulator on a plain JVM.
+ */
+class RemoteConnection implements GattLink.Callback, CommandParser.Listener {
+	static final int STATE_DISCONNECTED = 0;
+	static final int STATE_CONNECTING = 1;
+	static final int STATE_DISCOVERING = 2;
+	static final int STATE_READY = 3;
+
+	/* How long to wait before trying again when the link won't start
+	 * a write, in ms. */
+	static final long WRITE_RETRY_DELAY = 20;
+
+	/**
+	 * Whoever owns the connection; RBLService in the app.
+	 */
+	interface Host {
+		void onRemoteConnecting(RemoteConnection connection);
+		void onRemoteReady(RemoteConnection connection);
+		void onRemoteDisconnected(RemoteConnection connection);
+		void onRemoteRssi(RemoteConnection connection, int rssi);
+		void onRemoteInput(RemoteConnection connection, byte[] value);
+		void onRemoteCommand(RemoteConnection connection, int command,
+							 byte[] args, int length);
+		/* A message of the given type has been written in full. */
+		void onRemoteSent(RemoteConnection connection, int type);
+	}
+
+	/* Per type, which of the remote profile's characteristics it goes
+	 * to, numbered in priority order, and per characteristic a mask
+	 * of its types for Outbox.poll(). */
+	static final int[] CHANNEL = new int[Messages.NUM_TYPES];
+	static final int NUM_CHANNELS;
+	static final int[] CHANNEL_TYPES;
+
+	static {
+		ArrayList<String> channels = new ArrayList<String>();
+		for (int type = 0; type < Messages.NUM_TYPES; type++) {
+			String characteristic = RBLGattAttributes.characteristicFor(type);
+			if (!channels.contains(characteristic)) {
+				channels.add(characteristic);
+			}
+			CHANNEL[type] = channels.indexOf(characteristic);
+		}
+		NUM_CHANNELS = channels.size();
+		CHANNEL_TYPES = new int[NUM_CHANNELS];
+		for (int type = 0; type < Messages.NUM_TYPES; type++) {
+			CHANNEL_TYPES[CHANNEL[type]] |= 1 << type;
+		}
+	}
+
+	final Host mHost;
+	final String mAddress;
+	final GattLink mLink;
+
+	int mState = STATE_DISCONNECTED;
+
+	/* Messages waiting to go out, newest per type. */
+	final Outbox mOutbox = new Outbox();
+
+	/* Commands can be split across notifications, so each remote
+	 * needs its own parser. */
+	final CommandParser mParser = new CommandParser(this);
+
+	/* Decides chunk size, retries and how often to sample RSSI. */
+	final LinkQuality mQuality = new LinkQuality();
+
+	/* Per type, the message currently being written and how much of
+	 * it has gone out so far. Without channels at most one is set. */
+	final byte[][] mCurrent = new byte[Messages.NUM_TYPES][];
+	final int[] mOffset = new int[Messages.NUM_TYPES];
+	boolean mWriting = false;
+
+	/* The type of the chunk in flight. */
+	int mWritingType;
+
+	/* The characteristic that had the last turn. */
+	int mLastChannel = -1;
+
+	/* Where the chunk in flight starts, and how many times it's been
+	 * retried. */
+	int mChunkStart;
+	int mRetries;
+
+	/* When the chunk in flight was written, and its size. */
+	long mWriteStart;
+	int mWriteBytes;
+
+	/* Messages we gave up on after running out of retries. */
+	long mAbandoned = 0;
+
+	/* What queueDepth() returns, kept up to date under the lock so
+	 * that the diagnostics screen can read it without taking it. */
+	volatile int mQueueDepth = 0;
+
+	/* For the diagnostics screen. */
+	final LinkStats mStats = new LinkStats();
+
+	/* Whether the remote has been used since the last RSSI sample. */
+	boolean mActive = false;
+
+	/* Takes RSSI samples while we're ready; see startSampling(). */
+	Scheduler.Task mSampler;
+
+	/* Pumps again soon after a write that couldn't be started. Set up
+	 * along with mSampler. */
+	Scheduler.Task mRetry;
+
+	/* System.nanoTime() when the last notification arrived, so the
+	 * host can time the commands in it. */
+	long mInputTime;
+
+	/* Set by the host if it wants gestures; press and release events
+	 * go here rather than to onRemoteCommand. */
+	GestureRecognizer mGestures;
+
+	/* Optional; records what we queue so a capture can be replayed. */
+	TrafficCapture mCapture;
+
+	RemoteConnection(Host host, String address, GattLink link) {
+		mHost = host;
+		mAddress = address;
+		mLink = link;
+		mLink.setCallback(this);
+	}
+
+	public void onConnected() {
+		setState(STATE_DISCOVERING);
+		mHost.onRemoteConnecting(this);
+	}
+
+	public void onServices(UUID[] layout) {
+		// The link picks its characteristics from the layout itself.
+	}
+
+	public void onReady() {
+		setState(STATE_READY);
+		mStats.onConnection(true, System.currentTimeMillis());
+		mHost.onRemoteReady(this);
+		pump();
+	}
+
+	public void onDisconnected() {
+		stopSampling();
+		reset();
+		mStats.onConnection(false, System.currentTimeMillis());
+		mHost.onRemoteDisconnected(this);
+	}
+
+	public void onWriteComplete(boolean success) {
+		mQuality.onWrite(success);
+		int sent = -1;
+		synchronized (this) {
+			mStats.onWrite(success, mWriteBytes, System.nanoTime() - mWriteStart);
+			mWriting = false;
+			int type = mWritingType;
+			if (mCurrent[type] == null) {
+				// Reset while the write was in flight.
+			} else if (!success && mRetries < mQuality.retryBudget()) {
+				mRetries++;
+				mOffset[type] = mChunkStart;
+			} else if (!success) {
+				// Better to lose this message than to hold up every
+				// one behind it; a newer one will usually follow.
+				Trace.event(Trace.WRITE_FAILED, type, mRetries);
+				mAbandoned++;
+				mRetries = 0;
+				mCurrent[type] = null;
+			} else {
+				mRetries = 0;
+				if (mOffset[type] >= mCurrent[type].length) {
+					mCurrent[type] = null;
+					sent = type;
+				}
+			}
+			updateQueueDepth();
+		}
+		if (sent >= 0) {
+			mHost.onRemoteSent(this, sent);
+		}
+		pump();
+	}
+
+	public void onNotification(byte[] value) {
+		mInputTime = System.nanoTime();
+		synchronized (this) {
+			mActive = true;
+		}
+		mHost.onRemoteInput(this, value);
+		mParser.feed(value);
+	}
+
+	public void onCommand(int command, byte[] args, int length) {
+		GestureRecognizer gestures = mGestures;
+		if ((command == 'd' || command == 'u') && gestures != null) {
+			int time = ((args[1] & 0xFF) << 8) | (args[2] & 0xFF);
+			if (command == 'd') {
+				gestures.onPress(args[0], time, mInputTime);
+			} else {
+				gestures.onRelease(args[0], time, mInputTime);
+			}
+			return;
+		}
+		mHost.onRemoteCommand(this, command, args, length);
+	}
+
+	public void onRssi(int rssi) {
+		mQuality.onRssi(rssi);
+		mStats.onRssi(rssi);
+		mHost.onRemoteRssi(this, rssi);
+	}
+
+	synchronized void setState(int state) {
+		mState = state;
+	}
+
+	synchronized boolean isReady() {
+		return mState == STATE_READY;
+	}
+
+	synchronized boolean isDisconnected() {
+		return mState == STATE_DISCONNECTED;
+	}
+
+	/**
+	 * Messages waiting to go out or part way through. Doesn't take
+	 * the lock, which pump() holds while it writes.
+	 */
+	int queueDepth() {
+		return mQueueDepth;
+	}
+
+	/* Called with the lock held, after anything that changes the
+	 * outbox or the messages in flight. */
+	void updateQueueDepth() {
+		int depth = mOutbox.size();
+		for (int type = 0; type < Messages.NUM_TYPES; type++) {
+			if (mCurrent[type] != null) {
+				depth++;
+			}
+		}
+		mQueueDepth = depth;
+	}
+
+	/**
+	 * Queue a message for this remote, superseding any pending message
+	 * of the same type. Returns immediately.
+	 */
+	void send(int type, byte[] message) {
+		if (mCapture != null && mCapture.isRecording()) {
+			byte[] record = new byte[message.length + 1];
+			record[0] = (byte) type;
+			System.arraycopy(message, 0, record, 1, message.length);
+			mCapture.record(TrafficCapture.QUEUE, mAddress, record);
+		}
+		synchronized (this) {
+			mActive = true;
+			mOutbox.put(type, message);
+			updateQueueDepth();
+		}
+		pump();
+	}
+
+	/**
+	 * Write the next chunk, unless a write is already in flight or
+	 * the remote isn't ready for it.
+	 */
+	synchronized void pump() {
+		if (mState != STATE_READY || mWriting) {
+			return;
+		}
+
+		int type = nextType();
+		if (type < 0) {
+			return;
+		}
+		byte[] message = mCurrent[type];
+
+		// The link may complete the write before write() returns, so
+		// account for it up front and back out if it didn't start.
+		int start = mOffset[type];
+		int size = mQuality.chunkSize(mLink.maxWriteSize());
+		int end = Math.min(start + size, message.length);
+		mWriting = true;
+		mWritingType = type;
+		mChunkStart = start;
+		mOffset[type] = end;
+		mWriteBytes = end - start;
+		mWriteStart = System.nanoTime();
+		if (mLink.write(type, Chunker.chunk(message, start, end - start))) {
+			Trace.event(Trace.WRITE, end - start, start);
+		} else {
+			// Try this chunk again shortly; nothing else may come
+			// along to pump until the next RSSI sample.
+			Trace.event(Trace.WRITE_FAILED, end - start, start);
+			mWriting = false;
+			mOffset[type] = start;
+			if (mRetry != null) {
+				mRetry.schedule(WRITE_RETRY_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Pick the type to write the next chunk of, starting its message
+	 * if need be, or return -1 if there's nothing to send. Called with
+	 * the lock held.
+	 */
+	int nextType() {
+		if (!mLink.hasChannels()) {
+			// One stream: finish whatever we started first.
+			for (int type = 0; type < Messages.NUM_TYPES; type++) {
+				if (mCurrent[type] != null) {
+					return type;
+				}
+			}
+			return start(mOutbox.poll(), mOutbox.lastPolledType());
+		}
+
+		// Characteristics take turns, starting after the last one to
+		// have something.
+		for (int i = 1; i <= NUM_CHANNELS; i++) {
+			int channel = (mLastChannel + i + NUM_CHANNELS) % NUM_CHANNELS;
+			int type = nextType(channel);
+			if (type >= 0) {
+				mLastChannel = channel;
+				return type;
+			}
+		}
+		return -1;
+	}
+
+	/* The type to write next on one characteristic: the message part
+	 * way through on it if there is one, since another can't start in
+	 * the middle of it, or else whatever the outbox has next for it.
+	 * Called with the lock held. */
+	int nextType(int channel) {
+		for (int type = 0; type < Messages.NUM_TYPES; type++) {
+			if (CHANNEL[type] == channel && mCurrent[type] != null) {
+				return type;
+			}
+		}
+		return start(mOutbox.poll(CHANNEL_TYPES[channel]),
+					 mOutbox.lastPolledType());
+	}
+
+	int start(byte[] message, int type) {
+		if (message == null) {
+			return -1;
+		}
+		mCurrent[type] = message;
+		mOffset[type] = 0;
+		return type;
+	}
+
+	synchronized void reset() {
+		mState = STATE_DISCONNECTED;
+		mWriting = false;
+		mRetries = 0;
+		mParser.reset();
+		if (mGestures != null) {
+			mGestures.reset();
+		}
+
+		// A half-written message is useless to the remote, so send
+		// it again in full on reconnect unless it's been superseded.
+		for (int type = 0; type < Messages.NUM_TYPES; type++) {
+			if (mCurrent[type] != null) {
+				mOutbox.putIfAbsent(type, mCurrent[type]);
+			}
+			mCurrent[type] = null;
+			mOffset[type] = 0;
+		}
+		updateQueueDepth();
+	}
+
+	/**
+	 * Connect to the remote, reusing the existing link if we already
+	 * have one.
+	 *
+	 * @return Return true if the connection is initiated successfully.
+	 */
+	boolean connect() {
+		setState(STATE_CONNECTING);
+		return mLink.connect();
+	}
+
+	/**
+	 * Disconnect an existing connection or cancel a pending
+	 * connection.
+	 */
+	void disconnect() {
+		mLink.disconnect();
+	}
+
+	/**
+	 * Release the link. The connection can't be used again after
+	 * this.
+	 */
+	void close() {
+		stopSampling();
+		mLink.close();
+		reset();
+	}
+
+	void readRssi() {
+		mLink.readRssi();
+	}
+
+	/**
+	 * Time in ms until the next RSSI sample. Sampling is frequent
+	 * while the remote is in use or the link is poor, and backs off
+	 * when it's idle.
+	 */
+	long nextSampleInterval() {
+		boolean active;
+		synchronized (this) {
+			active = mActive;
+			mActive = false;
+		}
+		return mQuality.nextInterval(active);
+	}
+
+	/**
+	 * Take an RSSI sample, and retry any write that couldn't be
+	 * started last time round if mRetry hasn't already.
+	 */
+	void sample() {
+		readRssi();
+		pump();
+	}
+
+	/**
+	 * Sample RSSI on the given scheduler until we disconnect, at
+	 * whatever interval the link quality asks for. Samples have a
+	 * quarter of their interval's slack, so samplers on several
+	 * remotes tend to share wakeups. Writes that fail to start are
+	 * retried on the same scheduler.
+	 */
+	void startSampling(Scheduler scheduler) {
+		synchronized (this) {
+			if (mRetry == null) {
+				mRetry = scheduler.task(new Runnable() {
+					public void run() {
+						if (isReady()) {
+							pump();
+						}
+					}
+				});
+			}
+			if (mSampler == null) {
+				mSampler = scheduler.task(new Runnable() {
+					public void run() {
+						if (isReady()) {
+							sample();
+							scheduleSample();
+						}
+					}
+				});
+			}
+		}
+		scheduleSample();
+	}
+
+	void scheduleSample() {
+		long interval = nextSampleInterval();
+		mSampler.schedule(interval, interval / 4);
+	}
+
+	void stopSampling() {
+		Scheduler.Task sampler;
+		Scheduler.Task retry;
+		synchronized (this) {
+			sampler = mSampler;
+			retry = mRetry;
+		}
+		if (sampler != null) {
+			sampler.cancel();
+		}
+		if (retry != null) {
+			retry.cancel();
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.redbear.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * What we last knew about one remote, as one immutable value, and the
+ * file DeviceRegistry keeps them in.
+ *
+ * The registry replaces an entry whole on every change, so an entry
+ * someone got from it never changes under them.
+ *
+ * File format, all big-endian:
+ *
+ *   int     version
+ *   int     count
+ *   count x {
+ *     UTF   address
+ *     UTF   name ("" if unknown)
+ *     byte  last RSSI in dBm
+ *     long  last connected, ms since the epoch (0 if never)
+ *   }
+ */
+final class SavedDevice {
+	static final int VERSION = 1;
+
+	final String address;
+	/* Null if unknown. */
+	final String name;
+	final int rssi;
+	final long lastConnected;
+
+	SavedDevice(String address) {
+		this(address, null, 0, 0);
+	}
+
+	SavedDevice(String address, String name, int rssi, long lastConnected) {
+		this.address = address;
+		this.name = name;
+		this.rssi = rssi;
+		this.lastConnected = lastConnected;
+	}
+
+	SavedDevice withName(String name) {
+		return new SavedDevice(address, name, rssi, lastConnected);
+	}
+
+	SavedDevice withRssi(int rssi) {
+		return new SavedDevice(address, name, rssi, lastConnected);
+	}
+
+	SavedDevice withLastConnected(long lastConnected) {
+		return new SavedDevice(address, name, rssi, lastConnected);
+	}
+
+	static byte[] encode(Collection<SavedDevice> devices) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(VERSION);
+		out.writeInt(devices.size());
+		for (SavedDevice device : devices) {
+			out.writeUTF(device.address);
+			out.writeUTF(device.name == null ? "" : device.name);
+			out.writeByte(device.rssi);
+			out.writeLong(device.lastConnected);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @throws IOException
+	 *             If the data is truncated or of a version we don't
+	 *             know.
+	 */
+	static List<SavedDevice> decode(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unknown version " + version);
+		}
+		int count = in.readInt();
+		List<SavedDevice> devices = new ArrayList<SavedDevice>(count);
+		for (int i = 0; i < count; i++) {
+			String address = in.readUTF();
+			String name = in.readUTF();
+			int rssi = in.readByte();
+			long lastConnected = in.readLong();
+			devices.add(new SavedDevice(address,
+										name.length() == 0 ? null : name,
+										rssi, lastConnected));
+		}
+		return devices;
+	}
+}
@@ -0,0 +1,150 @@
+package com.redbear.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Delayed and periodic work for the whole app, on one thread and with
+ * as few wakeups as we can get away with.
+ *
+ * Work is wrapped in a Task once and then scheduled, cancelled and
+ * scheduled again as often as needed; scheduling a task that's already
+ * pending just moves it. Each schedule() can say how late the task may
+ * run (its slack). We only wake up at the earliest time some task
+ * can't be put off any longer, and then run everything that's due, so
+ * tasks that fall due close together share a wakeup.
+ *
+ * Subclasses supply the clock and the wakeups: HandlerScheduler runs
+ * on a Looper, and the simulator has one on its virtual clock. Times
+ * are in milliseconds.
+ */
+abstract class Scheduler {
+	static final long NEVER = Long.MAX_VALUE;
+
+	final class Task {
+		final Runnable mRunnable;
+		long mDue;
+		long mDeadline;
+		boolean mScheduled = false;
+
+		Task(Runnable runnable) {
+			mRunnable = runnable;
+		}
+
+		/**
+		 * Run the task after delay ms, replacing any earlier schedule.
+		 */
+		void schedule(long delay) {
+			schedule(delay, 0);
+		}
+
+		/**
+		 * Run the task after delay ms, or up to slack ms later if that
+		 * lets it share a wakeup with something else.
+		 */
+		void schedule(long delay, long slack) {
+			arm(this, delay, slack);
+		}
+
+		void cancel() {
+			disarm(this);
+		}
+
+		boolean isScheduled() {
+			synchronized (Scheduler.this) {
+				return mScheduled;
+			}
+		}
+	}
+
+	static final Comparator<Task> BY_DUE = new Comparator<Task>() {
+		public int compare(Task a, Task b) {
+			return a.mDue < b.mDue ? -1 : (a.mDue == b.mDue ? 0 : 1);
+		}
+	};
+
+	final ArrayList<Task> mTasks = new ArrayList<Task>();
+	/* Only touched by runDue(), which is never reentered. */
+	final ArrayList<Task> mRunning = new ArrayList<Task>();
+
+	/* When we've asked to be woken next. */
+	long mWakeup = NEVER;
+
+	/* For working out how well coalescing is doing. */
+	long mWakeups = 0;
+	long mRuns = 0;
+
+	/**
+	 * The current time in ms, on whatever clock wakeAt() uses.
+	 */
+	abstract long now();
+
+	/**
+	 * Arrange for runDue() to be called at the given time, replacing
+	 * any earlier request. NEVER cancels the request.
+	 */
+	abstract void wakeAt(long time);
+
+	Task task(Runnable runnable) {
+		return new Task(runnable);
+	}
+
+	synchronized void arm(Task task, long delay, long slack) {
+		task.mDue = now() + Math.max(0, delay);
+		task.mDeadline = task.mDue + Math.max(0, slack);
+		if (!task.mScheduled) {
+			task.mScheduled = true;
+			mTasks.add(task);
+		}
+		updateWakeup();
+	}
+
+	synchronized void disarm(Task task) {
+		if (task.mScheduled) {
+			task.mScheduled = false;
+			mTasks.remove(task);
+			updateWakeup();
+		}
+	}
+
+	/* Called with the lock held. */
+	void updateWakeup() {
+		long next = NEVER;
+		for (int i = 0; i < mTasks.size(); i++) {
+			next = Math.min(next, mTasks.get(i).mDeadline);
+		}
+		if (next != mWakeup) {
+			mWakeup = next;
+			wakeAt(next);
+		}
+	}
+
+	/**
+	 * Run every task that's due, in the order they fell due. Tasks
+	 * run without the lock held, so they can reschedule themselves.
+	 */
+	void runDue() {
+		synchronized (this) {
+			mWakeups++;
+			mWakeup = NEVER;
+			long now = now();
+			for (int i = mTasks.size() - 1; i >= 0; i--) {
+				Task task = mTasks.get(i);
+				if (task.mDue <= now) {
+					task.mScheduled = false;
+					mTasks.remove(i);
+					mRunning.add(task);
+				}
+			}
+			updateWakeup();
+		}
+
+		Collections.sort(mRunning, BY_DUE);
+		for (int i = 0; i < mRunning.size(); i++) {
+			mRuns++;
+			mRunning.get(i).mRunnable.run();
+		}
+		mRunning.clear();
+	}
+}
@@ -0,0 +1,120 @@
+package com.redbear.chat;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cheap tracing for the hot paths, where Log.i would cost us string
+ * building on every chunk and key press.
+ *
+ * An event is a fixed-size record: a timestamp, an event id and two
+ * ints. Records go into a ring of preallocated arrays, so recording
+ * one never allocates, and the ring is only turned into anything
+ * readable when someone asks for a dump. When tracing is off, an
+ * event costs a single volatile read.
+ *
+ * Anything that needs formatting (ticker text and the like) belongs
+ * behind a level check, so it isn't built at all unless asked for:
+ *
+ *   if (Trace.on(Trace.VERBOSE)) {
+ *       Log.i(TAG, "Ticker: " + tickerText);
+ *   }
+ *
+ * Dump format, all big-endian: the magic "RBLT", a version byte, an
+ * int record count, then count x { byte event, long nanoTime, int a,
+ * int b }, oldest first.
+ */
+final class Trace {
+	static final byte[] MAGIC = { 'R', 'B', 'L', 'T' };
+	static final int VERSION = 1;
+
+	/* Levels. */
+	static final int OFF = 0;
+	/* Binary events only. */
+	static final int EVENTS = 1;
+	/* Events, and the old log lines as well. */
+	static final int VERBOSE = 2;
+
+	/* Events, and what their two arguments are. */
+	static final int WRITE = 1;			/* bytes, offset in message */
+	static final int WRITE_FAILED = 2;	/* bytes, offset in message */
+	static final int COMMAND = 3;		/* command, argument bytes */
+	static final int VOLUME = 4;		/* our volume, stream volume */
+	static final int TICKER = 5;		/* length, fields */
+	static final int POSTED = 6;		/* notification id, 1 if Spotify */
+	static final int SYNC = 7;			/* messages sent, 0 */
+	static final int LINK = 8;			/* LinkQuality level, RSSI */
+	static final int STARTED = 9;		/* start reason, ms to connected */
+	static final int GESTURE = 10;		/* button, gesture */
+
+	static final String[] NAMES = {
+		"?", "write", "write-failed", "command", "volume", "ticker",
+		"posted", "sync", "link", "started", "gesture",
+	};
+
+	/* Must be a power of two. */
+	static final int RING_SIZE = 4096;
+	static final int RING_MASK = RING_SIZE - 1;
+
+	static volatile int sLevel = OFF;
+
+	static final long[] sTime = new long[RING_SIZE];
+	static final byte[] sEvent = new byte[RING_SIZE];
+	static final int[] sA = new int[RING_SIZE];
+	static final int[] sB = new int[RING_SIZE];
+	static long sNext = 0;
+
+	private Trace() {
+	}
+
+	static boolean on(int level) {
+		return sLevel >= level;
+	}
+
+	static void setLevel(int level) {
+		sLevel = level;
+	}
+
+	static void event(int event, int a, int b) {
+		if (sLevel == OFF) {
+			return;
+		}
+
+		synchronized (Trace.class) {
+			int i = (int) (sNext++ & RING_MASK);
+			sTime[i] = System.nanoTime();
+			sEvent[i] = (byte) event;
+			sA[i] = a;
+			sB[i] = b;
+		}
+	}
+
+	static synchronized void clear() {
+		sNext = 0;
+	}
+
+	/**
+	 * Write out the ring as it stands. Events recorded while the dump
+	 * is in progress wait for it.
+	 */
+	static synchronized void dump(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		int count = (int) Math.min(sNext, RING_SIZE);
+		out.write(MAGIC);
+		out.writeByte(VERSION);
+		out.writeInt(count);
+		for (long n = sNext - count; n < sNext; n++) {
+			int i = (int) (n & RING_MASK);
+			out.writeByte(sEvent[i]);
+			out.writeLong(sTime[i]);
+			out.writeInt(sA[i]);
+			out.writeInt(sB[i]);
+		}
+		out.flush();
+	}
+
+	static String name(int event) {
+		return event > 0 && event < NAMES.length ? NAMES[event] : NAMES[0];
+	}
+}
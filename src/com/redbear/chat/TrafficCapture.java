@@ -0,0 +1,272 @@
+package com.redbear.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Opt-in recording of everything that crosses the GATT link: TX
+ * chunks, RX notifications and the handshake callbacks, each with a
+ * System.nanoTime() timestamp. Messages queued on a connection are
+ * recorded too, since they're the other input to its state machine.
+ *
+ * Recording only copies the record into a preallocated ring buffer; a
+ * background thread drains the ring into an append-only file. If the
+ * writer falls behind, records are dropped and counted rather than
+ * blocking the caller. When recording is off, record() costs a single
+ * volatile read.
+ *
+ * File format: the magic "RBLC" and a version byte, then a stream of
+ * records:
+ *
+ *   byte    type
+ *   varint  nanoseconds since the previous record
+ *   byte    connection id
+ *   varint  payload length
+ *   bytes   payload
+ *
+ * Connection ids are assigned in order of first appearance; each is
+ * introduced by an ADDRESS record whose payload is the device address.
+ * Varints are unsigned LEB128. CaptureReader reads the result.
+ *
+ * Recording appends to a file of the same version, so one file can
+ * hold several sessions. A file of any other version is started
+ * afresh, since it couldn't be read back as a whole.
+ */
+class TrafficCapture {
+	static final byte[] MAGIC = { 'R', 'B', 'L', 'C' };
+	static final int VERSION = 1;
+
+	/* Record types. */
+	static final int ADDRESS = 0;
+	static final int CONNECTED = 1;
+	static final int SERVICES = 2;
+	static final int READY = 3;
+	static final int DISCONNECTED = 4;
+	/* Payload is the Outbox type, then the chunk. */
+	static final int WRITE = 5;
+	static final int WRITE_COMPLETE = 6;
+	static final int NOTIFY = 7;
+	static final int RSSI = 8;
+	/* Payload is the Outbox type, then the message. */
+	static final int QUEUE = 9;
+
+	/* Must be a power of two. */
+	static final int RING_SIZE = 64 * 1024;
+	static final int RING_MASK = RING_SIZE - 1;
+
+	/* Type, id, two varints of at most 10 bytes each. */
+	static final int MAX_HEADER = 22;
+
+	/* How often the writer drains the ring when it isn't full. */
+	static final long FLUSH_INTERVAL = 1000;
+
+	final byte[] mRing = new byte[RING_SIZE];
+	long mHead = 0;
+	long mTail = 0;
+	long mLastTime;
+	long mDropped = 0;
+
+	final HashMap<String, Integer> mIds = new HashMap<String, Integer>();
+
+	volatile boolean mRecording = false;
+	FileOutputStream mOut;
+	Thread mWriter;
+
+	boolean isRecording() {
+		return mRecording;
+	}
+
+	/**
+	 * Start recording, appending to the given file if it's a capture
+	 * of this version, or replacing it if not.
+	 */
+	synchronized void start(File file) throws IOException {
+		if (mRecording) {
+			return;
+		}
+
+		boolean fresh = !hasHeader(file);
+		mOut = new FileOutputStream(file, !fresh);
+		if (fresh) {
+			mOut.write(MAGIC);
+			mOut.write(VERSION);
+		}
+
+		mHead = mTail = 0;
+		mDropped = 0;
+		mIds.clear();
+		mLastTime = System.nanoTime();
+		mRecording = true;
+
+		mWriter = new Thread("TrafficCapture") {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/* Whether the file starts with our magic and version. */
+	static boolean hasHeader(File file) throws IOException {
+		if (!file.exists()) {
+			return false;
+		}
+		byte[] header = new byte[MAGIC.length + 1];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int n = 0;
+			while (n < header.length) {
+				int read = in.read(header, n, header.length - n);
+				if (read < 0) {
+					return false;
+				}
+				n += read;
+			}
+		} finally {
+			in.close();
+		}
+		return header[MAGIC.length] == VERSION &&
+			Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC);
+	}
+
+	/**
+	 * Stop recording and write out everything still in the ring.
+	 */
+	void stop() {
+		Thread writer;
+		synchronized (this) {
+			if (!mRecording) {
+				return;
+			}
+			mRecording = false;
+			writer = mWriter;
+			mWriter = null;
+			notifyAll();
+		}
+
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	synchronized long dropped() {
+		return mDropped;
+	}
+
+	void record(int type, String address) {
+		record(type, address, null, 0, 0);
+	}
+
+	void record(int type, String address, byte[] data) {
+		record(type, address, data, 0, data.length);
+	}
+
+	void record(int type, String address, byte[] data, int offset, int length) {
+		if (!mRecording) {
+			return;
+		}
+
+		synchronized (this) {
+			if (!mRecording) {
+				return;
+			}
+
+			Integer id = mIds.get(address);
+			if (id == null) {
+				id = mIds.size();
+				byte[] bytes = address.getBytes();
+				if (!put(ADDRESS, id, bytes, 0, bytes.length)) {
+					return;
+				}
+				mIds.put(address, id);
+			}
+
+			put(type, id, data, offset, length);
+
+			if (mHead - mTail > RING_SIZE / 2) {
+				notifyAll();
+			}
+		}
+	}
+
+	/* Called with the lock held. */
+	boolean put(int type, int id, byte[] data, int offset, int length) {
+		if (RING_SIZE - (mHead - mTail) < MAX_HEADER + length) {
+			mDropped++;
+			return false;
+		}
+
+		long now = System.nanoTime();
+		putByte(type);
+		putVarint(now - mLastTime);
+		putByte(id);
+		putVarint(length);
+		for (int i = 0; i < length; i++) {
+			putByte(data[offset + i]);
+		}
+		mLastTime = now;
+		return true;
+	}
+
+	void putByte(int b) {
+		mRing[(int) (mHead++ & RING_MASK)] = (byte) b;
+	}
+
+	void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			putByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		putByte((int) value);
+	}
+
+	void drainLoop() {
+		byte[] scratch = new byte[RING_SIZE];
+		while (true) {
+			int count;
+			boolean done;
+			synchronized (this) {
+				if (mRecording && mHead - mTail <= RING_SIZE / 2) {
+					try {
+						wait(FLUSH_INTERVAL);
+					} catch (InterruptedException e) {
+						mRecording = false;
+					}
+				}
+				count = (int) (mHead - mTail);
+				for (int i = 0; i < count; i++) {
+					scratch[i] = mRing[(int) ((mTail + i) & RING_MASK)];
+				}
+				mTail = mHead;
+				done = !mRecording;
+			}
+
+			try {
+				if (count > 0) {
+					mOut.write(scratch, 0, count);
+				}
+				if (done) {
+					mOut.close();
+					return;
+				}
+			} catch (IOException e) {
+				synchronized (this) {
+					mRecording = false;
+				}
+				try {
+					mOut.close();
+				} catch (IOException ignored) {
+				}
+				return;
+			}
+		}
+	}
+}
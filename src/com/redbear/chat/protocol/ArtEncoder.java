@@ -0,0 +1,164 @@
+package com.redbear.chat.protocol;
+
+/**
+ * Turns cover art into something the remote can afford: SIZE x SIZE
+ * pixels, one bit each, compressed.
+ *
+ * The image is cropped to a square, box-filtered down, and dithered
+ * with a 4x4 Bayer matrix. Ordered dithering rather than error
+ * diffusion because its pattern repeats every four pixels, so a flat
+ * area comes out as the same byte along a row and the same row every
+ * four rows. compress() XORs each row with the one four above, which
+ * turns flat areas into zeros, then run-length codes the result
+ * (PackBits). The remote undoes both in a few lines of firmware.
+ *
+ * Thumbnails are rows top to bottom, leftmost pixel in the top bit,
+ * 1 for lit.
+ */
+public final class ArtEncoder {
+	public static final int SIZE = 32;
+	public static final int ROW_BYTES = SIZE / 8;
+	public static final int BYTES = SIZE * ROW_BYTES;
+
+	/* The rows the dither pattern repeats after. */
+	static final int PERIOD = 4;
+
+	static final int[] BAYER = {
+		 0,  8,  2, 10,
+		12,  4, 14,  6,
+		 3, 11,  1,  9,
+		15,  7, 13,  5
+	};
+
+	private ArtEncoder() {
+	}
+
+	/**
+	 * @param argb
+	 *            width x height pixels, as from Bitmap.getPixels().
+	 */
+	public static byte[] thumbnail(int[] argb, int width, int height) {
+		int side = Math.min(width, height);
+		int left = (width - side) / 2;
+		int top = (height - side) / 2;
+		byte[] bits = new byte[BYTES];
+		for (int y = 0; y < SIZE; y++) {
+			int y0 = top + y * side / SIZE;
+			int y1 = Math.max(y0 + 1, top + (y + 1) * side / SIZE);
+			for (int x = 0; x < SIZE; x++) {
+				int x0 = left + x * side / SIZE;
+				int x1 = Math.max(x0 + 1, left + (x + 1) * side / SIZE);
+				// Average luminance over the box, 0..255.
+				long sum = 0;
+				for (int sy = y0; sy < y1; sy++) {
+					for (int sx = x0; sx < x1; sx++) {
+						int p = argb[sy * width + sx];
+						sum += (((p >> 16) & 0xFF) * 77 + ((p >> 8) & 0xFF) * 150 +
+								(p & 0xFF) * 29) >> 8;
+					}
+				}
+				int luma = (int) (sum / ((y1 - y0) * (x1 - x0)));
+				int threshold = BAYER[(y % 4) * 4 + x % 4] * 16 + 8;
+				if (luma > threshold) {
+					bits[y * ROW_BYTES + x / 8] |= 0x80 >> (x % 8);
+				}
+			}
+		}
+		return bits;
+	}
+
+	public static byte[] compress(byte[] bits) {
+		byte[] delta = new byte[bits.length];
+		int back = PERIOD * ROW_BYTES;
+		for (int i = 0; i < bits.length; i++) {
+			delta[i] = (byte) (i < back ? bits[i] : bits[i] ^ bits[i - back]);
+		}
+		return packBits(delta);
+	}
+
+	/**
+	 * @return The thumbnail, or null if data is corrupt.
+	 */
+	public static byte[] decompress(byte[] data, int length) {
+		byte[] bits = unpackBits(data, length, BYTES);
+		if (bits == null) {
+			return null;
+		}
+		int back = PERIOD * ROW_BYTES;
+		for (int i = back; i < bits.length; i++) {
+			bits[i] ^= bits[i - back];
+		}
+		return bits;
+	}
+
+	/**
+	 * Identifies a thumbnail on both sides. Never 0, which means no
+	 * art.
+	 */
+	public static int hash(byte[] bits) {
+		// FNV-1a.
+		int hash = 0x811C9DC5;
+		for (int i = 0; i < bits.length; i++) {
+			hash = (hash ^ (bits[i] & 0xFF)) * 0x01000193;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	/* A control byte n then n + 1 literal bytes, or -n then one byte
+	 * to repeat 1 - n times. */
+	static byte[] packBits(byte[] in) {
+		byte[] out = new byte[in.length + (in.length + 127) / 128];
+		int o = 0;
+		int i = 0;
+		while (i < in.length) {
+			int run = 1;
+			while (i + run < in.length && run < 128 && in[i + run] == in[i]) {
+				run++;
+			}
+			if (run > 2) {
+				out[o++] = (byte) (1 - run);
+				out[o++] = in[i];
+				i += run;
+				continue;
+			}
+			// Literals up to the next run of three.
+			int start = i;
+			while (i < in.length && i - start < 128 &&
+				   !(i + 2 < in.length && in[i] == in[i + 1] && in[i] == in[i + 2])) {
+				i++;
+			}
+			out[o++] = (byte) (i - start - 1);
+			System.arraycopy(in, start, out, o, i - start);
+			o += i - start;
+		}
+		byte[] packed = new byte[o];
+		System.arraycopy(out, 0, packed, 0, o);
+		return packed;
+	}
+
+	static byte[] unpackBits(byte[] in, int length, int size) {
+		byte[] out = new byte[size];
+		int o = 0;
+		int i = 0;
+		while (i < length) {
+			int n = in[i++];
+			if (n >= 0) {
+				if (o + n + 1 > size || i + n + 1 > length) {
+					return null;
+				}
+				System.arraycopy(in, i, out, o, n + 1);
+				i += n + 1;
+				o += n + 1;
+			} else if (n != -128) {
+				if (o + 1 - n > size || i >= length) {
+					return null;
+				}
+				for (int k = 0; k < 1 - n; k++) {
+					out[o++] = in[i];
+				}
+				i++;
+			}
+		}
+		return o == size ? out : null;
+	}
+}
@@ -0,0 +1,26 @@
+package com.redbear.chat.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Splits messages into pieces no bigger than a single GATT write.
+ */
+public final class Chunker {
+	private Chunker() {
+	}
+
+	/**
+	 * Number of writes needed for a message of the given length.
+	 */
+	public static int count(int length, int max) {
+		return (length + max - 1) / max;
+	}
+
+	/**
+	 * The chunk of the message starting at offset: at most max bytes.
+	 */
+	public static byte[] chunk(byte[] message, int offset, int max) {
+		return Arrays.copyOfRange(message, offset,
+								  Math.min(offset + max, message.length));
+	}
+}
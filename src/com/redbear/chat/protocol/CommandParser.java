@@ -0,0 +1,131 @@
+package com.redbear.chat.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Parses the byte stream the remote sends on RX into commands.
+ *
+ * A command is a single byte, optionally followed by a fixed number of
+ * argument bytes. Notifications can split a command anywhere, so the
+ * parser carries partial commands over from one feed() to the next.
+ * Bytes that don't start a known command are skipped. Nothing is
+ * allocated once the parser exists.
+ *
+ * The built-in commands take no arguments:
+ *
+ *   x   play / pause
+ *   P   previous track
+ *   N   next track
+ *   v   volume down
+ *   V   volume up
+ *   o   toggle online
+ *
+ * Remotes that leave gestures to the phone send raw button events
+ * instead, each with the button and the remote's clock in ms as a
+ * big-endian 16-bit value:
+ *
+ *   d   button pressed: button, time
+ *   u   button released: button, time
+ *
+ * and to browse the play queue:
+ *
+ *   g   send a page: first index (big-endian 16-bit), count
+ *
+ * and for cover art it doesn't have:
+ *
+ *   r   send art data: hash (big-endian 32-bit), from offset (16-bit)
+ */
+public class CommandParser {
+	public interface Listener {
+		/**
+		 * @param args
+		 *            The argument bytes. Only valid for the duration of
+		 *            the call.
+		 */
+		void onCommand(int command, byte[] args, int length);
+	}
+
+	public static final int MAX_ARGS = 32;
+
+	final Listener mListener;
+
+	/* Argument count for each command byte, or -1 if the byte isn't
+	 * a command. */
+	final byte[] mArgLengths = new byte[256];
+
+	final byte[] mArgs = new byte[MAX_ARGS];
+	int mCommand = -1;
+	int mNeeded = 0;
+	int mHave = 0;
+
+	long mSkipped = 0;
+
+	public CommandParser(Listener listener) {
+		mListener = listener;
+		Arrays.fill(mArgLengths, (byte) -1);
+		define('x', 0);
+		define('P', 0);
+		define('N', 0);
+		define('v', 0);
+		define('V', 0);
+		define('o', 0);
+		define('d', 3);
+		define('u', 3);
+		define('g', 3);
+		define('r', 6);
+	}
+
+	/**
+	 * Add a command, or change the number of arguments it takes.
+	 */
+	public void define(int command, int argLength) {
+		if (argLength > MAX_ARGS) {
+			throw new IllegalArgumentException("Too many arguments: " + argLength);
+		}
+		mArgLengths[command & 0xFF] = (byte) argLength;
+	}
+
+	public void feed(byte[] data) {
+		feed(data, 0, data.length);
+	}
+
+	public void feed(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			int b = data[i] & 0xFF;
+
+			if (mCommand < 0) {
+				int needed = mArgLengths[b];
+				if (needed < 0) {
+					mSkipped++;
+				} else if (needed == 0) {
+					mListener.onCommand(b, mArgs, 0);
+				} else {
+					mCommand = b;
+					mNeeded = needed;
+					mHave = 0;
+				}
+				continue;
+			}
+
+			mArgs[mHave++] = (byte) b;
+			if (mHave == mNeeded) {
+				int command = mCommand;
+				mCommand = -1;
+				mListener.onCommand(command, mArgs, mHave);
+			}
+		}
+	}
+
+	/**
+	 * Forget any partial command, e.g. after the link drops.
+	 */
+	public void reset() {
+		mCommand = -1;
+		mHave = 0;
+	}
+
+	public long skipped() {
+		return mSkipped;
+	}
+}
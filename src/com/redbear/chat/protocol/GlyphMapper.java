@@ -0,0 +1,131 @@
+package com.redbear.chat.protocol;
+
+import java.text.Normalizer;
+import java.util.HashMap;
+
+/**
+ * Maps text to the remote's glyph set, which is printable ASCII and
+ * nothing else, so that the remote gets exactly one byte per glyph
+ * whatever the phone's charset.
+ *
+ * Accented letters lose their accents, whether they come precomposed
+ * or as a letter and combining marks. A few letters and punctuation
+ * marks get spelled out (sharp s is "ss", curly quotes are straight)
+ * and anything we can't map becomes '?'. Control characters,
+ * including newlines that would end the message early, become spaces.
+ *
+ * Latin text is mapped through a table built once; anything else is
+ * worked out the first time we see it and cached. Apart from the
+ * array it returns, map() only allocates for text beyond the table:
+ * a boxed key per lookup, and the mapping itself the first time.
+ */
+public final class GlyphMapper {
+	public static final char FIRST_GLYPH = ' ';
+	public static final char LAST_GLYPH = '~';
+	public static final char UNKNOWN = '?';
+
+	/* Characters below this go through TABLE. Covers Latin-1, the
+	 * Latin Extended blocks and the combining accents, which is most
+	 * of what artists use. */
+	static final int TABLE_SIZE = 0x370;
+	static final String[] TABLE = new String[TABLE_SIZE];
+
+	/* Beyond TABLE. Cleared rather than evicted when it fills up. */
+	static final int MAX_CACHE = 1024;
+	static final HashMap<Integer, String> sCache = new HashMap<Integer, String>();
+
+	/* What decomposing doesn't handle: sharp s, ligatures, stroked
+	 * letters, thorn and eth, and typographic punctuation. */
+	static final String[] SPECIAL = {
+		"\u00df", "ss", "\u00c6", "AE", "\u00e6", "ae", "\u00d8", "O",
+		"\u00f8", "o", "\u0152", "OE", "\u0153", "oe", "\u0141", "L",
+		"\u0142", "l", "\u0110", "D", "\u0111", "d", "\u00d0", "D",
+		"\u00f0", "d", "\u00de", "Th", "\u00fe", "th", "\u0131", "i",
+		"\u00a0", " ", "\u00a1", "!", "\u00bf", "?", "\u00ab", "<<",
+		"\u00bb", ">>", "\u00d7", "x", "\u00b4", "'", "\u00b7", ".",
+		"\u2018", "'", "\u2019", "'", "\u201a", "'", "\u201c", "\"",
+		"\u201d", "\"", "\u201e", "\"", "\u2013", "-", "\u2014", "-",
+		"\u2026", "...", "\u2022", "*", "\u2032", "'", "\u2033", "\"",
+	};
+
+	static {
+		for (int c = 0; c < TABLE_SIZE; c++) {
+			TABLE[c] = transliterate(c);
+		}
+	}
+
+	private GlyphMapper() {
+	}
+
+	/**
+	 * The glyphs for the given text, at most max of them.
+	 */
+	public static byte[] map(String s, int max) {
+		byte[] glyphs = new byte[Math.min(max, s.length() * 3)];
+		int n = 0;
+		for (int i = 0; i < s.length() && n < glyphs.length; ) {
+			int c = s.codePointAt(i);
+			i += Character.charCount(c);
+			String mapped = lookup(c);
+			for (int j = 0; j < mapped.length() && n < glyphs.length; j++) {
+				glyphs[n++] = (byte) mapped.charAt(j);
+			}
+		}
+		if (n == glyphs.length) {
+			return glyphs;
+		}
+		byte[] result = new byte[n];
+		System.arraycopy(glyphs, 0, result, 0, n);
+		return result;
+	}
+
+	static String lookup(int c) {
+		if (c < TABLE_SIZE) {
+			return TABLE[c];
+		}
+		synchronized (sCache) {
+			String mapped = sCache.get(c);
+			if (mapped == null) {
+				if (sCache.size() >= MAX_CACHE) {
+					sCache.clear();
+				}
+				mapped = transliterate(c);
+				sCache.put(c, mapped);
+			}
+			return mapped;
+		}
+	}
+
+	static String transliterate(int c) {
+		if (c >= FIRST_GLYPH && c <= LAST_GLYPH) {
+			return String.valueOf((char) c);
+		}
+		if (c < FIRST_GLYPH || c == 0x7F || Character.isWhitespace(c)) {
+			return " ";
+		}
+
+		// A combining accent on the letter before; the letter is
+		// enough.
+		if (Character.getType(c) == Character.NON_SPACING_MARK) {
+			return "";
+		}
+
+		String s = new String(Character.toChars(c));
+		for (int i = 0; i < SPECIAL.length; i += 2) {
+			if (SPECIAL[i].equals(s)) {
+				return SPECIAL[i + 1];
+			}
+		}
+
+		// Split off the accents and keep whatever's left.
+		String decomposed = Normalizer.normalize(s, Normalizer.Form.NFKD);
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < decomposed.length(); i++) {
+			char d = decomposed.charAt(i);
+			if (d >= FIRST_GLYPH && d <= LAST_GLYPH) {
+				result.append(d);
+			}
+		}
+		return result.length() > 0 ? result.toString() : String.valueOf(UNKNOWN);
+	}
+}
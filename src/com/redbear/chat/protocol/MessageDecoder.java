@@ -0,0 +1,280 @@
+package com.redbear.chat.protocol;
+
+/**
+ * Parses the byte stream the phone writes to TX, the way the remote's
+ * firmware does. The app never needs this, but the simulator and the
+ * benchmarks do, and it documents the format from the other side.
+ *
+ * Messages may be split across writes at any point. Text fields are
+ * collected into a fixed buffer, so nothing is allocated per message.
+ */
+public class MessageDecoder {
+	public interface Listener {
+		/* Volume on the remote's 0..255 scale. */
+		void onVolume(int volume);
+		void onPlaying(boolean playing);
+		void onNetwork(boolean online);
+
+		/**
+		 * @param type
+		 *            Messages.ARTIST or Messages.TRACK.
+		 * @param text
+		 *            Glyphs, only valid for the duration of the call.
+		 */
+		void onText(int type, byte[] text, int length);
+
+		/**
+		 * @param columns
+		 *            A GlyphFont strip, top bits cleared, only valid
+		 *            for the duration of the call.
+		 */
+		void onBitmap(int type, byte[] columns, int length);
+
+		/* Position and length in ms. */
+		void onPosition(int seq, long position, long length);
+
+		/* Correction in ms. */
+		void onCorrection(int seq, int correction);
+
+		/**
+		 * @param items
+		 *            count item texts, each ending in a newline, only
+		 *            valid for the duration of the call.
+		 */
+		void onQueuePage(int index, int total, int count, byte[] items,
+						 int length);
+
+		void onQueueChanged(int index, int total);
+
+		void onArt(int hash);
+
+		/**
+		 * @param data
+		 *            Compressed art from offset, unpacked to whole
+		 *            bytes, only valid for the duration of the call.
+		 */
+		void onArtData(int hash, int offset, int total, byte[] data,
+					   int length);
+	}
+
+	/* Longer fields are truncated. */
+	public static final int MAX_FIELD = 256;
+
+	/* Not bytes, so they can't clash with a message. */
+	static final int QUEUE_ITEMS = 0x100;
+	static final int ART_DATA = 0x101;
+
+	final Listener mListener;
+	final byte[] mField = new byte[MAX_FIELD];
+	int mLength = 0;
+	int mCommand = 0;
+	int mHexDigits = 0;
+	long mValue = 0;
+	/* For a queue page in progress. */
+	int mItems = 0;
+	int mCount = 0;
+	/* For art data in progress: the header, and bits not yet a
+	 * whole byte. */
+	int mHash = 0;
+	int mOffset = 0;
+	int mBits = 0;
+	int mHave = 0;
+	int mIndex = 0;
+	int mTotal = 0;
+
+	long mBadBytes = 0;
+
+	public MessageDecoder(Listener listener) {
+		mListener = listener;
+	}
+
+	public void feed(byte[] data) {
+		feed(data, 0, data.length);
+	}
+
+	public void feed(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			feed(data[i] & 0xFF);
+		}
+	}
+
+	void feed(int b) {
+		switch (mCommand) {
+		case 0:
+			start(b);
+			break;
+		case 'v':
+		case 'p':
+		case 'q':
+		case 'l':
+		case 'L':
+		case 'i':
+		case 'j':
+			int digit = Character.digit(b, 16);
+			if (digit < 0) {
+				mBadBytes++;
+				mCommand = 0;
+				break;
+			}
+			mValue = (mValue << 4) | digit;
+			if (--mHexDigits == 0) {
+				int command = mCommand;
+				mCommand = 0;
+				number(command, mValue);
+			}
+			break;
+		case 'a':
+		case 't':
+			if (b != '\n') {
+				if (mLength < MAX_FIELD) {
+					mField[mLength++] = (byte) b;
+				}
+				break;
+			}
+			int type = mCommand == 'a' ? Messages.ARTIST : Messages.TRACK;
+			mCommand = 0;
+			mListener.onText(type, mField, mLength);
+			break;
+		case 'A':
+		case 'T':
+			if (b != '\n') {
+				if (mLength < MAX_FIELD) {
+					mField[mLength++] = (byte) (b & 0x7F);
+				}
+				break;
+			}
+			type = mCommand == 'A' ? Messages.ARTIST : Messages.TRACK;
+			mCommand = 0;
+			mListener.onBitmap(type, mField, mLength);
+			break;
+		case ART_DATA:
+			if (b == '\n') {
+				mCommand = 0;
+				mListener.onArtData(mHash, mOffset, mTotal, mField, mLength);
+				break;
+			}
+			mBits = (mBits << 7) | (b & 0x7F);
+			mHave += 7;
+			if (mHave >= 8) {
+				mHave -= 8;
+				if (mLength < MAX_FIELD) {
+					mField[mLength++] = (byte) (mBits >> mHave);
+				}
+			}
+			break;
+		case QUEUE_ITEMS:
+			if (mLength < MAX_FIELD) {
+				mField[mLength++] = (byte) b;
+			}
+			if (b == '\n' && --mItems == 0) {
+				mCommand = 0;
+				mListener.onQueuePage(mIndex, mTotal, mCount, mField, mLength);
+			}
+			break;
+		}
+	}
+
+	void number(int command, long value) {
+		int unit = Messages.POSITION_UNIT;
+		switch (command) {
+		case 'v':
+			mListener.onVolume((int) value);
+			break;
+		case 'p':
+			mListener.onPosition((int) (value >> 40),
+								 ((value >> 20) & 0xFFFFF) * unit,
+								 (value & 0xFFFFF) * unit);
+			break;
+		case 'q':
+			mListener.onCorrection((int) (value >> 8), (byte) value * unit);
+			break;
+		case 'l':
+			mIndex = (int) (value >> 20);
+			mTotal = (int) (value >> 4) & 0xFFFF;
+			mCount = (int) value & 0xF;
+			if (mCount == 0) {
+				mListener.onQueuePage(mIndex, mTotal, 0, mField, 0);
+			} else {
+				mCommand = QUEUE_ITEMS;
+				mItems = mCount;
+				mLength = 0;
+			}
+			break;
+		case 'L':
+			mListener.onQueueChanged((int) (value >> 16), (int) value & 0xFFFF);
+			break;
+		case 'i':
+			mListener.onArt((int) value);
+			break;
+		case 'j':
+			mHash = (int) (value >> 24);
+			mOffset = (int) (value >> 12) & 0xFFF;
+			mTotal = (int) value & 0xFFF;
+			mCommand = ART_DATA;
+			mLength = 0;
+			mBits = 0;
+			mHave = 0;
+			break;
+		}
+	}
+
+	void start(int b) {
+		switch (b) {
+		case 'v':
+			hex(b, 2);
+			break;
+		case 'p':
+			hex(b, 11);
+			break;
+		case 'q':
+			hex(b, 3);
+			break;
+		case 'l':
+			hex(b, 9);
+			break;
+		case 'L':
+		case 'i':
+			hex(b, 8);
+			break;
+		case 'j':
+			hex(b, 14);
+			break;
+		case 'a':
+		case 't':
+		case 'A':
+		case 'T':
+			mCommand = b;
+			mLength = 0;
+			break;
+		case 'x':
+		case 'X':
+			mListener.onPlaying(b == 'X');
+			break;
+		case 'o':
+		case 'O':
+			mListener.onNetwork(b == 'O');
+			break;
+		default:
+			mBadBytes++;
+		}
+	}
+
+	void hex(int command, int digits) {
+		mCommand = command;
+		mHexDigits = digits;
+		mValue = 0;
+	}
+
+	/**
+	 * Forget any partial message, e.g. after the link drops.
+	 */
+	public void reset() {
+		mCommand = 0;
+		mLength = 0;
+	}
+
+	public long badBytes() {
+		return mBadBytes;
+	}
+}
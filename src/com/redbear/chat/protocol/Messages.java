@@ -0,0 +1,314 @@
+package com.redbear.chat.protocol;
+
+/**
+ * Encodes the messages the phone sends to the remote. The protocol is
+ * ASCII, one message per state field:
+ *
+ *   vHH      volume, two lowercase hex digits, 0..fe
+ *   X / x    playing / paused
+ *   O / o    online / offline
+ *   a...\n   artist
+ *   t...\n   track
+ *   A...\n   artist, pre-rendered
+ *   T...\n   track, pre-rendered
+ *   pSPPPPPLLLLL   position and track length
+ *   qSDD     position correction
+ *   lIIIINNNNK...   page of the play queue
+ *   LIIIINNNN        play queue changed
+ *   iHHHHHHHH        cover art
+ *   jHHHHHHHHOOOLLL...\n   cover art data
+ *
+ * Positions, lengths and corrections are in POSITION_UNITs, as
+ * lowercase hex. The remote advances the position itself while
+ * playing, from when the p message arrived. A q message replaces the
+ * correction to that: position is the p position, plus the time
+ * played since, plus DD as a signed byte. S numbers the p messages
+ * (mod 16), and a q only counts if it matches the remote's last p.
+ *
+ * The play queue goes out a page at a time, when the remote asks for
+ * one (see CommandParser). An l message holds K items starting at
+ * index IIII of a queue NNNN long, each item text ending in a
+ * newline. An L message says that items from IIII on may have
+ * changed, and the queue is now NNNN long; the remote asks again for
+ * whatever it's showing from there. Numbers are lowercase hex.
+ *
+ * Cover art is named by its ArtEncoder.hash(), 0 for none. An i
+ * message says which to show; if the remote doesn't have it, it asks
+ * for the data from wherever it got to (see CommandParser), and gets
+ * it in j messages: part of the ArtEncoder.compress() output of
+ * length LLL, from offset OOO. The data is packed seven bits to a
+ * byte, most significant first, with the top bit of every byte set.
+ *
+ * Text is in the remote's glyph set (see GlyphMapper), one byte per
+ * glyph. Pre-rendered text is a GlyphFont strip with the top bit of
+ * every column set, so that it can't contain a newline.
+ *
+ * The byte arrays returned here go straight into the outbox and may be
+ * shared; callers must not modify them.
+ */
+public final class Messages {
+	/* Message types, in the order they are flushed. Small control
+	 * values go first so the remote is usable before the text
+	 * arrives. */
+	public static final int VOLUME = 0;
+	public static final int PLAYING = 1;
+	public static final int NETWORK = 2;
+	public static final int ARTIST = 3;
+	public static final int TRACK = 4;
+	/* Last, since the remote can get by without it for a while. */
+	public static final int POSITION = 5;
+	/* Only sent when asked for. */
+	public static final int QUEUE = 6;
+	public static final int ART = 7;
+	/* Bulk, so after everything else. */
+	public static final int ART_DATA = 8;
+	public static final int NUM_TYPES = 9;
+
+	/* The remote can't show more than this many characters. */
+	public static final int MAX_TEXT = 24;
+
+	/* Position messages count in units of this many ms. */
+	public static final int POSITION_UNIT = 100;
+	/* Bytes in a p message. */
+	public static final int POSITION_SIZE = 12;
+	/* Largest correction a q message can carry, in units. */
+	public static final int MAX_CORRECTION = 127;
+	/* Largest position or length, in units: a bit over a day. */
+	public static final int MAX_POSITION = 0xFFFFF;
+
+	/* Most items in one l message. */
+	public static final int MAX_QUEUE_PAGE = 8;
+	/* Largest queue index or length. */
+	public static final int MAX_QUEUE = 0xFFFF;
+
+	/* Compressed art bytes per j message. */
+	public static final int ART_SEGMENT = 32;
+
+	static final byte[] HEX = {
+		'0', '1', '2', '3', '4', '5', '6', '7',
+		'8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+	};
+
+	static final byte[] PLAYING_MESSAGE = { 'X' };
+	static final byte[] PAUSED_MESSAGE = { 'x' };
+	static final byte[] ONLINE_MESSAGE = { 'O' };
+	static final byte[] OFFLINE_MESSAGE = { 'o' };
+
+	private Messages() {
+	}
+
+	/**
+	 * @param volume
+	 *            Volume on the phone's 0..127 scale. The remote uses
+	 *            0..255, so this is doubled on the way out.
+	 */
+	public static byte[] volume(int volume) {
+		int v = Math.max(0, Math.min(255, volume * 2));
+		return new byte[] { 'v', HEX[(v >> 4) & 0xF], HEX[v & 0xF] };
+	}
+
+	public static byte[] playing(boolean playing) {
+		return playing ? PLAYING_MESSAGE : PAUSED_MESSAGE;
+	}
+
+	public static byte[] network(boolean online) {
+		return online ? ONLINE_MESSAGE : OFFLINE_MESSAGE;
+	}
+
+	/**
+	 * @param position
+	 *            In ms.
+	 * @param length
+	 *            Of the track, in ms.
+	 */
+	public static byte[] position(int seq, long position, long length) {
+		byte[] message = new byte[POSITION_SIZE];
+		message[0] = 'p';
+		message[1] = HEX[seq & 0xF];
+		hex(message, 2, clampPosition(position), 5);
+		hex(message, 7, clampPosition(length), 5);
+		return message;
+	}
+
+	/**
+	 * @param correction
+	 *            In units, -MAX_CORRECTION..MAX_CORRECTION.
+	 */
+	public static byte[] correction(int seq, int correction) {
+		byte[] message = new byte[4];
+		message[0] = 'q';
+		message[1] = HEX[seq & 0xF];
+		hex(message, 2, correction & 0xFF, 2);
+		return message;
+	}
+
+	/**
+	 * What should wait in a queue that holds one message per type,
+	 * when message comes along with pending not yet sent. Usually
+	 * that's just message, but a q can't replace the p it corrects,
+	 * or the remote would never get the p; the correction is folded
+	 * into the p instead.
+	 */
+	public static byte[] replace(byte[] pending, byte[] message) {
+		if (pending == null || pending[0] != 'p' || message[0] != 'q' ||
+			pending[1] != message[1]) {
+			return message;
+		}
+		int correction = (byte) unhex(message, 2, 2);
+		long position = (long) (unhex(pending, 2, 5) + correction) * POSITION_UNIT;
+		long length = (long) unhex(pending, 7, 5) * POSITION_UNIT;
+		return position(unhex(pending, 1, 1), position, length);
+	}
+
+	/**
+	 * Whether message, when queued, makes pending (of the same type)
+	 * redundant. True for every type but the queue, where page replies
+	 * answer different requests: a page only replaces a page from the
+	 * same index, and a change notice only another change notice.
+	 */
+	public static boolean supersedes(byte[] message, byte[] pending) {
+		if (message[0] != pending[0]) {
+			return message[0] != 'l' && message[0] != 'L';
+		}
+		if (message[0] != 'l') {
+			return true;
+		}
+		for (int i = 1; i < 5; i++) {
+			if (message[i] != pending[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param items
+	 *            Item text from GlyphMapper, count of them.
+	 */
+	public static byte[] queuePage(int index, int total, byte[][] items,
+								   int count) {
+		int size = 10;
+		for (int i = 0; i < count; i++) {
+			size += items[i].length + 1;
+		}
+		byte[] message = new byte[size];
+		message[0] = 'l';
+		hex(message, 1, Math.min(index, MAX_QUEUE), 4);
+		hex(message, 5, Math.min(total, MAX_QUEUE), 4);
+		message[9] = HEX[count];
+		int offset = 10;
+		for (int i = 0; i < count; i++) {
+			System.arraycopy(items[i], 0, message, offset, items[i].length);
+			offset += items[i].length;
+			message[offset++] = '\n';
+		}
+		return message;
+	}
+
+	public static byte[] queueChanged(int index, int total) {
+		byte[] message = new byte[9];
+		message[0] = 'L';
+		hex(message, 1, Math.min(index, MAX_QUEUE), 4);
+		hex(message, 5, Math.min(total, MAX_QUEUE), 4);
+		return message;
+	}
+
+	public static byte[] art(int hash) {
+		byte[] message = new byte[9];
+		message[0] = 'i';
+		hex(message, 1, hash, 8);
+		return message;
+	}
+
+	/**
+	 * @param data
+	 *            Compressed art; count bytes of it from offset go in
+	 *            the message.
+	 */
+	public static byte[] artData(int hash, byte[] data, int offset, int count) {
+		int packed = (count * 8 + 6) / 7;
+		byte[] message = new byte[15 + packed + 1];
+		message[0] = 'j';
+		hex(message, 1, hash, 8);
+		hex(message, 9, offset, 3);
+		hex(message, 12, data.length, 3);
+		int bits = 0;
+		int have = 0;
+		int o = 15;
+		for (int i = offset; i < offset + count; i++) {
+			bits = (bits << 8) | (data[i] & 0xFF);
+			have += 8;
+			while (have >= 7) {
+				have -= 7;
+				message[o++] = (byte) (0x80 | ((bits >> have) & 0x7F));
+			}
+		}
+		if (have > 0) {
+			message[o++] = (byte) (0x80 | ((bits << (7 - have)) & 0x7F));
+		}
+		message[o] = '\n';
+		return message;
+	}
+
+	static int clampPosition(long ms) {
+		return (int) Math.max(0, Math.min(MAX_POSITION, ms / POSITION_UNIT));
+	}
+
+	static void hex(byte[] message, int offset, int value, int digits) {
+		for (int i = digits - 1; i >= 0; i--) {
+			message[offset + i] = HEX[value & 0xF];
+			value >>= 4;
+		}
+	}
+
+	static int unhex(byte[] message, int offset, int digits) {
+		int value = 0;
+		for (int i = 0; i < digits; i++) {
+			value = (value << 4) | Character.digit(message[offset + i], 16);
+		}
+		return value;
+	}
+
+	public static byte[] artist(String artist) {
+		return text('a', artist);
+	}
+
+	public static byte[] track(String track) {
+		return text('t', track);
+	}
+
+	public static byte[] artist(String artist, boolean bitmap) {
+		return bitmap ? bitmap('A', artist) : text('a', artist);
+	}
+
+	public static byte[] track(String track, boolean bitmap) {
+		return bitmap ? bitmap('T', track) : text('t', track);
+	}
+
+	/**
+	 * Truncate a field to what the remote can show.
+	 */
+	public static String truncate(String s) {
+		return s.substring(0, Math.min(s.length(), MAX_TEXT));
+	}
+
+	static byte[] text(char prefix, String s) {
+		return wrap(prefix, GlyphMapper.map(s, MAX_TEXT));
+	}
+
+	static byte[] bitmap(char prefix, String s) {
+		byte[] strip = GlyphFont.render(GlyphMapper.map(s, MAX_TEXT));
+		for (int i = 0; i < strip.length; i++) {
+			strip[i] |= 0x80;
+		}
+		return wrap(prefix, strip);
+	}
+
+	static byte[] wrap(char prefix, byte[] body) {
+		byte[] message = new byte[body.length + 2];
+		message[0] = (byte) prefix;
+		System.arraycopy(body, 0, message, 1, body.length);
+		message[message.length - 1] = '\n';
+		return message;
+	}
+}
@@ -0,0 +1,77 @@
+package com.redbear.chat.protocol;
+
+/**
+ * Remembers the media state last sent and produces messages only for
+ * the fields that have changed since.
+ */
+public class StateDiff {
+	public interface Sink {
+		void send(int type, byte[] message);
+	}
+
+	int mVolume = -1;
+	int mPlaying = -1;
+	int mOnline = -1;
+	String mArtist = null;
+	String mTrack = null;
+	boolean mBitmaps = false;
+
+	/**
+	 * Send artist and track pre-rendered from now on, or as text.
+	 * Takes effect for the next change; reset() to resend.
+	 */
+	public void setBitmaps(boolean bitmaps) {
+		mBitmaps = bitmaps;
+	}
+
+	public boolean bitmaps() {
+		return mBitmaps;
+	}
+
+	/**
+	 * Send whatever differs from the last update.
+	 *
+	 * @return The number of messages sent.
+	 */
+	public int update(int volume, boolean playing, boolean online,
+					  String artist, String track, Sink sink) {
+		int sent = 0;
+		if (volume != mVolume) {
+			mVolume = volume;
+			sink.send(Messages.VOLUME, Messages.volume(volume));
+			sent++;
+		}
+		if ((playing ? 1 : 0) != mPlaying) {
+			mPlaying = playing ? 1 : 0;
+			sink.send(Messages.PLAYING, Messages.playing(playing));
+			sent++;
+		}
+		if ((online ? 1 : 0) != mOnline) {
+			mOnline = online ? 1 : 0;
+			sink.send(Messages.NETWORK, Messages.network(online));
+			sent++;
+		}
+		if (!artist.equals(mArtist)) {
+			mArtist = artist;
+			sink.send(Messages.ARTIST, Messages.artist(artist, mBitmaps));
+			sent++;
+		}
+		if (!track.equals(mTrack)) {
+			mTrack = track;
+			sink.send(Messages.TRACK, Messages.track(track, mBitmaps));
+			sent++;
+		}
+		return sent;
+	}
+
+	/**
+	 * Forget what was sent, so the next update sends everything.
+	 */
+	public void reset() {
+		mVolume = -1;
+		mPlaying = -1;
+		mOnline = -1;
+		mArtist = null;
+		mTrack = null;
+	}
+}